@@ -0,0 +1,64 @@
+package sk.mimac.fingerprint.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import sk.mimac.fingerprint.adafruit.AdafruitEmulator;
+import sk.mimac.fingerprint.adafruit.AdafruitSensor;
+
+/**
+ * Full identification cycle (capture, feature extraction and search) against
+ * emulated sensor.
+ *
+ * @author Milan Fabian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdentifyBenchmark {
+
+    @Param({"200", "1000"})
+    public int librarySize;
+
+    /**
+     * Simulated baud rate, 0 measures only host-side overhead.
+     */
+    @Param({"0", "57600"})
+    public int baudRate;
+
+    private AdafruitSensor sensor;
+
+    @Setup
+    public void setup() throws FingerprintException {
+        AdafruitEmulator emulator = new AdafruitEmulator(librarySize);
+        emulator.setBaudRate(baudRate);
+        Random random = new Random(42);
+        byte[] model = new byte[AdafruitEmulator.TEMPLATE_SIZE];
+        for (int i = 0; i < librarySize; i++) {
+            random.nextBytes(model);
+            emulator.setModel(i, model);
+        }
+        emulator.placeFinger(emulator.getModel(librarySize - 1));
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sensor.close();
+    }
+
+    @Benchmark
+    public SearchResult identify() throws FingerprintException {
+        if (!sensor.hasFingerprint()) {
+            throw new IllegalStateException("Finger not detected");
+        }
+        return sensor.search();
+    }
+}
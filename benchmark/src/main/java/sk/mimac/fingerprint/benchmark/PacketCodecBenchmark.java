@@ -0,0 +1,69 @@
+package sk.mimac.fingerprint.benchmark;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitPacketCodec;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * Encoding and decoding of single packets, without any I/O.
+ *
+ * @author Milan Fabian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+    private final AdafruitPacketCodec codec = new AdafruitPacketCodec();
+    private final byte[] model = new byte[256];
+    private ByteBuffer ackPacket;
+    private ByteBuffer dataPacket;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < model.length; i++) {
+            model[i] = (byte) i;
+        }
+        ackPacket = copy(codec.encode(FINGERPRINT_ACKPACKET, new byte[]{FINGERPRINT_OK, 0x00, 0x05, 0x00, 0x64}, 0, 5));
+        dataPacket = copy(codec.encode(FINGERPRINT_DATAPACKET, model, 0, model.length));
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.put(buffer);
+        ((Buffer) result).flip();
+        return result;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCommand() {
+        codec.begin(FINGERPRINT_COMMANDPACKET).put((byte) FINGERPRINT_HISPEEDSEARCH).put((byte) 1).putShort((short) 0).putShort((short) 1000);
+        return codec.finish();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDataPacket() {
+        return codec.encode(FINGERPRINT_DATAPACKET, model, 0, model.length);
+    }
+
+    @Benchmark
+    public ByteBuffer decodeAck() throws FingerprintException {
+        ((Buffer) ackPacket).rewind();
+        codec.decode(ackPacket);
+        return codec.payload();
+    }
+
+    @Benchmark
+    public ByteBuffer decodeDataPacket() throws FingerprintException {
+        ((Buffer) dataPacket).rewind();
+        codec.decode(dataPacket);
+        return codec.payload();
+    }
+}
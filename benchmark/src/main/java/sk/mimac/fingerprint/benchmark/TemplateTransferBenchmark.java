@@ -0,0 +1,70 @@
+package sk.mimac.fingerprint.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitEmulator;
+import sk.mimac.fingerprint.adafruit.AdafruitSensor;
+
+/**
+ * Transfer of fingerprint models between host and emulated sensor.
+ *
+ * @author Milan Fabian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateTransferBenchmark {
+
+    /**
+     * Simulated baud rate, 0 measures only host-side overhead.
+     */
+    @Param({"0", "57600", "115200"})
+    public int baudRate;
+
+    @Param({"128", "256"})
+    public int packetSize;
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+    private byte[] model;
+
+    @Setup
+    public void setup() throws FingerprintException {
+        model = new byte[AdafruitEmulator.TEMPLATE_SIZE];
+        new Random(42).nextBytes(model);
+        emulator = new AdafruitEmulator(1000);
+        emulator.setBaudRate(baudRate);
+        emulator.placeFinger(model);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.connect();
+        sensor.negotiate(0, packetSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sensor.close();
+    }
+
+    /**
+     * Download model from host to sensor and store it.
+     */
+    @Benchmark
+    public void saveModel() throws FingerprintException {
+        sensor.saveModel(model, 1);
+    }
+
+    /**
+     * Capture, feature extraction, merge and upload of the model to host.
+     */
+    @Benchmark
+    public byte[] createModel() throws FingerprintException {
+        sensor.hasFingerprint();
+        return sensor.createModel();
+    }
+}
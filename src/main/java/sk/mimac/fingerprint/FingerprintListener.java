@@ -0,0 +1,39 @@
+package sk.mimac.fingerprint;
+
+/**
+ * Receives events from asynchronous scanning of fingerprint sensor. All
+ * methods are called from the scanning thread, so they should return quickly.
+ *
+ * @author Milan Fabian
+ */
+public interface FingerprintListener {
+
+    /**
+     * Finger was placed on the sensor and matched stored fingerprint.
+     *
+     * @param id position of matched fingerprint in sensor's internal memory
+     * @param confidence match score reported by the sensor
+     */
+    void onMatch(int id, int confidence);
+
+    /**
+     * Finger was placed on the sensor, but doesn't match any stored
+     * fingerprint.
+     */
+    void onUnknown();
+
+    /**
+     * Previously scanned finger was removed from the sensor.
+     */
+    default void onFingerRemoved() {
+    }
+
+    /**
+     * Communication with the sensor failed. Scanning continues after short
+     * delay.
+     *
+     * @param ex cause of the failure
+     */
+    default void onError(FingerprintException ex) {
+    }
+}
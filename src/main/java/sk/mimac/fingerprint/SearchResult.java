@@ -0,0 +1,37 @@
+package sk.mimac.fingerprint;
+
+/**
+ * Result of successful search in sensor's internal memory.
+ *
+ * @author Milan Fabian
+ */
+public class SearchResult {
+
+    private final int id;
+
+    private final int confidence;
+
+    public SearchResult(int id, int confidence) {
+        this.id = id;
+        this.confidence = confidence;
+    }
+
+    /**
+     * @return position of matched fingerprint in sensor's internal memory
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return match score reported by the sensor (higher is better)
+     */
+    public int getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResult{id=" + id + ", confidence=" + confidence + '}';
+    }
+}
@@ -10,6 +10,16 @@ public class SensorParameters {
 
     private int librarySize;
 
+    private int statusRegister;
+
+    private int systemId;
+
+    private int deviceAddress;
+
+    private int packetSize;
+
+    private int baudRate;
+
     public int getSecurityLevel() {
         return securityLevel;
     }
@@ -26,4 +36,50 @@ public class SensorParameters {
         this.librarySize = librarySize;
     }
 
+    public int getStatusRegister() {
+        return statusRegister;
+    }
+
+    public void setStatusRegister(int statusRegister) {
+        this.statusRegister = statusRegister;
+    }
+
+    public int getSystemId() {
+        return systemId;
+    }
+
+    public void setSystemId(int systemId) {
+        this.systemId = systemId;
+    }
+
+    public int getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public void setDeviceAddress(int deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    /**
+     * @return size of payload of data packets in bytes (32, 64, 128 or 256)
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * @return baud rate of the sensor's serial interface
+     */
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
 }
@@ -0,0 +1,486 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import sk.mimac.fingerprint.SensorParameters;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * Sensor behind serial-to-TCP bridge whose protocol runs entirely on the
+ * thread of {@link AdafruitSocketSelector}: commands are sent, replies are
+ * decoded and timeouts are handled by the selector thread, so one thread
+ * serves any number of sensors used at the same time. Operations return
+ * futures, which are completed on the selector thread; their callbacks must
+ * not block (e.g. wait for other futures or use {@link AdafruitSensor}).
+ * <p>
+ * Commands are sent one at a time, in order of calls. Operation called from
+ * callback of another operation of the same sensor is sent right after it,
+ * before operations called in the meantime, so that e.g. search called when
+ * {@link #hasFingerprint() hasFingerprint} completes uses its character
+ * buffer. Idempotent commands are sent again when their reply is lost or
+ * corrupted; after a lost reply, next command is sent only when the late
+ * reply arrives or can't arrive anymore. Lost connection fails all waiting
+ * operations, the sensor can be connected again.
+ *
+ * @author Milan Fabian
+ * @see AdafruitSensor
+ */
+public class AdafruitAsyncSensor implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitAsyncSensor.class);
+
+    private final AdafruitSocketTransport transport;
+    private final AdafruitSocketSelector selector;
+    private final ByteBuffer received = ByteBuffer.allocate(1024);
+    private volatile long timeout = TimeUnit.MILLISECONDS.toNanos(AdafruitSensor.DEFAULT_TIMEOUT);
+    private volatile int retries = AdafruitSensor.DEFAULT_RETRIES;
+    private volatile int deviceAddress = AdafruitPacketCodec.DEFAULT_ADDRESS;
+
+    // Accessed only on the selector thread
+    private final ArrayDeque<Request<?>> queue = new ArrayDeque<>();
+    private AdafruitPacketCodec codec = new AdafruitPacketCodec();
+    private List<Request<?>> followUps;
+    private Request<?> current;
+    private AdafruitSocketSelector.Timer timer;
+    // Replies to timed out sends, which can still arrive
+    private int lateReplies;
+    private boolean connected;
+    private int librarySize;
+
+    /**
+     * @param transport unopened transport to the sensor, used only by this
+     * class
+     */
+    public AdafruitAsyncSensor(AdafruitSocketTransport transport) {
+        this.transport = transport;
+        this.selector = transport.getSelector();
+    }
+
+    /**
+     * @param millis time to wait for reply to any command in milliseconds
+     */
+    public void setTimeout(long millis) {
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param retries how many times an idempotent command is sent again when
+     * its reply is lost or corrupted, 0 to disable
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Set address of the sensor, should be called before
+     * {@link #connect() connect}.
+     *
+     * @param address device address of the sensor (default is
+     * {@link AdafruitPacketCodec#DEFAULT_ADDRESS})
+     */
+    public void setDeviceAddress(int address) {
+        this.deviceAddress = address;
+    }
+
+    /**
+     * Open connection to the sensor (this blocks until TCP connection is
+     * established, so it must not be called on the selector thread), verify
+     * password and read system parameters.
+     *
+     * @return future completed with parameters of the sensor
+     */
+    public CompletableFuture<SensorParameters> connect() {
+        if (selector.inSelectorThread()) {
+            throw new IllegalStateException("Sensor can't be connected from the selector thread");
+        }
+        CompletableFuture<SensorParameters> result = new CompletableFuture<>();
+        try {
+            transport.open();
+            transport.setReceiver(this::receive);
+            selector.execute(() -> {
+                failAll(new FingerprintException("Sensor was reconnected", "sensor.cant.connect"));
+                codec = new AdafruitPacketCodec(deviceAddress);
+                ((Buffer) received).clear();
+                connected = true;
+                this.<Void>command(FINGERPRINT_VERIFYPASSWORD, reply -> {
+                    requireOk(reply);
+                    return null;
+                }, 0, 0, 0, 0).thenCompose(ok -> readParameters())
+                        .whenComplete((parameters, ex) -> {
+                            if (ex != null) {
+                                result.completeExceptionally(ex);
+                            } else {
+                                result.complete(parameters);
+                            }
+                        });
+            });
+        } catch (FingerprintException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Close connection to the sensor, waiting operations fail.
+     */
+    @Override
+    public void close() {
+        try {
+            selector.execute(() -> failAll(new FingerprintException("Sensor was closed", "sensor.not.responding")));
+        } catch (FingerprintException ex) {
+            // Selector was stopped, operations were already failed
+        }
+        transport.close();
+    }
+
+    /**
+     * Capture image of finger and extract its features into the first
+     * character buffer.
+     *
+     * @return future completed with true if finger is on the sensor and its
+     * features were extracted
+     */
+    public CompletableFuture<Boolean> hasFingerprint() {
+        return command(FINGERPRINT_GETIMAGE, reply -> reply.get(0) == FINGERPRINT_OK)
+                .thenCompose(image -> !image ? CompletableFuture.completedFuture(false)
+                : command(FINGERPRINT_IMAGE2TZ, reply -> reply.get(0) == FINGERPRINT_OK, 1));
+    }
+
+    /**
+     * Search whole sensor's internal memory for match with finger on which
+     * {@link #hasFingerprint() hasFingerprint} was called.
+     *
+     * @return future completed with matched position together with match
+     * confidence, or null if the fingerprint doesn't match
+     */
+    public CompletableFuture<SearchResult> search() {
+        return search(0, -1);
+    }
+
+    /**
+     * Search range of sensor's internal memory for match with finger on which
+     * {@link #hasFingerprint() hasFingerprint} was called.
+     *
+     * @param number first position to search
+     * @param count number of positions to search
+     * @return future completed with matched position together with match
+     * confidence, or null if the fingerprint doesn't match
+     */
+    public CompletableFuture<SearchResult> search(int number, int count) {
+        return command(FINGERPRINT_HISPEEDSEARCH, reply -> {
+            switch (reply.get(0) & 0xFF) {
+                case FINGERPRINT_OK:
+                    return new SearchResult(reply.getShort(1) & 0xFFFF, reply.getShort(3) & 0xFFFF);
+                case FINGERPRINT_NOTFOUND:
+                    return null;
+                default:
+                    throw badData(reply);
+            }
+        }, 1, number >> 8, number, count >> 8, count);
+    }
+
+    /**
+     * @return future completed with number of stored models
+     */
+    public CompletableFuture<Integer> getTemplateCount() {
+        return command(FINGERPRINT_TEMPLATECOUNT, reply -> {
+            requireOk(reply);
+            return reply.getShort(1) & 0xFFFF;
+        });
+    }
+
+    /**
+     * @return future completed with system parameters of the sensor
+     */
+    public CompletableFuture<SensorParameters> readParameters() {
+        return command(FINGERPRINT_READ_SYS_PARAM, reply -> {
+            requireOk(reply);
+            SensorParameters parameters = AdafruitSensor.parseParameters(reply);
+            if (parameters == null) {
+                throw badData(reply);
+            }
+            librarySize = parameters.getLibrarySize();
+            return parameters;
+        });
+    }
+
+    /**
+     * Queue command, failed future is returned if the sensor isn't
+     * connected.
+     */
+    private <T> CompletableFuture<T> command(int command, ReplyHandler<T> handler, int... parameters) {
+        Request<T> request = new Request<>(command, handler, parameters);
+        if (selector.inSelectorThread()) {
+            enqueue(request);
+        } else {
+            try {
+                selector.execute(() -> enqueue(request));
+            } catch (FingerprintException ex) {
+                request.future.completeExceptionally(ex);
+            }
+        }
+        return request.future;
+    }
+
+    private void enqueue(Request<?> request) {
+        if (!connected) {
+            request.future.completeExceptionally(new FingerprintException("Sensor is not connected", "sensor.cant.connect"));
+            return;
+        }
+        if (followUps != null) {
+            followUps.add(request);
+        } else {
+            queue.add(request);
+            sendNext();
+        }
+    }
+
+    private void sendNext() {
+        if (current != null || lateReplies > 0 || queue.isEmpty()) {
+            return;
+        }
+        current = queue.poll();
+        send(current);
+    }
+
+    private void send(Request<?> request) {
+        int[] parameters = request.parameters;
+        if (request.command == FINGERPRINT_HISPEEDSEARCH && parameters[4] < 0) {
+            // Search of whole library, its size is read on connect
+            parameters = new int[]{parameters[0], parameters[1], parameters[2], librarySize >> 8, librarySize};
+        }
+        ByteBuffer frame = codec.begin(FINGERPRINT_COMMANDPACKET).put((byte) request.command);
+        for (int parameter : parameters) {
+            frame.put((byte) parameter);
+        }
+        try {
+            transport.write(codec.finish());
+        } catch (FingerprintException ex) {
+            disconnect(ex);
+            return;
+        }
+        timer = selector.schedule(this::onTimeout, timeout);
+    }
+
+    /**
+     * Process received data, runs on the selector thread.
+     */
+    private void receive() {
+        while (connected) {
+            int count;
+            ((Buffer) received).clear();
+            try {
+                count = transport.read(received, System.nanoTime());
+            } catch (FingerprintException ex) {
+                disconnect(ex);
+                return;
+            } finally {
+                ((Buffer) received).flip();
+            }
+            if (count == 0) {
+                return;
+            }
+            while (connected) {
+                try {
+                    if (!codec.decode(received)) {
+                        break;
+                    }
+                    onPacket();
+                } catch (FingerprintException ex) {
+                    onBadReply(ex);
+                }
+            }
+        }
+    }
+
+    private void onPacket() throws FingerprintException {
+        ByteBuffer reply = codec.payload();
+        if (current == null) {
+            if (lateReplies > 0 && --lateReplies == 0) {
+                cancelTimer();
+                sendNext();
+            }
+            logger.debug("Discarded late reply from fingerprint sensor: " + codec.toHex());
+            return;
+        }
+        if (codec.getPacketType() != FINGERPRINT_ACKPACKET || !reply.hasRemaining()) {
+            throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+        }
+        cancelTimer();
+        Request<?> request = current;
+        current = null;
+        if (request.timedOut > 0) {
+            expectLateReplies(request.timedOut);
+        }
+        request.handle(reply);
+        sendNext();
+    }
+
+    private void onBadReply(FingerprintException ex) {
+        if (current == null) {
+            return;
+        }
+        cancelTimer();
+        Request<?> request = current;
+        if (retry(request)) {
+            logger.debug("Sending command " + request.command + " again after bad reply: " + ex.getMessage());
+            send(request);
+            return;
+        }
+        current = null;
+        if (request.timedOut > 0) {
+            expectLateReplies(request.timedOut);
+        }
+        complete(request, ex);
+        sendNext();
+    }
+
+    private void onTimeout() {
+        timer = null;
+        if (current == null) {
+            // Late replies didn't arrive
+            lateReplies = 0;
+            sendNext();
+            return;
+        }
+        Request<?> request = current;
+        request.timedOut++;
+        if (retry(request)) {
+            logger.debug("Sending command " + request.command + " again after timeout");
+            send(request);
+            return;
+        }
+        current = null;
+        expectLateReplies(request.timedOut);
+        complete(request, new FingerprintException("Timeout while waiting for reply to command " + request.command, "sensor.not.responding"));
+        sendNext();
+    }
+
+    private boolean retry(Request<?> request) {
+        return AdafruitSensor.isIdempotent(request.command) && request.attempt++ < retries;
+    }
+
+    /**
+     * Hold next command until replies to timed out sends arrive, or until
+     * they can't arrive (each send is processed at most for the timeout).
+     */
+    private void expectLateReplies(int count) {
+        lateReplies = count;
+        timer = selector.schedule(this::onTimeout, timeout * count);
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private void disconnect(FingerprintException ex) {
+        if (connected) {
+            logger.debug("Connection to fingerprint sensor lost: " + ex.getMessage());
+            failAll(ex);
+            transport.close();
+        }
+    }
+
+    private void failAll(FingerprintException ex) {
+        connected = false;
+        cancelTimer();
+        lateReplies = 0;
+        List<Request<?>> failed = new ArrayList<>();
+        if (current != null) {
+            failed.add(current);
+            current = null;
+        }
+        failed.addAll(queue);
+        queue.clear();
+        for (Request<?> request : failed) {
+            request.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Complete the request exceptionally, operations called from its
+     * callbacks are sent first.
+     */
+    private void complete(Request<?> request, FingerprintException ex) {
+        followUps = new ArrayList<>();
+        try {
+            request.future.completeExceptionally(ex);
+        } finally {
+            prependFollowUps();
+        }
+    }
+
+    private void prependFollowUps() {
+        List<Request<?>> added = followUps;
+        followUps = null;
+        for (int i = added.size() - 1; i >= 0; i--) {
+            queue.addFirst(added.get(i));
+        }
+    }
+
+    private static void requireOk(ByteBuffer reply) throws FingerprintException {
+        if (reply.get(0) != FINGERPRINT_OK) {
+            throw badData(reply);
+        }
+    }
+
+    private static FingerprintException badData(ByteBuffer reply) {
+        return new FingerprintException("Got wrong reply from fingerprint sensor, confirmation code " + (reply.get(0) & 0xFF), "sensor.bad.data");
+    }
+
+    /**
+     * Converts payload of acknowledge packet to result of the command.
+     */
+    private interface ReplyHandler<T> {
+
+        T handle(ByteBuffer reply) throws FingerprintException;
+    }
+
+    private class Request<T> {
+
+        private final int command;
+        private final ReplyHandler<T> handler;
+        private final int[] parameters;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempt;
+        private int timedOut;
+
+        private Request(int command, ReplyHandler<T> handler, int[] parameters) {
+            this.command = command;
+            this.handler = handler;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Complete the future with result of the reply, operations called
+         * from its callbacks are sent first.
+         */
+        private void handle(ByteBuffer reply) {
+            followUps = new ArrayList<>();
+            try {
+                T result;
+                try {
+                    result = handler.handle(reply);
+                } catch (FingerprintException ex) {
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                future.complete(result);
+            } finally {
+                prependFollowUps();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * Capture which distinguishes missing finger from unreadable one. When the
+ * image can't be captured or features can't be extracted (smudged or partial
+ * finger), capture and extraction are repeated while the finger stays on the
+ * sensor, until the {@link #setTimeBudget(long) time budget} runs out, so the
+ * user doesn't have to place the finger again. Optionally, when the search
+ * doesn't find a match, it's repeated at
+ * {@link #setFallbackSecurityLevel(int) lower security level}.
+ * <p>
+ * Security level of the sensor is read once at construction; when it's
+ * changed later, a new capture should be constructed.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitCapture.class);
+
+    /**
+     * Default time budget of one touch in milliseconds.
+     */
+    public static final long DEFAULT_TIME_BUDGET = 1500;
+
+    /**
+     * Final state of capture.
+     */
+    public enum Outcome {
+        /**
+         * Features were extracted into the first character buffer.
+         */
+        CAPTURED,
+        /**
+         * Features were extracted and matched a stored fingerprint.
+         */
+        MATCHED,
+        /**
+         * Features were extracted, but don't match any stored fingerprint.
+         */
+        NOT_FOUND,
+        /**
+         * There is no finger on the sensor.
+         */
+        NO_FINGER,
+        /**
+         * Finger was on the sensor, but features couldn't be extracted within
+         * the time budget (or the finger was removed).
+         */
+        UNREADABLE,
+        /**
+         * Sensor reported an error which isn't solved by capturing again.
+         */
+        FAILED
+    }
+
+    private final AdafruitSensor sensor;
+    private final int securityLevel;
+    private long timeBudget = DEFAULT_TIME_BUDGET;
+    private int fallbackSecurityLevel;
+    private boolean restorePending;
+
+    /**
+     * @param sensor connected sensor
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public AdafruitCapture(AdafruitSensor sensor) throws FingerprintException {
+        this.sensor = sensor;
+        this.securityLevel = sensor.readParameters().getSecurityLevel();
+    }
+
+    /**
+     * @param millis maximal time of repeated capture in milliseconds
+     */
+    public void setTimeBudget(long millis) {
+        this.timeBudget = millis;
+    }
+
+    /**
+     * Set security level (1 to 5) at which the search is repeated, when it
+     * doesn't find a match and the fallback is
+     * {@link #identify(boolean) requested}. The level is changed only for the
+     * repeated search and then the original level is restored; each change is
+     * written to sensor's flash memory, so the fallback should be requested
+     * only when needed (e.g. after the user failed several times).
+     *
+     * @param securityLevel lower security level, 0 to disable the fallback
+     */
+    public void setFallbackSecurityLevel(int securityLevel) {
+        this.fallbackSecurityLevel = securityLevel;
+    }
+
+    /**
+     * Capture finger and extract its features into the first character
+     * buffer, repeating both steps within the time budget while the finger is
+     * unreadable.
+     *
+     * @return outcome of the capture
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public CaptureResult capture() throws FingerprintException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeBudget);
+        int attempts = 0;
+        int status;
+        while (true) {
+            attempts++;
+            status = sensor.getImageStatus();
+            if (status == FINGERPRINT_OK) {
+                status = sensor.image2tzStatus((byte) 1);
+                if (status == FINGERPRINT_OK) {
+                    return new CaptureResult(Outcome.CAPTURED, status, attempts, start, null, false, false);
+                }
+            }
+            if (status == FINGERPRINT_NOFINGER) {
+                // Finger was removed during repeated capture
+                return new CaptureResult(attempts == 1 ? Outcome.NO_FINGER : Outcome.UNREADABLE, status, attempts, start, null, false, false);
+            }
+            if (!isRetryable(status)) {
+                logger.debug("Capture failed with status " + Integer.toHexString(status));
+                return new CaptureResult(Outcome.FAILED, status, attempts, start, null, false, false);
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                logger.debug("Finger is unreadable after " + attempts + " attempts, last status " + Integer.toHexString(status));
+                return new CaptureResult(Outcome.UNREADABLE, status, attempts, start, null, false, false);
+            }
+        }
+    }
+
+    /**
+     * Capture finger (see {@link #capture() capture}) and search sensor's
+     * internal memory for match, without the fallback.
+     *
+     * @return outcome of the capture, with search result if matched
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public CaptureResult identify() throws FingerprintException {
+        return identify(false);
+    }
+
+    /**
+     * Capture finger (see {@link #capture() capture}) and search sensor's
+     * internal memory for match.
+     *
+     * @param allowFallback true to repeat the search at
+     * {@link #setFallbackSecurityLevel(int) fallback security level} if it
+     * doesn't find a match
+     * @return outcome of the capture, with search result if matched
+     * @throws FingerprintException if there is problem with communication to
+     * sensor, or if original security level couldn't be restored after
+     * previous fallback
+     */
+    public CaptureResult identify(boolean allowFallback) throws FingerprintException {
+        if (restorePending) {
+            sensor.setSecurityLevel(securityLevel);
+            restorePending = false;
+        }
+        CaptureResult captured = capture();
+        if (captured.getOutcome() != Outcome.CAPTURED) {
+            return captured;
+        }
+        SearchResult result = sensor.search();
+        boolean fallback = false;
+        boolean restoreFailed = false;
+        if (result == null && allowFallback && fallbackSecurityLevel > 0 && fallbackSecurityLevel < securityLevel) {
+            fallback = true;
+            restorePending = true;
+            sensor.setSecurityLevel(fallbackSecurityLevel);
+            try {
+                result = sensor.search();
+            } finally {
+                restoreFailed = !restoreSecurityLevel();
+            }
+        }
+        return new CaptureResult(result != null ? Outcome.MATCHED : Outcome.NOT_FOUND, captured.getStatus(),
+                captured.getAttempts(), captured.start, result, fallback, restoreFailed);
+    }
+
+    /**
+     * Restore original security level after fallback; if it fails, it's
+     * tried again before next identification.
+     */
+    private boolean restoreSecurityLevel() {
+        try {
+            sensor.setSecurityLevel(securityLevel);
+            restorePending = false;
+            return true;
+        } catch (FingerprintException ex) {
+            logger.error("Can't restore security level " + securityLevel + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param status confirmation code of capture or feature extraction
+     * @return true if capturing again can succeed with the same finger
+     */
+    public static boolean isRetryable(int status) {
+        switch (status) {
+            case FINGERPRINT_PACKETRECIEVEERR:
+            case FINGERPRINT_IMAGEFAIL:
+            case FINGERPRINT_IMAGEMESS:
+            case FINGERPRINT_FEATUREFAIL:
+            case FINGERPRINT_INVALIDIMAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Detailed result of capture.
+     */
+    public static class CaptureResult {
+
+        private final Outcome outcome;
+        private final int status;
+        private final int attempts;
+        private final long start;
+        private final long duration;
+        private final SearchResult searchResult;
+        private final boolean fallback;
+        private final boolean restoreFailed;
+
+        private CaptureResult(Outcome outcome, int status, int attempts, long start, SearchResult searchResult,
+                boolean fallback, boolean restoreFailed) {
+            this.outcome = outcome;
+            this.status = status;
+            this.attempts = attempts;
+            this.start = start;
+            this.duration = System.nanoTime() - start;
+            this.searchResult = searchResult;
+            this.fallback = fallback;
+            this.restoreFailed = restoreFailed;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return the last confirmation code of capture or feature extraction
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return number of captures within the touch
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return duration of capture (and search) in milliseconds
+         */
+        public long getDuration() {
+            return TimeUnit.NANOSECONDS.toMillis(duration);
+        }
+
+        /**
+         * @return matched position together with match confidence, or null if
+         * not matched
+         */
+        public SearchResult getSearchResult() {
+            return searchResult;
+        }
+
+        /**
+         * @return true if the search was repeated at lower security level
+         */
+        public boolean isFallback() {
+            return fallback;
+        }
+
+        /**
+         * @return true if original security level couldn't be restored after
+         * the fallback, so the sensor stays at the lower level until next
+         * identification restores it
+         */
+        public boolean isRestoreFailed() {
+            return restoreFailed;
+        }
+
+        @Override
+        public String toString() {
+            return "CaptureResult{outcome=" + outcome + ", status=" + Integer.toHexString(status) + ", attempts=" + attempts
+                    + ", duration=" + getDuration() + "ms, searchResult=" + searchResult + ", fallback=" + fallback
+                    + ", restoreFailed=" + restoreFailed + '}';
+        }
+    }
+}
@@ -43,12 +43,14 @@ public class AdafruitConstants {
 
     public static final int FINGERPRINT_GETIMAGE = 0x01;
     public static final int FINGERPRINT_IMAGE2TZ = 0x02;
+    public static final int FINGERPRINT_MATCH = 0x03;
     public static final int FINGERPRINT_HISPEEDSEARCH = 0x04;
     public static final int FINGERPRINT_REGMODEL = 0x05;
     public static final int FINGERPRINT_STORE = 0x06;
     public static final int FINGERPRINT_LOAD = 0x07;
     public static final int FINGERPRINT_UPLOAD = 0x08;
     public static final int FINGERPRINT_DOWNLOAD = 0x09;
+    public static final int FINGERPRINT_UPIMAGE = 0x0A;
     public static final int FINGERPRINT_DELETE = 0x0C;
     public static final int FINGERPRINT_EMPTY = 0x0D;
     public static final int FINGERPRINT_SET_SYS_PARAM = 0x0E;
@@ -56,4 +58,5 @@ public class AdafruitConstants {
     public static final int FINGERPRINT_VERIFYPASSWORD = 0x13;
     public static final int FINGERPRINT_READ_SYS_INFO = 0x16;
     public static final int FINGERPRINT_TEMPLATECOUNT = 0x1D;
+    public static final int FINGERPRINT_READ_INDEX_TABLE = 0x1F;
 }
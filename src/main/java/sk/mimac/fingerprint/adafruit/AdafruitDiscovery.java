@@ -0,0 +1,250 @@
+package sk.mimac.fingerprint.adafruit;
+
+import gnu.io.NRSerialPort;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SensorParameters;
+
+/**
+ * Finds sensors connected to serial ports, without knowing port names and
+ * baud rates in advance (e.g. after USB converters are enumerated in
+ * different order). All ports are probed in parallel, each one at all
+ * candidate baud rates one after another (starting with the default 57600),
+ * with short timeout. A sensor is found when it answers the handshake and its
+ * system parameters are read. Sensors answer only packets with their device
+ * address, so sensors with changed address are found only when the address is
+ * {@link #setDeviceAddress(int) configured}.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitDiscovery {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitDiscovery.class);
+
+    /**
+     * Default time in milliseconds to wait for reply during probing.
+     */
+    public static final long DEFAULT_PROBE_TIMEOUT = 250;
+
+    /**
+     * Default candidate baud rates, in order of probing.
+     */
+    public static final int[] DEFAULT_BAUD_RATES = {57600, 115200, 9600, 19200, 38400};
+
+    private final Collection<String> ports;
+    private int[] baudRates = DEFAULT_BAUD_RATES;
+    private long probeTimeout = DEFAULT_PROBE_TIMEOUT;
+    private int deviceAddress = AdafruitPacketCodec.DEFAULT_ADDRESS;
+
+    /**
+     * Discovery on all available serial ports.
+     */
+    public AdafruitDiscovery() {
+        this(null);
+    }
+
+    /**
+     * @param ports names of serial ports to probe
+     */
+    public AdafruitDiscovery(Collection<String> ports) {
+        this.ports = ports;
+    }
+
+    /**
+     * @param baudRates candidate baud rates, in order of probing
+     */
+    public void setBaudRates(int... baudRates) {
+        this.baudRates = baudRates.clone();
+    }
+
+    /**
+     * @param millis time to wait for reply during probing in milliseconds
+     */
+    public void setProbeTimeout(long millis) {
+        this.probeTimeout = millis;
+    }
+
+    /**
+     * @param deviceAddress address of probed sensors (default is
+     * {@link AdafruitPacketCodec#DEFAULT_ADDRESS})
+     */
+    public void setDeviceAddress(int deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    /**
+     * Probe all ports in parallel.
+     *
+     * @return connected sensors, in order of port names; ports without sensor
+     * are skipped
+     * @throws FingerprintException if interrupted while waiting for probes,
+     * sensors which were already found are closed
+     */
+    public List<DiscoveredSensor> discover() throws FingerprintException {
+        List<String> candidates = new ArrayList<>(ports != null ? ports : NRSerialPort.getAvailableSerialPorts());
+        candidates.sort(null);
+        logger.debug("Probing serial ports " + candidates);
+        List<DiscoveredSensor> found = new ArrayList<>();
+        if (candidates.isEmpty()) {
+            return found;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), runnable -> {
+            Thread thread = new Thread(runnable, "fingerprint-discovery-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<CompletableFuture<DiscoveredSensor>> probes = new ArrayList<>();
+        boolean completed = false;
+        try {
+            for (String port : candidates) {
+                probes.add(CompletableFuture.supplyAsync(() -> probe(port), executor));
+            }
+            for (CompletableFuture<DiscoveredSensor> probe : probes) {
+                DiscoveredSensor sensor = probe.get();
+                if (sensor != null) {
+                    found.add(sensor);
+                }
+            }
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintException("Interrupted while probing serial ports", "sensor.cant.connect", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Probe failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (!completed) {
+                // Nothing is returned, close sensors of finished probes now and of running ones when they finish
+                for (CompletableFuture<DiscoveredSensor> probe : probes) {
+                    probe.thenAccept(AdafruitDiscovery::close);
+                }
+            }
+        }
+        logger.debug("Found " + found.size() + " fingerprint sensors");
+        return found;
+    }
+
+    /**
+     * Probe one port at all candidate baud rates.
+     *
+     * @param port name of serial port
+     * @return connected sensor or null if no sensor answered
+     */
+    public DiscoveredSensor probe(String port) {
+        AdafruitTransport transport = createTransport(port, baudRates[0]);
+        AdafruitSensor sensor = new AdafruitSensor(transport);
+        sensor.setDeviceAddress(deviceAddress);
+        sensor.setTimeout(probeTimeout);
+        sensor.setAdaptiveTimeout(false);
+        sensor.setRetries(0);
+        sensor.setReconnectAttempts(0);
+        for (int baudRate : baudRates) {
+            try {
+                if (transport.getBaudRate() != baudRate) {
+                    transport.setBaudRate(baudRate);
+                }
+                sensor.connect();
+                SensorParameters parameters = sensor.readParameters();
+                sensor.setTimeout(AdafruitSensor.DEFAULT_TIMEOUT);
+                sensor.setAdaptiveTimeout(true);
+                sensor.setRetries(AdafruitSensor.DEFAULT_RETRIES);
+                sensor.setReconnectAttempts(AdafruitSensor.DEFAULT_RECONNECT_ATTEMPTS);
+                sensor.getMetrics().reset();
+                logger.debug("Found fingerprint sensor at " + port + " with baud rate " + baudRate);
+                return new DiscoveredSensor(port, baudRate, deviceAddress, parameters, sensor);
+            } catch (FingerprintException | RuntimeException ex) {
+                logger.trace("No fingerprint sensor at " + port + " with baud rate " + baudRate + ": " + ex.getMessage());
+                transport.close();
+            }
+            if (!transport.supportsBaudRate()) {
+                break; // Other baud rates can't be probed
+            }
+        }
+        return null;
+    }
+
+    private static void close(DiscoveredSensor found) {
+        if (found != null) {
+            try {
+                found.getSensor().close();
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Can't close fingerprint sensor at " + found.getPort() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create transport to the port, can be overridden e.g. to use
+     * {@link AdafruitRecordingTransport}.
+     *
+     * @param port name of serial port
+     * @param baudRate initial baud rate
+     * @return transport to the port
+     */
+    protected AdafruitTransport createTransport(String port, int baudRate) {
+        return new AdafruitSerialTransport(port, baudRate);
+    }
+
+    /**
+     * Sensor found by discovery, connected with default timeouts.
+     */
+    public static class DiscoveredSensor {
+
+        private final String port;
+        private final int baudRate;
+        private final int deviceAddress;
+        private final SensorParameters parameters;
+        private final AdafruitSensor sensor;
+
+        public DiscoveredSensor(String port, int baudRate, int deviceAddress, SensorParameters parameters, AdafruitSensor sensor) {
+            this.port = port;
+            this.baudRate = baudRate;
+            this.deviceAddress = deviceAddress;
+            this.parameters = parameters;
+            this.sensor = sensor;
+        }
+
+        public String getPort() {
+            return port;
+        }
+
+        public int getBaudRate() {
+            return baudRate;
+        }
+
+        /**
+         * @return address with which the sensor communicates
+         */
+        public int getDeviceAddress() {
+            return deviceAddress;
+        }
+
+        /**
+         * @return system parameters read during probing, which identify the
+         * sensor (e.g. by device address or library size)
+         */
+        public SensorParameters getParameters() {
+            return parameters;
+        }
+
+        public AdafruitSensor getSensor() {
+            return sensor;
+        }
+
+        @Override
+        public String toString() {
+            return "DiscoveredSensor{port=" + port + ", baudRate=" + baudRate + ", deviceAddress="
+                    + Integer.toHexString(deviceAddress) + '}';
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Enrollment of one finger in separate stages: capture of the finger twice,
+ * merge of both captures into a model and then storing the model in sensor's
+ * internal memory, uploading it to the host, or both. Unlike
+ * {@link AdafruitSensor#createModel() createModel}, the model is transferred
+ * over serial line only if it's uploaded, and it can be written directly to a
+ * channel or buffer.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * AdafruitEnrollment enrollment = new AdafruitEnrollment(sensor);
+ * while (!enrollment.captureFirst()) { ... }
+ * // ask user to remove and place the finger again
+ * while (!enrollment.captureSecond()) { ... }
+ * enrollment.merge();
+ * enrollment.store(position);
+ * </pre>
+ * <p>
+ * Enrollment uses both of sensor's character buffers, so the sensor must not
+ * be used for anything else until the model is stored or uploaded.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitEnrollment {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitEnrollment.class);
+
+    /**
+     * Stage of enrollment, i.e. the last completed step.
+     */
+    public enum Stage {
+        STARTED,
+        FIRST_CAPTURED,
+        SECOND_CAPTURED,
+        MERGED
+    }
+
+    private final AdafruitSensor sensor;
+    private Stage stage = Stage.STARTED;
+
+    /**
+     * @param sensor connected sensor
+     */
+    public AdafruitEnrollment(AdafruitSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Start enrollment from the beginning.
+     */
+    public void restart() {
+        stage = Stage.STARTED;
+    }
+
+    /**
+     * Capture image of the finger and extract its features into the first
+     * character buffer. Can be called again to replace the first capture,
+     * which also discards the second capture.
+     *
+     * @return true if the finger was captured, false if there is no finger on
+     * the sensor or the image is unreadable
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public boolean captureFirst() throws FingerprintException {
+        if (!capture((byte) 1)) {
+            return false;
+        }
+        stage = Stage.FIRST_CAPTURED;
+        return true;
+    }
+
+    /**
+     * Capture image of the finger and extract its features into the second
+     * character buffer.
+     *
+     * @return true if the finger was captured, false if there is no finger on
+     * the sensor or the image is unreadable
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public boolean captureSecond() throws FingerprintException {
+        requireStage(Stage.FIRST_CAPTURED, Stage.SECOND_CAPTURED);
+        if (!capture((byte) 2)) {
+            return false;
+        }
+        stage = Stage.SECOND_CAPTURED;
+        return true;
+    }
+
+    private boolean capture(byte slot) throws FingerprintException {
+        return sensor.getImage() && sensor.image2tz(slot);
+    }
+
+    /**
+     * Merge both captures into a model. If they don't match, the second
+     * capture should be repeated.
+     *
+     * @throws FingerprintException if captures don't match (with key
+     * "sensor.fingerprints.doesnt.match") or there is problem with
+     * communication to sensor
+     */
+    public void merge() throws FingerprintException {
+        requireStage(Stage.SECOND_CAPTURED, Stage.SECOND_CAPTURED);
+        try {
+            sensor.regModel();
+        } catch (FingerprintException ex) {
+            stage = Stage.FIRST_CAPTURED;
+            throw ex;
+        }
+        stage = Stage.MERGED;
+        logger.debug("Enrolled fingerprint merged into model");
+    }
+
+    /**
+     * Store merged model in sensor's internal memory.
+     *
+     * @param number position in sensor's internal memory
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void store(int number) throws FingerprintException {
+        requireStage(Stage.MERGED, Stage.MERGED);
+        sensor.storeModel(1, number);
+    }
+
+    /**
+     * Upload merged model to the host.
+     *
+     * @return fingerprint model
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public byte[] upload() throws FingerprintException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        upload(Channels.newChannel(outputStream));
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Upload merged model, writing it to the channel as it's received.
+     *
+     * @param sink channel to which the model is written
+     * @return size of the model in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the model can't be written to the channel
+     */
+    public int upload(WritableByteChannel sink) throws FingerprintException {
+        requireStage(Stage.MERGED, Stage.MERGED);
+        return sensor.uploadModel(1, sink);
+    }
+
+    /**
+     * Upload merged model into the buffer, starting at its position.
+     *
+     * @param target buffer to which the model is written
+     * @return size of the model in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the model doesn't fit into the buffer
+     */
+    public int upload(ByteBuffer target) throws FingerprintException {
+        requireStage(Stage.MERGED, Stage.MERGED);
+        return sensor.uploadModel(1, target);
+    }
+
+    private void requireStage(Stage from, Stage to) {
+        if (stage.compareTo(from) < 0 || stage.compareTo(to) > 0) {
+            throw new IllegalStateException("Enrollment is in stage " + stage);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fingerprint image uploaded by {@link AdafruitSensor#uploadImage(ByteBuffer)
+ * uploadImage}. The sensor sends only upper 4 bits of each pixel, two pixels
+ * per byte (the first one in the upper half of the byte), rows from top to
+ * bottom.
+ * <p>
+ * The image only wraps the packed data, pixels are unpacked when they are
+ * read, so the same buffer can be reused for next upload when the image is no
+ * longer needed.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitImage {
+
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 288;
+
+    /**
+     * Size of packed image in bytes.
+     */
+    public static final int SIZE = WIDTH * HEIGHT / 2;
+
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param data packed image between position and limit of the buffer,
+     * which must not be modified while the image is used
+     */
+    public AdafruitImage(ByteBuffer data) {
+        this(data, WIDTH);
+    }
+
+    /**
+     * @param data packed image between position and limit of the buffer,
+     * which must not be modified while the image is used
+     * @param width of the image in pixels
+     */
+    public AdafruitImage(ByteBuffer data, int width) {
+        if (width <= 0 || width % 2 != 0) {
+            throw new IllegalArgumentException("Invalid width: " + width);
+        }
+        this.data = data.slice();
+        this.width = width;
+        this.height = this.data.remaining() * 2 / width;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return read-only view of packed data
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param x column, from left
+     * @param y row, from top
+     * @return gray level of the pixel, from 0 (black) to 255 (white)
+     */
+    public int getPixel(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("Pixel [" + x + ", " + y + "] is outside of image");
+        }
+        int packed = data.get((y * width + x) >> 1);
+        int nibble = (x & 1) == 0 ? (packed >> 4) & 0x0F : packed & 0x0F;
+        return nibble * 0x11;
+    }
+
+    /**
+     * Unpack the image into grayscale raster, one byte per pixel, row by row.
+     *
+     * @return gray levels of all pixels
+     */
+    public byte[] toGrayscale() {
+        byte[] raster = new byte[width * height];
+        toGrayscale(raster, 0);
+        return raster;
+    }
+
+    /**
+     * Unpack the image into caller's grayscale raster, one byte per pixel,
+     * row by row.
+     *
+     * @param raster target array with at least width * height bytes from the
+     * offset
+     * @param offset index of the first pixel in the array
+     */
+    public void toGrayscale(byte[] raster, int offset) {
+        int pixels = width * height;
+        if (raster.length - offset < pixels) {
+            throw new IndexOutOfBoundsException("Raster is too small for " + pixels + " pixels");
+        }
+        for (int i = 0; i < pixels / 2; i++) {
+            int packed = data.get(i);
+            raster[offset++] = (byte) (((packed >> 4) & 0x0F) * 0x11);
+            raster[offset++] = (byte) ((packed & 0x0F) * 0x11);
+        }
+    }
+}
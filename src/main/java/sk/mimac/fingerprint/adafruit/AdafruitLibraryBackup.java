@@ -0,0 +1,437 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitLibrarySync.ProgressListener;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.Priority;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.SensorTask;
+
+/**
+ * Backup of all fingerprint models from sensor's internal memory and their
+ * restore. Models are streamed one by one through a few reused buffers, so
+ * the library is never held in memory. Writing of a model to the sink runs
+ * in a background thread while the next model is transferred from the sensor
+ * (and reading of the next model from the source while the previous one is
+ * transferred to the sensor on restore).
+ * <p>
+ * Backup file has header (magic "FPBK", version), then each model as a record
+ * of position (2 bytes), length (2 bytes), CRC32 of the model (4 bytes) and
+ * the model, and finally a trailer with number of records, so that truncated
+ * file is detected.
+ * <p>
+ * Backup uses the first character buffer, so it must not run between
+ * {@link AdafruitSensor#hasFingerprint() hasFingerprint} and search. When
+ * constructed with {@link AdafruitScheduler}, transfer of each model is
+ * submitted as a separate {@link Priority#LOW low} priority task, so
+ * identification tasks can run between them; export and restore then have to
+ * be called from another thread than the scheduler's.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitLibraryBackup {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitLibraryBackup.class);
+
+    private static final int MAGIC = 0x4650424B; // "FPBK"
+    private static final short VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int TRAILER = 0xFFFF;
+    private static final int MAX_MODEL_SIZE = 4096;
+    private static final int BUFFERS = 4;
+
+    /**
+     * Receives exported models.
+     */
+    public interface TemplateSink {
+
+        /**
+         * @param slot position of the model in sensor's internal memory
+         * @param model between position and limit of the buffer, valid only
+         * during the call
+         * @throws IOException if the model can't be written
+         */
+        void write(int slot, ByteBuffer model) throws IOException;
+    }
+
+    /**
+     * Provides models to restore.
+     */
+    public interface TemplateSource {
+
+        /**
+         * Read next model into the buffer, starting at its position.
+         *
+         * @param model target buffer
+         * @return position of the model in sensor's internal memory or -1 if
+         * there are no more models
+         * @throws IOException if the model can't be read
+         */
+        int read(ByteBuffer model) throws IOException;
+    }
+
+    private final AdafruitSensor sensor;
+    private final AdafruitScheduler scheduler;
+
+    /**
+     * @param sensor connected sensor
+     */
+    public AdafruitLibraryBackup(AdafruitSensor sensor) {
+        this.sensor = sensor;
+        this.scheduler = null;
+    }
+
+    /**
+     * @param scheduler running scheduler of connected sensor
+     */
+    public AdafruitLibraryBackup(AdafruitScheduler scheduler) {
+        this.sensor = null;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Export all stored models to the sink, in order of their positions.
+     *
+     * @param sink receiving the models, called from background thread
+     * @param listener notified after each model, can be null
+     * @return number of exported models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     * @throws IOException if the sink fails
+     */
+    public int export(TemplateSink sink, ProgressListener listener) throws FingerprintException, IOException {
+        BitSet occupied = execute(sensor -> sensor.getTemplateCount() == 0 ? new BitSet() : sensor.readIndexTable(sensor.getLibrarySize()));
+        int total = occupied.cardinality();
+        Pipeline pipeline = new Pipeline();
+        Thread writer = new Thread(() -> pipeline.write(sink), "fingerprint-backup");
+        writer.setDaemon(true);
+        writer.start();
+        int done = 0;
+        try {
+            for (int slot = occupied.nextSetBit(0); slot >= 0; slot = occupied.nextSetBit(slot + 1)) {
+                Record record = pipeline.take(pipeline.free);
+                pipeline.checkError();
+                int number = slot;
+                execute(sensor -> {
+                    sensor.loadModel(number, 1);
+                    ((Buffer) record.data).clear();
+                    sensor.uploadModel(1, record.data);
+                    ((Buffer) record.data).flip();
+                    return null;
+                });
+                record.slot = slot;
+                pipeline.full.add(record);
+                if (listener != null) {
+                    listener.onProgress(++done, total);
+                }
+            }
+        } finally {
+            pipeline.full.add(Pipeline.END);
+            pipeline.join(writer);
+        }
+        pipeline.checkError();
+        logger.debug("Exported " + total + " models");
+        return total;
+    }
+
+    /**
+     * Export all stored models to backup file.
+     *
+     * @param file path to the backup file, which is overwritten
+     * @param listener notified after each model, can be null
+     * @return number of exported models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     * @throws IOException if the file can't be written
+     */
+    public int exportToFile(Path file, ProgressListener listener) throws FingerprintException, IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileSink sink = new FileSink(channel);
+            int count = export(sink, listener);
+            sink.finish(count);
+            channel.force(true);
+            return count;
+        }
+    }
+
+    /**
+     * Store all models from the source to sensor's internal memory. Other
+     * positions are not changed.
+     *
+     * @param source of the models, called from background thread
+     * @param listener notified after each model (total is -1 if unknown), can
+     * be null
+     * @return number of restored models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     * @throws IOException if the source fails
+     */
+    public int restore(TemplateSource source, ProgressListener listener) throws FingerprintException, IOException {
+        Pipeline pipeline = new Pipeline();
+        Thread reader = new Thread(() -> pipeline.read(source), "fingerprint-restore");
+        reader.setDaemon(true);
+        reader.start();
+        int done = 0;
+        try {
+            Record record;
+            while ((record = pipeline.take(pipeline.full)) != Pipeline.END) {
+                Record current = record;
+                execute(sensor -> {
+                    sensor.downloadModel(current.data, 1);
+                    sensor.storeModel(1, current.slot);
+                    return null;
+                });
+                pipeline.free.add(record);
+                done++;
+                if (listener != null) {
+                    listener.onProgress(done, -1);
+                }
+            }
+        } finally {
+            reader.interrupt();
+            pipeline.join(reader);
+        }
+        pipeline.checkError();
+        logger.debug("Restored " + done + " models");
+        return done;
+    }
+
+    /**
+     * Store all models from backup file to sensor's internal memory. Other
+     * positions are not changed.
+     *
+     * @param file path to the backup file
+     * @param listener notified after each model (total is -1), can be null
+     * @return number of restored models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     * @throws IOException if the file can't be read or is corrupted
+     */
+    public int restoreFromFile(Path file, ProgressListener listener) throws FingerprintException, IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return restore(new FileSource(channel), listener);
+        }
+    }
+
+    private <T> T execute(SensorTask<T> task) throws FingerprintException {
+        return scheduler != null ? scheduler.execute(Priority.LOW, task) : task.run(sensor);
+    }
+
+    private static class Record {
+
+        private final ByteBuffer data;
+        private int slot;
+
+        private Record(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Buffers passed between the sensor thread and the background thread:
+     * free buffers and buffers with a model.
+     */
+    private static class Pipeline {
+
+        private static final Record END = new Record(null);
+
+        private final BlockingQueue<Record> free = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Record> full = new LinkedBlockingQueue<>();
+        private volatile IOException error;
+
+        private Pipeline() {
+            for (int i = 0; i < BUFFERS; i++) {
+                free.add(new Record(ByteBuffer.allocate(MAX_MODEL_SIZE)));
+            }
+        }
+
+        private Record take(BlockingQueue<Record> queue) throws IOException {
+            try {
+                return queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for buffer");
+            }
+        }
+
+        private void checkError() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void join(Thread thread) throws IOException {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for background thread");
+            }
+        }
+
+        /**
+         * Write models until end, after error only return buffers.
+         */
+        private void write(TemplateSink sink) {
+            try {
+                Record record;
+                while ((record = full.take()) != END) {
+                    if (error == null) {
+                        try {
+                            sink.write(record.slot, record.data);
+                        } catch (IOException ex) {
+                            error = ex;
+                        } catch (RuntimeException ex) {
+                            error = new IOException("Template sink failed", ex);
+                        }
+                    }
+                    free.add(record);
+                }
+            } catch (InterruptedException ex) {
+                error = new InterruptedIOException("Backup was interrupted");
+            }
+        }
+
+        /**
+         * Read models until end of source or error.
+         */
+        private void read(TemplateSource source) {
+            try {
+                while (true) {
+                    Record record = free.take();
+                    ((Buffer) record.data).clear();
+                    int slot = source.read(record.data);
+                    if (slot < 0) {
+                        break;
+                    }
+                    ((Buffer) record.data).flip();
+                    record.slot = slot;
+                    full.add(record);
+                }
+            } catch (InterruptedException ex) {
+                return; // Restore was stopped
+            } catch (IOException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = new IOException("Template source failed", ex);
+            }
+            full.add(END);
+        }
+    }
+
+    private static class FileSink implements TemplateSink {
+
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private final ByteBuffer[] buffers = new ByteBuffer[2];
+        private final CRC32 crc = new CRC32();
+
+        private FileSink(FileChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+            ((Buffer) fileHeader).flip();
+            writeFully(fileHeader);
+        }
+
+        @Override
+        public void write(int slot, ByteBuffer model) throws IOException {
+            crc.reset();
+            crc.update(model.array(), model.arrayOffset() + model.position(), model.remaining());
+            ((Buffer) header).clear();
+            header.putShort((short) slot).putShort((short) model.remaining()).putInt((int) crc.getValue());
+            ((Buffer) header).flip();
+            buffers[0] = header;
+            buffers[1] = model;
+            while (header.hasRemaining() || model.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+
+        private void finish(int count) throws IOException {
+            ((Buffer) header).clear();
+            header.putShort((short) TRAILER).putShort((short) 0).putInt(count);
+            ((Buffer) header).flip();
+            writeFully(header);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static class FileSource implements TemplateSource {
+
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private int count;
+
+        private FileSource(FileChannel channel) throws IOException {
+            this.channel = channel;
+            readHeader();
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("File is not a fingerprint backup");
+            }
+            if (header.getShort(4) != VERSION) {
+                throw new IOException("Unsupported backup version " + header.getShort(4));
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer model) throws IOException {
+            readHeader();
+            int slot = header.getShort(0) & 0xFFFF;
+            int length = header.getShort(2) & 0xFFFF;
+            if (slot == TRAILER) {
+                if (header.getInt(4) != count) {
+                    throw new IOException("Backup has " + count + " records, expected " + header.getInt(4));
+                }
+                return -1;
+            }
+            if (length > model.remaining()) {
+                throw new IOException("Record at position " + slot + " is too long: " + length);
+            }
+            int start = model.position();
+            ((Buffer) model).limit(start + length);
+            readFully(model);
+            crc.reset();
+            crc.update(model.array(), model.arrayOffset() + start, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                throw new IOException("Record at position " + slot + " is corrupted");
+            }
+            count++;
+            return slot;
+        }
+
+        private void readHeader() throws IOException {
+            ((Buffer) header).clear();
+            readFully(header);
+            ((Buffer) header).flip();
+        }
+
+        /**
+         * Fill the buffer from its position to its limit.
+         */
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Backup file is truncated");
+                }
+            }
+        }
+    }
+}
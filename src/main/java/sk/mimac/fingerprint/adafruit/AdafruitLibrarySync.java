@@ -0,0 +1,227 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.Priority;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.SensorTask;
+import sk.mimac.fingerprint.store.TemplateStore;
+
+/**
+ * Synchronizes whole library of fingerprint models to the sensor, sending
+ * only the difference. Occupied positions are read from the sensor's index
+ * table; models which are missing are uploaded and positions which shouldn't
+ * be occupied are deleted (in as few ranges as possible). To detect changed models the class
+ * remembers digest of each model it saved, positions occupied by models with
+ * unknown digest are always overwritten.
+ * <p>
+ * Digests can be persisted between restarts through
+ * {@link #getDigests() getDigests} and
+ * {@link #AdafruitLibrarySync(AdafruitSensor, Map) constructor}.
+ * <p>
+ * When constructed with {@link AdafruitScheduler}, reading of the index table
+ * and each upload or delete are submitted as separate
+ * {@link Priority#LOW low} priority tasks, so identification can run between
+ * them. Synchronization then has to be called from another thread than the
+ * scheduler's.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitLibrarySync {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitLibrarySync.class);
+
+    private final AdafruitSensor sensor;
+    private final AdafruitScheduler scheduler;
+    private final Map<Integer, Long> digests;
+
+    public AdafruitLibrarySync(AdafruitSensor sensor) {
+        this(sensor, new HashMap<>());
+    }
+
+    /**
+     * @param sensor connected sensor
+     * @param digests digests of models saved in the sensor, from previous
+     * synchronization
+     */
+    public AdafruitLibrarySync(AdafruitSensor sensor, Map<Integer, Long> digests) {
+        this.sensor = sensor;
+        this.scheduler = null;
+        this.digests = new HashMap<>(digests);
+    }
+
+    public AdafruitLibrarySync(AdafruitScheduler scheduler) {
+        this(scheduler, new HashMap<>());
+    }
+
+    /**
+     * @param scheduler running scheduler of connected sensor
+     * @param digests digests of models saved in the sensor, from previous
+     * synchronization
+     */
+    public AdafruitLibrarySync(AdafruitScheduler scheduler, Map<Integer, Long> digests) {
+        this.sensor = null;
+        this.scheduler = scheduler;
+        this.digests = new HashMap<>(digests);
+    }
+
+    /**
+     * @return digests of models saved in the sensor (position to digest)
+     */
+    public Map<Integer, Long> getDigests() {
+        return new HashMap<>(digests);
+    }
+
+    /**
+     * Synchronize the sensor's library, so that it contains exactly given
+     * models.
+     *
+     * @param library models by position in sensor's internal memory
+     * @param listener notified after each upload or delete, can be null
+     * @return summary of performed changes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public Result syncLibrary(Map<Integer, byte[]> library, ProgressListener listener) throws FingerprintException {
+        Map<Integer, Long> libraryDigests = new HashMap<>();
+        for (Map.Entry<Integer, byte[]> entry : library.entrySet()) {
+            libraryDigests.put(entry.getKey(), digest(entry.getValue()));
+        }
+        return syncLibrary(libraryDigests, library::get, listener);
+    }
+
+    /**
+     * Synchronize the sensor's library, so that it contains exactly given
+     * models. Models are loaded only when they have to be uploaded, so the
+     * library can be e.g. backed by {@link TemplateStore}.
+     *
+     * @param library digests of models by position in sensor's internal memory
+     * @param loader loads model for given position
+     * @param listener notified after each upload or delete, can be null
+     * @return summary of performed changes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public Result syncLibrary(Map<Integer, Long> library, IntFunction<byte[]> loader, ProgressListener listener) throws FingerprintException {
+        int librarySize = execute(sensor -> sensor.readParameters().getLibrarySize());
+        for (Integer number : library.keySet()) {
+            if (number < 0 || number >= librarySize) {
+                throw new IllegalArgumentException("Position " + number + " is out of library size " + librarySize);
+            }
+        }
+        BitSet occupied = execute(sensor -> sensor.getTemplateCount() == 0 ? new BitSet() : sensor.readIndexTable(librarySize));
+
+        List<Integer> uploads = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : library.entrySet()) {
+            Long digest = digests.get(entry.getKey());
+            if (!occupied.get(entry.getKey()) || !entry.getValue().equals(digest)) {
+                uploads.add(entry.getKey());
+            }
+        }
+        BitSet deletes = (BitSet) occupied.clone();
+        for (Integer number : library.keySet()) {
+            deletes.clear(number);
+        }
+        // Ranges can span free positions, only kept models split them
+        BitSet kept = (BitSet) occupied.clone();
+        kept.andNot(deletes);
+        List<int[]> ranges = AdafruitSlotAllocator.coalesce(deletes, kept);
+
+        int total = uploads.size() + ranges.size();
+        int done = 0;
+        logger.debug("Synchronizing library: " + uploads.size() + " uploads, " + deletes.cardinality() + " deletes");
+        for (int[] range : ranges) {
+            execute(sensor -> {
+                sensor.deleteModels(range[0], range[1]);
+                return null;
+            });
+            for (int i = range[0]; i < range[0] + range[1]; i++) {
+                digests.remove(i);
+            }
+            notify(listener, ++done, total);
+        }
+        for (Integer number : uploads) {
+            byte[] model = loader.apply(number);
+            digests.remove(number);
+            execute(sensor -> {
+                sensor.saveModel(model, number);
+                return null;
+            });
+            digests.put(number, library.get(number));
+            notify(listener, ++done, total);
+        }
+        digests.keySet().retainAll(library.keySet());
+        return new Result(uploads.size(), deletes.cardinality(), library.size() - uploads.size());
+    }
+
+    private <T> T execute(SensorTask<T> task) throws FingerprintException {
+        return scheduler != null ? scheduler.execute(Priority.LOW, task) : task.run(sensor);
+    }
+
+    private static void notify(ProgressListener listener, int done, int total) {
+        if (listener != null) {
+            listener.onProgress(done, total);
+        }
+    }
+
+    /**
+     * Compute digest of fingerprint model, same as
+     * {@link TemplateStore#digest(byte[])}.
+     *
+     * @param model of fingerprint
+     * @return digest
+     */
+    public static long digest(byte[] model) {
+        return TemplateStore.digest(model);
+    }
+
+    /**
+     * Receives progress of synchronization.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param done number of finished operations
+         * @param total number of all operations
+         */
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * Summary of synchronization.
+     */
+    public static class Result {
+
+        private final int uploaded;
+        private final int deleted;
+        private final int unchanged;
+
+        public Result(int uploaded, int deleted, int unchanged) {
+            this.uploaded = uploaded;
+            this.deleted = deleted;
+            this.unchanged = unchanged;
+        }
+
+        public int getUploaded() {
+            return uploaded;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{uploaded=" + uploaded + ", deleted=" + deleted + ", unchanged=" + unchanged + '}';
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of communication with one sensor, by command code: number of
+ * calls, latency (from sending the command until its acknowledge is
+ * received), bytes sent and received, timeouts, and also number of invalid
+ * packets, retries, reconnections and distribution of match confidence.
+ * <p>
+ * All counters are atomic and preallocated, so recording doesn't lock or
+ * allocate memory. Latencies are kept in histogram with logarithmic buckets
+ * (8 buckets per power of two microseconds), so percentiles have precision of
+ * about 12 %.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitMetrics implements AdafruitMetricsMXBean {
+
+    /**
+     * Number of tracked command codes, codes above are counted as 0.
+     */
+    private static final int COMMANDS = 0x40;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * 28;
+    private static final int CONFIDENCE_BUCKET = 10;
+    private static final int CONFIDENCE_BUCKETS = 32;
+
+    private final AtomicLongArray calls = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray timeouts = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray bytesSent = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray bytesReceived = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray totalLatency = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray maxLatency = new AtomicLongArray(COMMANDS);
+    private final AtomicLongArray latencies = new AtomicLongArray(COMMANDS * BUCKETS);
+    private final AtomicLongArray confidences = new AtomicLongArray(CONFIDENCE_BUCKETS);
+    private final AtomicLong badPackets = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private ObjectName objectName;
+
+    private static int index(int command) {
+        return command >= 0 && command < COMMANDS ? command : 0;
+    }
+
+    /**
+     * @param micros latency in microseconds
+     * @return index of histogram bucket
+     */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * @param bucket index of histogram bucket
+     * @return highest latency in microseconds which falls into the bucket
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void recordCommand(int command, long nanos) {
+        int index = index(command);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        calls.incrementAndGet(index);
+        totalLatency.addAndGet(index, micros);
+        latencies.incrementAndGet(index * BUCKETS + bucket(micros));
+        long max;
+        while (micros > (max = maxLatency.get(index)) && !maxLatency.compareAndSet(index, max, micros)) {
+            // Retry until maximum is updated
+        }
+    }
+
+    public void recordTimeout(int command) {
+        timeouts.incrementAndGet(index(command));
+    }
+
+    public void recordSent(int command, int bytes) {
+        bytesSent.addAndGet(index(command), bytes);
+    }
+
+    public void recordReceived(int command, int bytes) {
+        bytesReceived.addAndGet(index(command), bytes);
+    }
+
+    public void recordBadPacket() {
+        badPackets.incrementAndGet();
+    }
+
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public void recordReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    public void recordConfidence(int confidence) {
+        confidences.incrementAndGet(Math.min(CONFIDENCE_BUCKETS - 1, Math.max(confidence, 0) / CONFIDENCE_BUCKET));
+    }
+
+    @Override
+    public List<CommandStatistics> getCommands() {
+        List<CommandStatistics> result = new ArrayList<>();
+        for (int command = 0; command < COMMANDS; command++) {
+            long count = calls.get(command);
+            if (count == 0 && timeouts.get(command) == 0 && bytesSent.get(command) == 0) {
+                continue;
+            }
+            long[] histogram = new long[BUCKETS];
+            long total = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                histogram[bucket] = latencies.get(command * BUCKETS + bucket);
+                total += histogram[bucket];
+            }
+            long max = maxLatency.get(command);
+            result.add(new CommandStatistics(command, count, timeouts.get(command),
+                    bytesSent.get(command), bytesReceived.get(command),
+                    count > 0 ? totalLatency.get(command) / count : 0,
+                    Math.min(max, percentile(histogram, total, 0.5)), Math.min(max, percentile(histogram, total, 0.99)), max));
+        }
+        return result;
+    }
+
+    /**
+     * @param command code of the command from {@link AdafruitConstants}
+     * @return statistics of the command or null if it wasn't used
+     */
+    public CommandStatistics getCommand(int command) {
+        for (CommandStatistics statistics : getCommands()) {
+            if (statistics.getCommand() == command) {
+                return statistics;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param command code of the command from {@link AdafruitConstants}
+     * @return number of completed calls of the command
+     */
+    public long getCalls(int command) {
+        return calls.get(index(command));
+    }
+
+    /**
+     * Compute latency percentile of one command, without allocating memory.
+     *
+     * @param command code of the command from {@link AdafruitConstants}
+     * @param percentile from 0 to 1
+     * @return latency in microseconds, 0 if the command wasn't used
+     */
+    public long getLatencyPercentile(int command, double percentile) {
+        int index = index(command);
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += latencies.get(index * BUCKETS + bucket);
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long sum = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            sum += latencies.get(index * BUCKETS + bucket);
+            if (sum >= threshold && sum > 0) {
+                return Math.min(maxLatency.get(index), bucketLimit(bucket));
+            }
+        }
+        return 0;
+    }
+
+    private static long percentile(long[] histogram, long total, double percentile) {
+        long threshold = (long) Math.ceil(total * percentile);
+        long sum = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            sum += histogram[bucket];
+            if (sum >= threshold && sum > 0) {
+                return bucketLimit(bucket);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getBadPackets() {
+        return badPackets.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        long sum = 0;
+        for (int i = 0; i < COMMANDS; i++) {
+            sum += timeouts.get(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    @Override
+    public long[] getConfidenceHistogram() {
+        long[] result = new long[CONFIDENCE_BUCKETS];
+        for (int i = 0; i < CONFIDENCE_BUCKETS; i++) {
+            result[i] = confidences.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLongArray array : new AtomicLongArray[]{calls, timeouts, bytesSent, bytesReceived, totalLatency, maxLatency, latencies, confidences}) {
+            for (int i = 0; i < array.length(); i++) {
+                array.set(i, 0);
+            }
+        }
+        badPackets.set(0);
+        retries.set(0);
+        reconnects.set(0);
+    }
+
+    /**
+     * Register the metrics as MBean to platform MBean server, with object
+     * name {@code sk.mimac.fingerprint:type=AdafruitSensor,name=<name>}.
+     *
+     * @param name of the sensor
+     * @throws JMException if the MBean can't be registered
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName("sk.mimac.fingerprint:type=AdafruitSensor,name=" + ObjectName.quote(name));
+        server.registerMBean(this, newName);
+        objectName = newName;
+    }
+
+    /**
+     * Unregister the MBean, if it's registered.
+     *
+     * @throws JMException if the MBean can't be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+}
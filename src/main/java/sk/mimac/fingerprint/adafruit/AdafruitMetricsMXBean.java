@@ -0,0 +1,47 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link AdafruitMetrics}.
+ *
+ * @author Milan Fabian
+ */
+public interface AdafruitMetricsMXBean {
+
+    /**
+     * @return statistics of each used command
+     */
+    List<CommandStatistics> getCommands();
+
+    /**
+     * @return number of received packets with bad checksum, address or length
+     */
+    long getBadPackets();
+
+    /**
+     * @return number of commands without reply in time (all commands)
+     */
+    long getTimeouts();
+
+    /**
+     * @return number of automatically repeated commands
+     */
+    long getRetries();
+
+    /**
+     * @return number of successful reconnections after connection was lost
+     */
+    long getReconnects();
+
+    /**
+     * @return number of matches by confidence, in buckets of 10 (last bucket
+     * contains all higher confidences)
+     */
+    long[] getConfidenceHistogram();
+
+    /**
+     * Reset all statistics to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,373 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import sk.mimac.fingerprint.FingerprintException;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * Encoder and decoder of packets of the sensor's serial protocol. A packet
+ * consists of start code (2 bytes), address (4 bytes), packet type (1 byte),
+ * length (2 bytes), payload and checksum (2 bytes), where length counts the
+ * payload and the checksum and checksum is the sum of packet type, length and
+ * payload bytes.
+ * <p>
+ * When decoded packet is invalid (e.g. a byte was lost and the decoder
+ * started on something looking like start code), the decoder resynchronizes:
+ * bytes of the invalid packet following its start are decoded again, so a
+ * valid packet inside them is not lost.
+ * <p>
+ * All buffers are allocated once, so encoding and decoding of packets doesn't
+ * allocate any memory. Buffers returned by this class are reused by the next
+ * call, so they must not be stored. The class is not thread-safe.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitPacketCodec {
+
+    public static final int DEFAULT_ADDRESS = 0xFFFFFFFF;
+    public static final int HEADER_SIZE = 9;
+    public static final int CHECKSUM_SIZE = 2;
+    public static final int MAX_PAYLOAD_SIZE = 256 + 32;
+
+    private static final int STATE_START_HIGH = 0;
+    private static final int STATE_START_LOW = 1;
+    private static final int STATE_ADDRESS = 2;
+    private static final int STATE_TYPE = 3;
+    private static final int STATE_LENGTH = 4;
+    private static final int STATE_PAYLOAD = 5;
+    private static final int STATE_CHECKSUM = 6;
+
+    private final int address;
+    private final ByteBuffer frame;
+
+    private ByteBuffer payload;
+    private ByteBuffer payloadView;
+    // Bytes of packet being decoded, for resynchronization
+    private byte[] raw;
+    private int rawLength;
+    // Bytes which have to be decoded again after invalid packet
+    private byte[] replay;
+    private byte[] spare;
+    private int replayStart;
+    private int replayEnd;
+
+    private int state = STATE_START_HIGH;
+    private int counter;
+    private int frameAddress;
+    private byte frameType;
+    private int frameLength;
+    private int frameChecksum;
+    private int checksum;
+
+    private byte packetType;
+    private int payloadLength;
+
+    public AdafruitPacketCodec() {
+        this(DEFAULT_ADDRESS);
+    }
+
+    /**
+     * @param address of the sensor, which is written to encoded packets and
+     * expected in decoded packets
+     */
+    public AdafruitPacketCodec(int address) {
+        this.address = address;
+        this.frame = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD_SIZE + CHECKSUM_SIZE);
+        setPayloadBuffer(ByteBuffer.allocate(MAX_PAYLOAD_SIZE));
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    // --- Encoding ---
+
+    /**
+     * Start encoding of new packet. Payload should be written to the returned
+     * buffer and then {@link #finish() finish} should be called.
+     *
+     * @param type of packet
+     * @return buffer to which payload should be written
+     */
+    public ByteBuffer begin(byte type) {
+        ((Buffer) frame).clear();
+        frame.putShort((short) FINGERPRINT_STARTCODE);
+        frame.putInt(address);
+        frame.put(type);
+        frame.putShort((short) 0); // length, filled in finish()
+        return frame;
+    }
+
+    /**
+     * Finish encoding of packet started by {@link #begin(byte) begin}.
+     *
+     * @return buffer with whole encoded packet, with array accessible through
+     * {@link ByteBuffer#array()}
+     */
+    public ByteBuffer finish() {
+        int payloadSize = frame.position() - HEADER_SIZE;
+        int length = payloadSize + CHECKSUM_SIZE;
+        frame.putShort(7, (short) length);
+        int sum = (frame.get(6) & 0xFF) + (length >> 8) + (length & 0xFF);
+        byte[] array = frame.array();
+        for (int i = HEADER_SIZE; i < HEADER_SIZE + payloadSize; i++) {
+            sum += array[i] & 0xFF;
+        }
+        frame.putShort((short) sum);
+        ((Buffer) frame).flip();
+        return frame;
+    }
+
+    /**
+     * Encode whole packet.
+     *
+     * @param type of packet
+     * @param data payload of the packet
+     * @param offset of payload in data
+     * @param length of payload
+     * @return buffer with whole encoded packet
+     */
+    public ByteBuffer encode(byte type, byte[] data, int offset, int length) {
+        begin(type).put(data, offset, length);
+        return finish();
+    }
+
+    // --- Decoding ---
+
+    /**
+     * Set buffer to which payloads of decoded packets will be written
+     * (starting at position 0). Default buffer has capacity
+     * {@link #MAX_PAYLOAD_SIZE}.
+     *
+     * @param buffer target buffer
+     */
+    public void setPayloadBuffer(ByteBuffer buffer) {
+        this.payload = buffer;
+        this.payloadView = buffer.duplicate();
+        ((Buffer) this.payloadView).limit(0);
+        int frameSize = HEADER_SIZE + buffer.capacity() + CHECKSUM_SIZE;
+        this.raw = new byte[frameSize];
+        this.replay = new byte[frameSize + 1];
+        this.spare = new byte[frameSize + 1];
+        reset();
+    }
+
+    /**
+     * Discard partially decoded packet, next decoded byte has to be start of
+     * new packet.
+     */
+    public void reset() {
+        state = STATE_START_HIGH;
+        rawLength = 0;
+        replayStart = 0;
+        replayEnd = 0;
+    }
+
+    /**
+     * Decode one byte. If bytes of an invalid packet are waiting to be decoded
+     * again, they are decoded first.
+     *
+     * @param data received byte
+     * @return true if a packet was completed
+     * @throws FingerprintException if completed packet is invalid
+     */
+    public boolean decode(byte data) throws FingerprintException {
+        if (replayStart == replayEnd) {
+            return step(data);
+        }
+        if (replayEnd == replay.length) {
+            System.arraycopy(replay, replayStart, replay, 0, replayEnd - replayStart);
+            replayEnd -= replayStart;
+            replayStart = 0;
+        }
+        replay[replayEnd++] = data;
+        return decodeReplay();
+    }
+
+    private boolean decodeReplay() throws FingerprintException {
+        while (replayStart < replayEnd) {
+            if (step(replay[replayStart++])) {
+                return true;
+            }
+        }
+        replayStart = 0;
+        replayEnd = 0;
+        return false;
+    }
+
+    private boolean step(byte data) throws FingerprintException {
+        if (state == STATE_START_HIGH || (state == STATE_START_LOW && (data & 0xFF) == (FINGERPRINT_STARTCODE >> 8))) {
+            rawLength = 0;
+        }
+        raw[rawLength++] = data;
+        try {
+            return transition(data);
+        } catch (FingerprintException ex) {
+            resynchronize();
+            throw ex;
+        }
+    }
+
+    /**
+     * Schedule bytes of invalid packet, except its first byte, to be decoded
+     * again before not yet decoded bytes.
+     */
+    private void resynchronize() {
+        int pending = replayEnd - replayStart;
+        int count = rawLength - 1;
+        System.arraycopy(raw, 1, spare, 0, count);
+        System.arraycopy(replay, replayStart, spare, count, pending);
+        byte[] swap = replay;
+        replay = spare;
+        spare = swap;
+        replayStart = 0;
+        replayEnd = count + pending;
+        rawLength = 0;
+        state = STATE_START_HIGH;
+    }
+
+    private boolean transition(byte data) throws FingerprintException {
+        int value = data & 0xFF;
+        switch (state) {
+            case STATE_START_HIGH:
+                if (value == (FINGERPRINT_STARTCODE >> 8)) {
+                    state = STATE_START_LOW;
+                }
+                return false;
+            case STATE_START_LOW:
+                if (value == (FINGERPRINT_STARTCODE & 0xFF)) {
+                    state = STATE_ADDRESS;
+                    counter = 0;
+                    frameAddress = 0;
+                } else if (value != (FINGERPRINT_STARTCODE >> 8)) {
+                    state = STATE_START_HIGH;
+                }
+                return false;
+            case STATE_ADDRESS:
+                frameAddress = (frameAddress << 8) | value;
+                if (++counter == 4) {
+                    state = STATE_TYPE;
+                }
+                return false;
+            case STATE_TYPE:
+                frameType = data;
+                checksum = value;
+                state = STATE_LENGTH;
+                counter = 0;
+                frameLength = 0;
+                return false;
+            case STATE_LENGTH:
+                frameLength = (frameLength << 8) | value;
+                checksum += value;
+                if (++counter == 2) {
+                    if (frameLength < CHECKSUM_SIZE || frameLength - CHECKSUM_SIZE > payload.capacity()) {
+                        state = STATE_START_HIGH;
+                        throw new FingerprintException("Bad packet length " + frameLength, "sensor.bad.data");
+                    }
+                    state = frameLength == CHECKSUM_SIZE ? STATE_CHECKSUM : STATE_PAYLOAD;
+                    counter = 0;
+                    frameChecksum = 0;
+                }
+                return false;
+            case STATE_PAYLOAD:
+                payload.put(counter++, data);
+                checksum += value;
+                if (counter == frameLength - CHECKSUM_SIZE) {
+                    state = STATE_CHECKSUM;
+                    counter = 0;
+                    frameChecksum = 0;
+                }
+                return false;
+            case STATE_CHECKSUM:
+                frameChecksum = (frameChecksum << 8) | value;
+                if (++counter < 2) {
+                    return false;
+                }
+                state = STATE_START_HIGH;
+                return complete();
+            default:
+                throw new IllegalStateException("Unknown state " + state);
+        }
+    }
+
+    /**
+     * Decode bytes from buffer until whole packet is decoded or buffer has no
+     * remaining bytes. Bytes after the packet are left in the buffer.
+     *
+     * @param buffer received bytes
+     * @return true if a packet was completed
+     * @throws FingerprintException if completed packet is invalid
+     */
+    public boolean decode(ByteBuffer buffer) throws FingerprintException {
+        if (decodeReplay()) {
+            return true;
+        }
+        while (buffer.hasRemaining()) {
+            if (step(buffer.get())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean complete() throws FingerprintException {
+        if ((checksum & 0xFFFF) != frameChecksum) {
+            throw new FingerprintException("Bad packet checksum " + Integer.toHexString(frameChecksum)
+                    + ", expected " + Integer.toHexString(checksum & 0xFFFF), "sensor.bad.data");
+        }
+        if (frameAddress != address) {
+            throw new FingerprintException("Bad packet address " + Integer.toHexString(frameAddress), "sensor.bad.data");
+        }
+        packetType = frameType;
+        payloadLength = frameLength - CHECKSUM_SIZE;
+        return true;
+    }
+
+    /**
+     * @return type of last decoded packet
+     */
+    public byte getPacketType() {
+        return packetType;
+    }
+
+    /**
+     * @return length of payload of last decoded packet
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Returns view of payload of last decoded packet, without copying it. The
+     * view shares content with payload buffer and is valid only until next
+     * packet is decoded.
+     *
+     * @return buffer with position 0 and limit at the end of the payload
+     */
+    public ByteBuffer payload() {
+        // Cast to Buffer keeps the code binary compatible with Java 8
+        ((Buffer) payloadView).limit(payloadLength).position(0);
+        return payloadView;
+    }
+
+    /**
+     * @return packet type and payload of last decoded packet as hex string
+     * (for diagnostic messages)
+     */
+    public String toHex() {
+        StringBuilder builder = new StringBuilder((payloadLength + 1) * 3);
+        appendHex(builder, packetType);
+        for (int i = 0; i < payloadLength; i++) {
+            appendHex(builder, payload.get(i));
+        }
+        return builder.toString();
+    }
+
+    private static final char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+    private static void appendHex(StringBuilder builder, byte data) {
+        int v = data & 0xFF;
+        builder.append(hexArray[v >>> 4]).append(hexArray[v & 0x0F]).append(' ');
+    }
+}
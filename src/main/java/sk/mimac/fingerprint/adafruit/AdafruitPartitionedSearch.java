@@ -0,0 +1,322 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+
+/**
+ * Search which first searches small "hot" range of positions at the start of
+ * sensor's library and only if the finger isn't found there, searches the
+ * rest of the library. Search time of the sensor grows with the searched range,
+ * so frequent users are found faster.
+ * <p>
+ * The class counts hits of each user and {@link #rearrange(int) rearrange}
+ * moves the most frequent users into the hot range. Because models are moved
+ * in sensor's memory, users are identified by their ID, which is mapped to a
+ * position (slot) in the sensor. Initially the ID is equal to the slot; the
+ * mapping should be persisted by the caller ({@link #getSlots() getSlots})
+ * and used when saving new models ({@link #toSlot(int) toSlot}).
+ * <p>
+ * Rearranging uses sensor's first character buffer and needs a free position
+ * outside of the hot range, through which models are exchanged. It must not
+ * run between {@link AdafruitSensor#hasFingerprint() hasFingerprint} and
+ * {@link #search() search} (e.g. run it as a
+ * {@link AdafruitScheduler.Priority#LOW low} priority task).
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitPartitionedSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitPartitionedSearch.class);
+
+    /**
+     * Number of searches after which hit counts are halved, so that
+     * statistics follow changes in users' habits.
+     */
+    private static final int DECAY_INTERVAL = 4096;
+
+    private final AdafruitSensor sensor;
+    private final int librarySize;
+    private final int hotSize;
+    private final int[] slots;
+    private final int[] ids;
+    private final int[] hits;
+    // Positions with copies of models which couldn't be deleted
+    private final BitSet staleCopies = new BitSet();
+    private int searches;
+
+    /**
+     * @param sensor connected sensor
+     * @param hotSize number of positions in the hot range
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public AdafruitPartitionedSearch(AdafruitSensor sensor, int hotSize) throws FingerprintException {
+        if (hotSize < 1) {
+            throw new IllegalArgumentException("Invalid size of hot range: " + hotSize);
+        }
+        this.sensor = sensor;
+        this.librarySize = sensor.getLibrarySize();
+        this.hotSize = Math.min(hotSize, librarySize);
+        this.slots = new int[librarySize];
+        this.ids = new int[librarySize];
+        this.hits = new int[librarySize];
+        for (int i = 0; i < librarySize; i++) {
+            slots[i] = i;
+            ids[i] = i;
+        }
+    }
+
+    /**
+     * Search sensor's library for match with finger on which
+     * {@link AdafruitSensor#hasFingerprint() hasFingerprint} was called.
+     *
+     * @return ID of matched user together with match confidence or null if
+     * fingerprint doesn't match any stored fingerprint
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public SearchResult search() throws FingerprintException {
+        SearchResult result = sensor.search(0, hotSize);
+        if (result == null && hotSize < librarySize) {
+            result = sensor.search(hotSize, librarySize - hotSize);
+        }
+        if (result == null) {
+            return null;
+        }
+        int id;
+        synchronized (this) {
+            id = ids[result.getId()];
+            hits[id]++;
+            if (++searches >= DECAY_INTERVAL) {
+                searches = 0;
+                for (int i = 0; i < hits.length; i++) {
+                    hits[i] >>= 1;
+                }
+            }
+        }
+        return new SearchResult(id, result.getConfidence());
+    }
+
+    /**
+     * Move the most frequent users into the hot range.
+     *
+     * @param maxMoves maximal number of models to move, to limit duration
+     * @return number of moved models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int rearrange(int maxMoves) throws FingerprintException {
+        BitSet pending;
+        synchronized (this) {
+            pending = (BitSet) staleCopies.clone();
+        }
+        for (int slot = pending.nextSetBit(0); slot >= 0; slot = pending.nextSetBit(slot + 1)) {
+            sensor.deleteModels(slot, 1);
+            synchronized (this) {
+                staleCopies.clear(slot);
+            }
+        }
+        BitSet occupied = sensor.readIndexTable(librarySize);
+        List<Integer> frequent = new ArrayList<>();
+        synchronized (this) {
+            for (int id = 0; id < librarySize; id++) {
+                if (hits[id] > 0 && occupied.get(slots[id])) {
+                    frequent.add(id);
+                }
+            }
+            frequent.sort((a, b) -> Integer.compare(hits[b], hits[a]));
+        }
+        if (frequent.size() > hotSize) {
+            frequent = frequent.subList(0, hotSize);
+        }
+        BitSet wanted = new BitSet(librarySize);
+        for (Integer id : frequent) {
+            wanted.set(id);
+        }
+        int moves = 0;
+        for (Integer id : frequent) {
+            if (moves >= maxMoves) {
+                break;
+            }
+            if (slots[id] < hotSize) {
+                continue;
+            }
+            int victim = findVictim(wanted, occupied);
+            if (victim < 0) {
+                break;
+            }
+            if (!swap(victim, slots[id], occupied)) {
+                logger.warn("No free position for moving models");
+                break;
+            }
+            moves++;
+        }
+        logger.debug("Moved " + moves + " models to hot range");
+        return moves;
+    }
+
+    /**
+     * Find slot in the hot range, which is empty or occupied by the least
+     * frequent user which shouldn't be in the hot range.
+     */
+    private synchronized int findVictim(BitSet wanted, BitSet occupied) {
+        int victim = -1;
+        for (int slot = 0; slot < hotSize; slot++) {
+            if (!occupied.get(slot)) {
+                return slot;
+            }
+            if (!wanted.get(ids[slot]) && (victim < 0 || hits[ids[slot]] < hits[ids[victim]])) {
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Exchange model in the hot range with occupied position outside of it,
+     * through a free position outside of the hot range. Each model is copied
+     * before its position is overwritten, and after every copy users of the
+     * source and target positions are exchanged, so the mapping stays a
+     * permutation and every user maps to a position holding its model, even
+     * if a step fails.
+     *
+     * @return false if there is no free position for the exchange
+     */
+    private boolean swap(int first, int second, BitSet occupied) throws FingerprintException {
+        // Position holding copy of model which was already moved
+        int stale = -1;
+        try {
+            if (!occupied.get(first)) {
+                copy(second, first, occupied);
+                exchange(first, second);
+                stale = second;
+            } else {
+                int temp = occupied.nextClearBit(hotSize);
+                if (temp >= librarySize) {
+                    return false;
+                }
+                copy(first, temp, occupied);
+                exchange(first, temp);
+                stale = first;
+                copy(second, first, occupied);
+                exchange(first, second);
+                stale = second;
+                copy(temp, second, occupied);
+                exchange(second, temp);
+                stale = temp;
+            }
+            delete(stale, occupied);
+        } catch (FingerprintException ex) {
+            if (stale >= 0 && occupied.get(stale)) {
+                discard(stale, occupied);
+            }
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Delete stale copy of model after failure, so it isn't found by search
+     * under wrong user; if it fails, it's tried again by next rearrange.
+     */
+    private void discard(int slot, BitSet occupied) {
+        try {
+            delete(slot, occupied);
+        } catch (FingerprintException ex) {
+            logger.warn("Can't delete stale copy of model at position " + slot + ": " + ex.getMessage());
+            synchronized (this) {
+                staleCopies.set(slot);
+            }
+        }
+    }
+
+    /**
+     * Exchange users of two positions, after model of one of them was copied
+     * to the other one.
+     */
+    private synchronized void exchange(int first, int second) {
+        int firstId = ids[first];
+        ids[first] = ids[second];
+        ids[second] = firstId;
+        slots[ids[first]] = first;
+        slots[ids[second]] = second;
+    }
+
+    private void copy(int from, int to, BitSet occupied) throws FingerprintException {
+        sensor.loadModel(from, 1);
+        sensor.storeModel(1, to);
+        occupied.set(to);
+    }
+
+    private void delete(int slot, BitSet occupied) throws FingerprintException {
+        sensor.deleteModels(slot, 1);
+        occupied.clear(slot);
+    }
+
+    /**
+     * @param id of user
+     * @return position of user's model in sensor's internal memory
+     */
+    public synchronized int toSlot(int id) {
+        return slots[id];
+    }
+
+    /**
+     * @param slot position in sensor's internal memory
+     * @return ID of user whose model is on the position
+     */
+    public synchronized int toId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @return copy of mapping from user ID (index) to position in sensor's
+     * internal memory
+     */
+    public synchronized int[] getSlots() {
+        return slots.clone();
+    }
+
+    /**
+     * Restore persisted mapping.
+     *
+     * @param mapping from user ID (index) to position in sensor's internal
+     * memory, previously returned by {@link #getSlots() getSlots}
+     */
+    public synchronized void setSlots(int[] mapping) {
+        if (mapping.length != librarySize) {
+            throw new IllegalArgumentException("Mapping has " + mapping.length + " entries, library size is " + librarySize);
+        }
+        BitSet seen = new BitSet(librarySize);
+        for (int slot : mapping) {
+            if (slot < 0 || slot >= librarySize || seen.get(slot)) {
+                throw new IllegalArgumentException("Mapping is not a permutation of library positions");
+            }
+            seen.set(slot);
+        }
+        for (int id = 0; id < librarySize; id++) {
+            slots[id] = mapping[id];
+            ids[mapping[id]] = id;
+        }
+    }
+
+    /**
+     * @return copy of hit counts by user ID
+     */
+    public synchronized int[] getHits() {
+        return hits.clone();
+    }
+
+    /**
+     * Restore persisted hit counts.
+     *
+     * @param counts hit counts by user ID
+     */
+    public synchronized void setHits(int[] counts) {
+        System.arraycopy(counts, 0, hits, 0, Math.min(counts.length, hits.length));
+    }
+}
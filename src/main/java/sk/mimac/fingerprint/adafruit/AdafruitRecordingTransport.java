@@ -0,0 +1,74 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Transport which passes everything to another transport and records all
+ * written and read bytes with {@link AdafruitTraceRecorder}.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitRecordingTransport implements AdafruitTransport {
+
+    private final AdafruitTransport transport;
+    private final AdafruitTraceRecorder recorder;
+
+    /**
+     * @param transport which is used for communication
+     * @param recorder to which communication is recorded, isn't closed by
+     * this transport
+     */
+    public AdafruitRecordingTransport(AdafruitTransport transport, AdafruitTraceRecorder recorder) {
+        this.transport = transport;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void open() throws FingerprintException {
+        transport.open();
+        ByteBuffer baudRate = ByteBuffer.allocate(4).putInt(0, transport.getBaudRate());
+        recorder.record(AdafruitTraceRecorder.EVENT_OPEN, baudRate);
+    }
+
+    @Override
+    public int read(ByteBuffer target, long deadline) throws FingerprintException {
+        int start = target.position();
+        int count = transport.read(target, deadline);
+        if (count > 0) {
+            ByteBuffer read = target.duplicate();
+            ((Buffer) read).limit(start + count);
+            ((Buffer) read).position(start);
+            recorder.record(AdafruitTraceRecorder.EVENT_READ, read);
+        }
+        return count;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws FingerprintException {
+        recorder.record(AdafruitTraceRecorder.EVENT_WRITE, data);
+        transport.write(data);
+    }
+
+    @Override
+    public int getBaudRate() {
+        return transport.getBaudRate();
+    }
+
+    @Override
+    public boolean supportsBaudRate() {
+        return transport.supportsBaudRate();
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) {
+        transport.setBaudRate(baudRate);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+        recorder.record(AdafruitTraceRecorder.EVENT_CLOSE, null);
+    }
+}
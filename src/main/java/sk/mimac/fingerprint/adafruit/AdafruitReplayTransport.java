@@ -0,0 +1,289 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Transport which replays communication recorded by
+ * {@link AdafruitTraceRecorder}, so that a session with real sensor can be
+ * repeated without the hardware.
+ * <p>
+ * Every write consumes next recorded write (bytes which differ from the
+ * recording are counted as {@link #getMismatches() mismatches}) and then
+ * recorded reads are returned with the same delay after the write as in the
+ * recording, divided by {@link #setSpeed(double) speed}. Read bytes which
+ * weren't read until next write are dropped. Recorded closing of the
+ * connection fails reads and writes, so the sensor reconnects as it did during
+ * the recording.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitReplayTransport implements AdafruitTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitReplayTransport.class);
+
+    private final List<Path> files;
+
+    private double speed = 1;
+    private Iterator<Path> nextFiles;
+    private DataInputStream input;
+    private Event next;
+    private Event pending;
+    private int pendingOffset;
+    private int baudRate;
+    private long anchorNanos;
+    private long anchorRecorded;
+    private int mismatches;
+
+    /**
+     * @param files trace files, from the oldest (as returned by
+     * {@link AdafruitTraceRecorder#getFiles()})
+     */
+    public AdafruitReplayTransport(List<Path> files) {
+        this.files = new ArrayList<>(files);
+    }
+
+    /**
+     * @param speed how many times faster than recorded to replay, 0 for
+     * replaying without any delays
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    @Override
+    public void open() throws FingerprintException {
+        pending = null;
+        skipReads();
+        Event event = peek("sensor.cant.connect");
+        if (event != null && event.type == AdafruitTraceRecorder.EVENT_OPEN) {
+            next = null;
+            baudRate = event.data.length == 4 ? ByteBuffer.wrap(event.data).getInt() : 0;
+            anchor(event);
+        } else {
+            logger.debug("Trace doesn't contain opening of the connection");
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target, long deadline) throws FingerprintException {
+        if (pending == null) {
+            Event event = peek("sensor.cant.read");
+            if (event == null) {
+                throw new FingerprintException("End of trace", "sensor.cant.read");
+            }
+            if (event.type == AdafruitTraceRecorder.EVENT_CLOSE) {
+                throw new FingerprintException("Connection was closed in the trace", "sensor.cant.read");
+            }
+            if (event.type != AdafruitTraceRecorder.EVENT_READ) {
+                // Nothing was received in the recording either
+                sleepUntil(deadline);
+                return 0;
+            }
+            long due = speed == 0 ? System.nanoTime() : anchorNanos + (long) ((event.nanos - anchorRecorded) / speed);
+            if (due - deadline > 0) {
+                sleepUntil(deadline);
+                return 0;
+            }
+            sleepUntil(due);
+            next = null;
+            pending = event;
+            pendingOffset = 0;
+        }
+        int count = Math.min(target.remaining(), pending.data.length - pendingOffset);
+        target.put(pending.data, pendingOffset, count);
+        pendingOffset += count;
+        if (pendingOffset == pending.data.length) {
+            pending = null;
+        }
+        return count;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws FingerprintException {
+        pending = null;
+        skipReads();
+        Event event = peek("sensor.cant.write");
+        if (event == null) {
+            throw new FingerprintException("End of trace", "sensor.cant.write");
+        }
+        if (event.type != AdafruitTraceRecorder.EVENT_WRITE) {
+            throw new FingerprintException("Connection was closed in the trace", "sensor.cant.write");
+        }
+        next = null;
+        if (!data.equals(ByteBuffer.wrap(event.data))) {
+            mismatches++;
+            logger.debug("Written data differ from the trace at " + TimeUnit.NANOSECONDS.toMillis(event.nanos) + " ms");
+        }
+        ((Buffer) data).position(data.limit());
+        anchor(event);
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public boolean supportsBaudRate() {
+        return true;
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public void close() {
+        pending = null;
+        try {
+            skipReads();
+            Event event = peek("sensor.cant.read");
+            if (event != null && event.type == AdafruitTraceRecorder.EVENT_CLOSE) {
+                next = null;
+                anchor(event);
+            }
+        } catch (FingerprintException ex) {
+            logger.warn("Can't read trace: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Close currently read trace file and start again from the first one.
+     */
+    public void rewind() {
+        closeInput();
+        nextFiles = null;
+        next = null;
+        pending = null;
+        mismatches = 0;
+    }
+
+    /**
+     * @return number of writes which differed from the recording
+     */
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    private void anchor(Event event) {
+        anchorNanos = System.nanoTime();
+        anchorRecorded = event.nanos;
+    }
+
+    private void skipReads() throws FingerprintException {
+        int skipped = 0;
+        Event event;
+        while ((event = peek("sensor.cant.read")) != null && event.type == AdafruitTraceRecorder.EVENT_READ) {
+            skipped += event.data.length;
+            next = null;
+        }
+        if (skipped > 0) {
+            logger.debug("Dropped " + skipped + " unread bytes of the trace");
+        }
+    }
+
+    private void sleepUntil(long deadline) throws FingerprintException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new FingerprintException("Interrupted while replaying trace", "sensor.not.responding", ex);
+            }
+        }
+    }
+
+    /**
+     * @return next event of the trace (not consumed), null at the end of the
+     * trace
+     */
+    private Event peek(String errorKey) throws FingerprintException {
+        if (next != null) {
+            return next;
+        }
+        if (nextFiles == null) {
+            nextFiles = files.iterator();
+        }
+        try {
+            while (true) {
+                if (input == null) {
+                    if (!nextFiles.hasNext()) {
+                        return null;
+                    }
+                    openFile(nextFiles.next());
+                }
+                int type = input.read();
+                if (type >= 0) {
+                    next = new Event((byte) type, input.readLong(), new byte[input.readUnsignedShort()]);
+                    input.readFully(next.data);
+                    return next;
+                }
+                closeInput();
+            }
+        } catch (EOFException ex) {
+            logger.warn("Trace file is truncated");
+            closeInput();
+            return null;
+        } catch (IOException ex) {
+            throw new FingerprintException("Can't read trace: " + ex.getMessage(), errorKey, ex);
+        }
+    }
+
+    private void openFile(Path file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        if (input.readInt() != AdafruitTraceRecorder.MAGIC) {
+            closeInput();
+            throw new IOException(file + " isn't a trace file");
+        }
+        int version = input.readShort();
+        if (version != AdafruitTraceRecorder.VERSION) {
+            closeInput();
+            throw new IOException("Unsupported version " + version + " of trace file " + file);
+        }
+        input.readShort();
+        input.readLong();
+        logger.debug("Replaying trace from " + file);
+    }
+
+    private void closeInput() {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ex) {
+                logger.warn("Can't close trace file: " + ex);
+            }
+            input = null;
+        }
+    }
+
+    private static class Event {
+
+        private final byte type;
+        private final long nanos;
+        private final byte[] data;
+
+        private Event(byte type, long nanos, byte[] data) {
+            this.type = type;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.FingerprintListener;
+import sk.mimac.fingerprint.SearchResult;
+
+/**
+ * Background engine which scans the sensor for fingers and notifies listeners,
+ * so callers don't have to poll {@link AdafruitSensor#hasFingerprint()} in a
+ * loop. While the sensor is idle, polling interval grows up to the maximum
+ * interval; when a finger is detected, it drops back to the minimum interval.
+ * New finger is captured by {@link AdafruitCapture}, so unreadable finger is
+ * captured again within one touch. While the finger stays on the sensor only
+ * the image is captured (no feature extraction or search), until the finger
+ * is removed.
+ * <p>
+ * If the scanner is constructed with a sensor, it is the only user of the
+ * sensor while it is running, the sensor must not be used from other threads
+ * until {@link #stop() stop} is called. To share the sensor with other work,
+ * construct the scanner with {@link AdafruitScheduler}, then each scan is
+ * executed as a task with {@link AdafruitScheduler.Priority#HIGH high}
+ * priority.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitScanner implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitScanner.class);
+
+    private static final long ERROR_DELAY = 1000;
+
+    private static final int STEP_NO_FINGER = 0;
+    private static final int STEP_FINGER_PRESENT = 1;
+    private static final int STEP_FINGER_SCANNED = 2;
+    private static final int STEP_FINGER_UNREADABLE = 3;
+
+    private final AdafruitSensor sensor;
+    private final AdafruitScheduler scheduler;
+    private final long minInterval;
+    private final long maxInterval;
+    private final List<FingerprintListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<SearchResult>> waiting = new ArrayList<>();
+    private final Object lock = new Object();
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile AdafruitCapture capture;
+
+    /**
+     * Construct scanner with default polling intervals (20 ms to 200 ms).
+     *
+     * @param sensor connected sensor
+     */
+    public AdafruitScanner(AdafruitSensor sensor) {
+        this(sensor, 20, 200);
+    }
+
+    /**
+     * Construct scanner.
+     *
+     * @param sensor connected sensor
+     * @param minInterval polling interval in milliseconds used right after
+     * finger activity
+     * @param maxInterval polling interval in milliseconds used when sensor is
+     * idle for a longer time
+     */
+    public AdafruitScanner(AdafruitSensor sensor, long minInterval, long maxInterval) {
+        this(sensor, null, minInterval, maxInterval);
+    }
+
+    /**
+     * Construct scanner sharing the sensor through scheduler, with default
+     * polling intervals (20 ms to 200 ms).
+     *
+     * @param scheduler running scheduler of connected sensor
+     */
+    public AdafruitScanner(AdafruitScheduler scheduler) {
+        this(null, scheduler, 20, 200);
+    }
+
+    /**
+     * Construct scanner sharing the sensor through scheduler.
+     *
+     * @param scheduler running scheduler of connected sensor
+     * @param minInterval polling interval in milliseconds used right after
+     * finger activity
+     * @param maxInterval polling interval in milliseconds used when sensor is
+     * idle for a longer time
+     */
+    public AdafruitScanner(AdafruitScheduler scheduler, long minInterval, long maxInterval) {
+        this(null, scheduler, minInterval, maxInterval);
+    }
+
+    private AdafruitScanner(AdafruitSensor sensor, AdafruitScheduler scheduler, long minInterval, long maxInterval) {
+        if (minInterval < 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid polling intervals: " + minInterval + ", " + maxInterval);
+        }
+        this.sensor = sensor;
+        this.scheduler = scheduler;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    public void addListener(FingerprintListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FingerprintListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start scanning in background thread. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this::run, "fingerprint-scanner");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop scanning and wait for the background thread to finish. Pending
+     * futures from {@link #awaitNextScan() awaitNextScan} are cancelled.
+     */
+    public void stop() {
+        Thread toJoin;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            toJoin = thread;
+            thread = null;
+            for (CompletableFuture<SearchResult> future : waiting) {
+                future.cancel(false);
+            }
+            waiting.clear();
+        }
+        if (toJoin != null && toJoin != Thread.currentThread()) {
+            try {
+                toJoin.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns future which is completed when next finger is scanned. The
+     * future is completed with the search result, with null if the finger
+     * doesn't match any stored fingerprint, or exceptionally if communication
+     * with the sensor fails.
+     *
+     * @return future for next scan
+     */
+    public CompletableFuture<SearchResult> awaitNextScan() {
+        CompletableFuture<SearchResult> future = new CompletableFuture<>();
+        synchronized (lock) {
+            if (!running) {
+                future.cancel(false);
+            } else {
+                waiting.add(future);
+            }
+        }
+        return future;
+    }
+
+    private void run() {
+        boolean fingerPresent = false;
+        long interval = minInterval;
+        SearchResult[] result = new SearchResult[1];
+        while (running) {
+            try {
+                boolean present = fingerPresent;
+                int step = scheduler != null
+                        ? scheduler.execute(AdafruitScheduler.Priority.HIGH, s -> scan(s, present, result))
+                        : scan(sensor, present, result);
+                switch (step) {
+                    case STEP_NO_FINGER:
+                        if (fingerPresent) {
+                            fingerPresent = false;
+                            fireFingerRemoved();
+                            interval = minInterval;
+                        } else {
+                            interval = Math.min(maxInterval, Math.max(interval * 2, 1));
+                        }
+                        break;
+                    case STEP_FINGER_SCANNED:
+                        fingerPresent = true;
+                        fireScan(result[0]);
+                        interval = minInterval;
+                        break;
+                    default:
+                        interval = minInterval;
+                }
+            } catch (FingerprintException ex) {
+                logger.debug("Error while scanning for fingerprint: " + ex.getMessage());
+                // Finger can still be on the sensor, it's reported only once until removed
+                fireError(ex);
+                interval = ERROR_DELAY;
+            } catch (RuntimeException ex) {
+                logger.warn("Unexpected error while scanning for fingerprint", ex);
+                interval = ERROR_DELAY;
+            }
+            sleep(interval);
+        }
+    }
+
+    /**
+     * One transaction with the sensor. While the finger stays on the sensor,
+     * only the image is captured to detect its removal.
+     */
+    private int scan(AdafruitSensor sensor, boolean fingerPresent, SearchResult[] result) throws FingerprintException {
+        if (fingerPresent) {
+            return sensor.getImage() ? STEP_FINGER_PRESENT : STEP_NO_FINGER;
+        }
+        if (capture == null) {
+            capture = new AdafruitCapture(sensor);
+        }
+        AdafruitCapture.CaptureResult captured = capture.identify();
+        switch (captured.getOutcome()) {
+            case NO_FINGER:
+                return STEP_NO_FINGER;
+            case MATCHED:
+            case NOT_FOUND:
+                result[0] = captured.getSearchResult();
+                return STEP_FINGER_SCANNED;
+            default:
+                // Finger is tried again quickly, it may be placed better
+                logger.debug("Finger wasn't captured: " + captured);
+                return STEP_FINGER_UNREADABLE;
+        }
+    }
+
+    private void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (running) {
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException ex) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    private List<CompletableFuture<SearchResult>> takeWaiting() {
+        synchronized (lock) {
+            if (waiting.isEmpty()) {
+                return null;
+            }
+            List<CompletableFuture<SearchResult>> result = new ArrayList<>(waiting);
+            waiting.clear();
+            return result;
+        }
+    }
+
+    private void fireScan(SearchResult result) {
+        for (FingerprintListener listener : listeners) {
+            try {
+                if (result != null) {
+                    listener.onMatch(result.getId(), result.getConfidence());
+                } else {
+                    listener.onUnknown();
+                }
+            } catch (RuntimeException ex) {
+                logger.warn("Fingerprint listener failed", ex);
+            }
+        }
+        List<CompletableFuture<SearchResult>> futures = takeWaiting();
+        if (futures != null) {
+            for (CompletableFuture<SearchResult> future : futures) {
+                future.complete(result);
+            }
+        }
+    }
+
+    private void fireFingerRemoved() {
+        for (FingerprintListener listener : listeners) {
+            try {
+                listener.onFingerRemoved();
+            } catch (RuntimeException ex) {
+                logger.warn("Fingerprint listener failed", ex);
+            }
+        }
+    }
+
+    private void fireError(FingerprintException error) {
+        for (FingerprintListener listener : listeners) {
+            try {
+                listener.onError(error);
+            } catch (RuntimeException ex) {
+                logger.warn("Fingerprint listener failed", ex);
+            }
+        }
+        List<CompletableFuture<SearchResult>> futures = takeWaiting();
+        if (futures != null) {
+            for (CompletableFuture<SearchResult> future : futures) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Serializes access to one sensor from multiple threads. All communication
+ * with the sensor runs on a single thread, tasks submitted from other threads
+ * are executed one by one, ordered by priority (and by submission order within
+ * the same priority). Each task is a whole transaction with the sensor (e.g.
+ * capture, feature extraction and search), so a task with higher priority is
+ * run right after the currently running task finishes, before any waiting
+ * task with lower priority.
+ * <p>
+ * Long background jobs (e.g. upload of many models) should be submitted as
+ * many small tasks with {@link Priority#LOW}, so that identification doesn't
+ * have to wait for the whole job. {@link AdafruitLibrarySync},
+ * {@link AdafruitLibraryBackup} and {@link AdafruitSlotAllocator} constructed
+ * with the scheduler do so.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitScheduler implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitScheduler.class);
+
+    /**
+     * Priority of task, tasks with higher priority are run first.
+     */
+    public enum Priority {
+        /**
+         * Live identification (capture and search).
+         */
+        HIGH,
+        /**
+         * Interactive operations, e.g. enrollment.
+         */
+        NORMAL,
+        /**
+         * Background work, e.g. synchronization of models or reading
+         * parameters.
+         */
+        LOW
+    }
+
+    /**
+     * Transaction with the sensor.
+     *
+     * @param <T> type of result
+     */
+    public interface SensorTask<T> {
+
+        T run(AdafruitSensor sensor) throws FingerprintException;
+    }
+
+    private final AdafruitSensor sensor;
+    private final PriorityBlockingQueue<Entry<?>> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object lock = new Object();
+
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param sensor connected sensor, which must not be used directly while
+     * the scheduler is running
+     */
+    public AdafruitScheduler(AdafruitSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    /**
+     * Start executing tasks in background thread. Does nothing if already
+     * started.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this::run, "fingerprint-scheduler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop executing tasks and wait until currently running task finishes.
+     * Waiting tasks are cancelled.
+     */
+    public void stop() {
+        Thread toJoin;
+        synchronized (lock) {
+            running = false;
+            toJoin = thread;
+            thread = null;
+        }
+        if (toJoin != null) {
+            // Wake up the thread if it's waiting for tasks
+            queue.add(new Entry<>(Priority.HIGH, -1, null));
+            if (toJoin != Thread.currentThread()) {
+                try {
+                    toJoin.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        List<Entry<?>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (Entry<?> entry : remaining) {
+            entry.future.cancel(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Submit task for execution.
+     *
+     * @param <T> type of result
+     * @param priority of the task
+     * @param task to execute
+     * @return future completed with result of the task, or exceptionally with
+     * {@link FingerprintException} thrown by the task
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, SensorTask<T> task) {
+        Entry<T> entry = new Entry<>(priority, sequence.getAndIncrement(), task);
+        if (!running) {
+            entry.future.cancel(false);
+            return entry.future;
+        }
+        queue.add(entry);
+        if (!running && queue.remove(entry)) {
+            entry.future.cancel(false);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Submit task and wait for its result. If called from a task (on the
+     * scheduler's thread), the task is executed right away.
+     *
+     * @param <T> type of result
+     * @param priority of the task
+     * @param task to execute
+     * @return result of the task
+     * @throws FingerprintException if the task failed or the scheduler was
+     * stopped
+     */
+    public <T> T execute(Priority priority, SensorTask<T> task) throws FingerprintException {
+        if (Thread.currentThread() == thread) {
+            return task.run(sensor);
+        }
+        try {
+            return submit(priority, task).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof FingerprintException) {
+                throw (FingerprintException) ex.getCause();
+            }
+            throw new IllegalStateException("Sensor task failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintException("Interrupted while waiting for sensor task", "sensor.not.responding", ex);
+        } catch (CancellationException ex) {
+            throw new FingerprintException("Scheduler was stopped", "sensor.not.responding", ex);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Entry<?> entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            entry.execute(sensor);
+        }
+    }
+
+    private static class Entry<T> implements Comparable<Entry<?>> {
+
+        private final Priority priority;
+        private final long sequence;
+        private final SensorTask<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Entry(Priority priority, long sequence, SensorTask<T> task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        private void execute(AdafruitSensor sensor) {
+            if (task == null || future.isDone()) {
+                return; // Cancelled by caller
+            }
+            try {
+                future.complete(task.run(sensor));
+            } catch (FingerprintException | RuntimeException ex) {
+                logger.debug("Sensor task failed: " + ex);
+                future.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        public int compareTo(Entry<?> other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
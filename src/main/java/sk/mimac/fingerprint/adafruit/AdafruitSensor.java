@@ -1,11 +1,17 @@
 package sk.mimac.fingerprint.adafruit;
 
 import sk.mimac.fingerprint.FingerprintSensor;
-import gnu.io.NRSerialPort;
 import java.io.*;
-import java.util.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.*;
 import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
 import sk.mimac.fingerprint.SensorParameters;
 import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
 
@@ -19,9 +25,74 @@ public class AdafruitSensor implements FingerprintSensor {
 
     private static final Logger logger = LoggerFactory.getLogger(AdafruitSensor.class);
 
-    private final NRSerialPort serial;
-    private DataInputStream input;
-    private OutputStream output;
+    /**
+     * Default time in milliseconds to wait for reply from the sensor.
+     */
+    public static final long DEFAULT_TIMEOUT = 750;
+
+    /**
+     * Default number of retries of idempotent commands.
+     */
+    public static final int DEFAULT_RETRIES = 2;
+
+    /**
+     * Default number of reconnection attempts after connection is lost.
+     */
+    public static final int DEFAULT_RECONNECT_ATTEMPTS = 3;
+
+    private static final int ADAPTIVE_MIN_SAMPLES = 20;
+    private static final int ADAPTIVE_UPDATE_INTERVAL = 16;
+    private static final long ADAPTIVE_MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long ADAPTIVE_MARGIN = TimeUnit.MILLISECONDS.toNanos(20);
+    // Searched ranges are grouped by powers of two, up to 65535 positions
+    private static final int SEARCH_BUCKETS = 17;
+    /**
+     * Time to wait for valid packet after invalid one was received.
+     */
+    private static final long RESYNC_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long RECONNECT_DELAY = 100;
+    private static final long MAX_RECONNECT_DELAY = 5000;
+
+    /**
+     * Commands which can be sent again if their reply is lost, without
+     * changing the result.
+     */
+    private static final boolean[] IDEMPOTENT = new boolean[256];
+
+    static {
+        for (int command : new int[]{FINGERPRINT_VERIFYPASSWORD, FINGERPRINT_GETIMAGE, FINGERPRINT_IMAGE2TZ, FINGERPRINT_MATCH,
+            FINGERPRINT_HISPEEDSEARCH, FINGERPRINT_LOAD, FINGERPRINT_READ_SYS_PARAM, FINGERPRINT_TEMPLATECOUNT,
+            FINGERPRINT_READ_INDEX_TABLE}) {
+            IDEMPOTENT[command] = true;
+        }
+    }
+
+    private final AdafruitTransport transport;
+    private AdafruitPacketCodec codec = new AdafruitPacketCodec();
+    private final AdafruitMetrics metrics = new AdafruitMetrics();
+    private final ByteBuffer received = ByteBuffer.allocate(1024);
+    private final long[] timeouts = new long[256];
+    private final long[] adaptiveTimeouts = new long[256];
+    private final long[] adaptiveUpdated = new long[256];
+    private final long[] searchLatencies = new long[SEARCH_BUCKETS];
+    private final int[] searchSamples = new int[SEARCH_BUCKETS];
+    private int searchBucket;
+    private final ByteBuffer retryFrame = ByteBuffer.allocate(64);
+    private boolean adaptiveTimeout = true;
+    private int retries = DEFAULT_RETRIES;
+    private int reconnectAttempts = DEFAULT_RECONNECT_ATTEMPTS;
+    private boolean recovering;
+    private int lastCommand;
+    private long commandStart;
+    private boolean awaitingAck;
+    // Replies to timed out sends of the last command, which can still arrive
+    private int lateReplies;
+    private long lateRepliesDeadline;
+    // Read from the sensor when needed, 0 if unknown
+    private int librarySize;
+    private int packetSize;
+    private int negotiateBaudRate;
+    private int negotiatePacketSize;
 
     /**
      * Construct sensor class with default baudRate (57600).
@@ -39,32 +110,231 @@ public class AdafruitSensor implements FingerprintSensor {
      * @param baudRate of the sensor's serial interface (default is 57600)
      */
     public AdafruitSensor(String serialPort, int baudRate) {
-        serial = new NRSerialPort(serialPort, baudRate);
+        this(new AdafruitSerialTransport(serialPort, baudRate));
+    }
+
+    /**
+     * Construct sensor class communicating over already opened streams (e.g.
+     * in-process fake sensor used for testing).
+     *
+     * @param input stream with data sent by the sensor
+     * @param output stream with data sent to the sensor
+     */
+    public AdafruitSensor(InputStream input, OutputStream output) {
+        this(new AdafruitStreamTransport(input, output));
+    }
+
+    /**
+     * Construct sensor class communicating through given transport (e.g.
+     * {@link AdafruitSocketTransport} for sensors behind serial-to-TCP
+     * bridge).
+     *
+     * @param transport channel to the sensor
+     */
+    public AdafruitSensor(AdafruitTransport transport) {
+        this.transport = transport;
+        Arrays.fill(timeouts, TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT));
+        ((Buffer) received).limit(0);
+    }
+
+    /**
+     * Returns statistics of communication with the sensor, which can be
+     * exported through JMX with {@link AdafruitMetrics#register(String)}.
+     *
+     * @return statistics of this sensor
+     */
+    public AdafruitMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set address of the sensor, which is written to sent packets; replies
+     * with other address are rejected. Should be called before
+     * {@link #connect() connect}.
+     *
+     * @param address device address of the sensor (default is
+     * {@link AdafruitPacketCodec#DEFAULT_ADDRESS})
+     */
+    public void setDeviceAddress(int address) {
+        this.codec = new AdafruitPacketCodec(address);
+    }
+
+    public int getDeviceAddress() {
+        return codec.getAddress();
+    }
+
+    /**
+     * Set time to wait for reply to any command.
+     *
+     * @param millis timeout in milliseconds
+     */
+    public void setTimeout(long millis) {
+        Arrays.fill(timeouts, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Set time to wait for reply to specific command (e.g. longer timeout for
+     * {@link AdafruitConstants#FINGERPRINT_EMPTY}). For commands which are
+     * followed by data packets, the timeout applies to each packet.
+     *
+     * @param command code of the command from {@link AdafruitConstants}
+     * @param millis timeout in milliseconds
+     */
+    public void setTimeout(int command, long millis) {
+        timeouts[command & 0xFF] = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Enable or disable adaptive timeouts (enabled by default). When enabled,
+     * timeout of an idempotent command is derived from 99th percentile of its
+     * observed latency (twice the percentile plus 20 ms, at least 50 ms), so
+     * lost replies are detected and the command is repeated quickly. The
+     * timeout set by {@link #setTimeout(int, long) setTimeout} is used until
+     * enough latencies are observed, as the upper limit and for retries.
+     * Capture of image isn't adapted, because it takes much longer with a
+     * finger than without it.
+     * <p>
+     * Search time grows with size of the searched range, so latencies of
+     * search are tracked separately for ranges of similar size (grouped by
+     * powers of two), and timeout of search is derived from the longest
+     * latency observed for the range size.
+     *
+     * @param enabled true to enable adaptive timeouts
+     */
+    public void setAdaptiveTimeout(boolean enabled) {
+        this.adaptiveTimeout = enabled;
+    }
+
+    /**
+     * Set how many times an idempotent command (capture, feature extraction,
+     * search, reading of parameters or index table, model loading) is sent
+     * again when its reply is lost or corrupted.
+     *
+     * @param retries number of retries, 0 to disable
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Set how many times the connection is reopened when it's lost (e.g. USB
+     * converter disconnected), with exponential backoff starting at 100 ms.
+     * After reconnection, idempotent command is sent again, other commands
+     * fail.
+     *
+     * @param attempts number of attempts, 0 to disable
+     */
+    public void setReconnectAttempts(int attempts) {
+        this.reconnectAttempts = attempts;
+    }
+
+    /**
+     * Set parameters which are negotiated with the sensor on
+     * {@link #connect() connect}, see
+     * {@link #negotiate(int, int) negotiate}.
+     *
+     * @param baudRate highest baud rate to use, 0 to keep current
+     * @param packetSize largest data packet size to use, 0 to keep current
+     */
+    public void setNegotiation(int baudRate, int packetSize) {
+        this.negotiateBaudRate = baudRate;
+        this.negotiatePacketSize = packetSize;
     }
 
     @Override
     public void connect() throws FingerprintException {
-        if (!serial.connect()) {
-            throw new FingerprintException("Can't connect to fingerprint sensor", "sensor.cant.connect");
+        open();
+        handshake();
+        librarySize = 0;
+        packetSize = 0;
+        if (negotiateBaudRate > 0 || negotiatePacketSize > 0) {
+            negotiate(negotiateBaudRate, negotiatePacketSize);
         }
-        input = new DataInputStream(serial.getInputStream());
-        output = serial.getOutputStream();
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_VERIFYPASSWORD, 0, 0, 0, 0});
-        byte[] reply = getReply();
-        if ((reply[0] != FINGERPRINT_ACKPACKET) || (reply[1] != FINGERPRINT_OK)) {
-            throw new FingerprintException("Can't initialize fingerprint sensor, reply is: " + bytesToHex(reply), "sensor.cant.connect");
+    }
+
+    private void open() throws FingerprintException {
+        transport.open();
+        codec.reset();
+        ((Buffer) received).limit(0);
+    }
+
+    private void handshake() throws FingerprintException {
+        command(FINGERPRINT_VERIFYPASSWORD).putInt(0);
+        send();
+        if (getAck() != FINGERPRINT_OK) {
+            throw new FingerprintException("Can't initialize fingerprint sensor, reply is: " + codec.toHex(), "sensor.cant.connect");
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (serial.isConnected()) {
-            try {
-                serial.disconnect();
-            } catch (Exception ex) {
-                logger.warn("Error while disconnecting from fingerprint sensor: " + ex);
+        transport.close();
+    }
+
+    /**
+     * Upgrade baud rate and data packet size of the sensor, if they are lower
+     * than requested. After baud rate is changed, the serial port is reopened
+     * with the new baud rate; if the sensor doesn't respond (some modules
+     * apply the change only after power cycle), the old baud rate is used and
+     * written back to the sensor.
+     * Baud rate can be changed only if the transport supports it (e.g. serial
+     * port).
+     *
+     * @param baudRate highest baud rate to use (multiple of 9600, up to
+     * 115200), 0 to keep current
+     * @param packetSize largest data packet size to use (32, 64, 128 or 256),
+     * 0 to keep current
+     * @return parameters of the sensor after negotiation
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public SensorParameters negotiate(int baudRate, int packetSize) throws FingerprintException {
+        SensorParameters parameters = readParameters();
+        if (packetSize > parameters.getPacketSize()) {
+            int code = Math.min(3, Integer.numberOfTrailingZeros(Integer.highestOneBit(packetSize)) - 5);
+            if (code >= 0 && (32 << code) > parameters.getPacketSize()) {
+                setSystemParameter(6, code);
+                this.packetSize = 32 << code;
+                logger.debug("Data packet size changed to " + this.packetSize);
             }
         }
+        int newBaudRate = Math.min(baudRate, 115200) / 9600 * 9600;
+        if (transport.supportsBaudRate() && newBaudRate > parameters.getBaudRate()) {
+            int oldBaudRate = transport.getBaudRate();
+            setSystemParameter(4, newBaudRate / 9600);
+            if (!reconnect(newBaudRate)) {
+                logger.warn("Sensor doesn't respond at baud rate " + newBaudRate + ", using " + oldBaudRate);
+                if (!reconnect(oldBaudRate)) {
+                    throw new FingerprintException("Sensor doesn't respond after baud rate change", "sensor.cant.connect");
+                }
+                // Don't leave the unusable baud rate in flash for next power cycle
+                setSystemParameter(4, oldBaudRate / 9600);
+            } else {
+                logger.debug("Baud rate changed to " + newBaudRate);
+            }
+        }
+        return readParameters();
+    }
+
+    private boolean reconnect(int baudRate) throws FingerprintException {
+        if (!transport.supportsBaudRate()) {
+            throw new FingerprintException("Baud rate can't be changed by " + transport.getClass().getSimpleName(), "sensor.cant.connect");
+        }
+        transport.close();
+        transport.setBaudRate(baudRate);
+        open();
+        try {
+            handshake();
+            return true;
+        } catch (FingerprintException ex) {
+            return false;
+        }
+    }
+
+    private void setSystemParameter(int parameter, int value) throws FingerprintException {
+        command(FINGERPRINT_SET_SYS_PARAM).put((byte) parameter).put((byte) value);
+        send();
+        requireOk();
     }
 
     @Override
@@ -77,26 +347,53 @@ public class AdafruitSensor implements FingerprintSensor {
 
     @Override
     public Integer searchFingerprint() throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_HISPEEDSEARCH, 0x01, 0x00, 0x00, 0x01, 0x00});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
-        switch (reply[1]) {
+        SearchResult result = search();
+        return result != null ? result.getId() : null;
+    }
+
+    /**
+     * Search sensor's internal memory for match with finger on which
+     * {@link #hasFingerprint() hasFingerprint} was called.
+     *
+     * @return matched position together with match confidence or null if
+     * fingerprint doesn't match any stored fingerprint
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public SearchResult search() throws FingerprintException {
+        return search(0, getLibrarySize());
+    }
+
+    /**
+     * Search range of sensor's internal memory for match with finger on which
+     * {@link #hasFingerprint() hasFingerprint} was called. Search time grows
+     * with size of the range.
+     *
+     * @param number first position to search
+     * @param count number of positions to search
+     * @return matched position together with match confidence or null if
+     * fingerprint doesn't match any stored fingerprint in the range
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public SearchResult search(int number, int count) throws FingerprintException {
+        command(FINGERPRINT_HISPEEDSEARCH).put((byte) 0x01).putShort((short) number).putShort((short) count);
+        searchBucket = 32 - Integer.numberOfLeadingZeros(count & 0xFFFF);
+        send();
+        switch (getAck()) {
             case FINGERPRINT_OK:
-                int fingerID = reply[2] & 0xFF;
-                fingerID <<= 8;
-                fingerID |= reply[3] & 0xFF;
-
-                int confidence = reply[4] & 0xFF;
-                confidence <<= 8;
-                confidence |= reply[5] & 0xFF;
-                logger.debug("Found fingerprint with number " + fingerID + " with confidence " + confidence);
-                return fingerID;
+                ByteBuffer reply = codec.payload();
+                int fingerID = reply.getShort(1) & 0xFFFF;
+                int confidence = reply.getShort(3) & 0xFFFF;
+                metrics.recordConfidence(confidence);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Found fingerprint with number " + fingerID + " with confidence " + confidence);
+                }
+                return new SearchResult(fingerID, confidence);
             case FINGERPRINT_NOTFOUND:
                 return null;
             default:
-                throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+                throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
         }
     }
 
@@ -114,201 +411,716 @@ public class AdafruitSensor implements FingerprintSensor {
 
     @Override
     public void clearAllSaved() throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_EMPTY});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET || reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
+        command(FINGERPRINT_EMPTY);
+        send();
+        requireOk();
     }
 
     @Override
     public void saveModel(byte[] model, int number) throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_DOWNLOAD, 0x01});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET || reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+        downloadModel(model, 1);
+        saveStoredModel(number);
+    }
+
+    /**
+     * Download fingerprint model from the host to sensor's character buffer.
+     *
+     * @param model of fingerprint
+     * @param buffer number of character buffer (1 or 2)
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void downloadModel(byte[] model, int buffer) throws FingerprintException {
+        downloadModel(ByteBuffer.wrap(model), buffer);
+    }
+
+    /**
+     * Download fingerprint model from the host to sensor's character buffer.
+     *
+     * @param model of fingerprint, between position and limit of the buffer;
+     * position is advanced to the limit
+     * @param buffer number of character buffer (1 or 2)
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void downloadModel(ByteBuffer model, int buffer) throws FingerprintException {
+        if (packetSize == 0) {
+            readParameters();
         }
-        writePacket(FINGERPRINT_DATAPACKET, Arrays.copyOfRange(model, 0, 128));
-        writePacket(FINGERPRINT_DATAPACKET, Arrays.copyOfRange(model, 128, 256));
-        writePacket(FINGERPRINT_DATAPACKET, Arrays.copyOfRange(model, 256, 384));
-        writePacket(FINGERPRINT_ENDDATAPACKET, Arrays.copyOfRange(model, 384, 512));
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_STORE, 0x01, (byte) (number >> 8), (byte) (number & 0xFF)});
-        reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET || reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+        command(FINGERPRINT_DOWNLOAD).put((byte) buffer);
+        send();
+        requireOk();
+        int limit = model.limit();
+        try {
+            while (model.hasRemaining()) {
+                int length = Math.min(packetSize, model.remaining());
+                byte type = length < model.remaining() ? FINGERPRINT_DATAPACKET : FINGERPRINT_ENDDATAPACKET;
+                ((Buffer) model).limit(model.position() + length);
+                codec.begin(type).put(model);
+                ((Buffer) model).limit(limit);
+                send();
+            }
+        } finally {
+            ((Buffer) model).limit(limit);
+        }
+    }
+
+    /**
+     * Verify finger on which {@link #hasFingerprint() hasFingerprint} was
+     * called against one model stored in sensor's internal memory. The model
+     * is loaded into the second character buffer and compared with the finger
+     * by MATCH command, so the time doesn't depend on size of the library.
+     *
+     * @param number position of the model in sensor's internal memory
+     * @return match score, 0 if the finger doesn't match
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int verify(int number) throws FingerprintException {
+        loadModel(number, 2);
+        return match();
+    }
+
+    /**
+     * Verify finger on which {@link #hasFingerprint() hasFingerprint} was
+     * called against the model. The model is downloaded into the second
+     * character buffer and compared with the finger by MATCH command.
+     *
+     * @param model of fingerprint
+     * @return match score, 0 if the finger doesn't match
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int verify(byte[] model) throws FingerprintException {
+        downloadModel(model, 2);
+        return match();
+    }
+
+    /**
+     * Compare models in both character buffers.
+     *
+     * @return match score, 0 if the models don't match
+     */
+    private int match() throws FingerprintException {
+        command(FINGERPRINT_MATCH);
+        send();
+        switch (getAck()) {
+            case FINGERPRINT_OK:
+                ByteBuffer reply = codec.payload();
+                if (reply.limit() < 3) {
+                    throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+                }
+                int score = reply.getShort(1) & 0xFFFF;
+                metrics.recordConfidence(score);
+                return score;
+            case FINGERPRINT_NOMATCH:
+                return 0;
+            default:
+                throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
         }
     }
 
     @Override
     public void saveStoredModel(int number) throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_STORE, 0x01, (byte) (number >> 8), (byte) (number & 0xFF)});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET || reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+        storeModel(1, number);
+    }
+
+    /**
+     * Save fingerprint model from sensor's character buffer to sensor's
+     * internal memory.
+     *
+     * @param buffer number of character buffer (1 or 2)
+     * @param number position in sensor's internal memory
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void storeModel(int buffer, int number) throws FingerprintException {
+        command(FINGERPRINT_STORE).put((byte) buffer).putShort((short) number);
+        send();
+        requireOk();
+    }
+
+    /**
+     * Load fingerprint model from sensor's internal memory to sensor's
+     * character buffer.
+     *
+     * @param number position in sensor's internal memory
+     * @param buffer number of character buffer (1 or 2)
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void loadModel(int number, int buffer) throws FingerprintException {
+        command(FINGERPRINT_LOAD).put((byte) buffer).putShort((short) number);
+        send();
+        requireOk();
+    }
+
+    /**
+     * Delete range of fingerprint models from sensor's internal memory.
+     *
+     * @param number first position to delete
+     * @param count number of positions to delete
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void deleteModels(int number, int count) throws FingerprintException {
+        command(FINGERPRINT_DELETE).putShort((short) number).putShort((short) count);
+        send();
+        requireOk();
+    }
+
+    /**
+     * Read number of fingerprint models saved in sensor's internal memory.
+     *
+     * @return number of saved models
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int getTemplateCount() throws FingerprintException {
+        command(FINGERPRINT_TEMPLATECOUNT);
+        send();
+        requireOk();
+        return codec.payload().getShort(1) & 0xFFFF;
+    }
+
+    /**
+     * Read which positions in sensor's internal memory are occupied.
+     *
+     * @param librarySize size of the library (see
+     * {@link SensorParameters#getLibrarySize()})
+     * @return set of occupied positions
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public BitSet readIndexTable(int librarySize) throws FingerprintException {
+        BitSet occupied = new BitSet(librarySize);
+        for (int page = 0; page * 256 < librarySize; page++) {
+            command(FINGERPRINT_READ_INDEX_TABLE).put((byte) page);
+            send();
+            requireOk();
+            ByteBuffer reply = codec.payload();
+            for (int i = 1; i < reply.limit(); i++) {
+                int bits = reply.get(i) & 0xFF;
+                for (int bit = 0; bit < 8; bit++) {
+                    int number = page * 256 + (i - 1) * 8 + bit;
+                    if ((bits & (1 << bit)) != 0 && number < librarySize) {
+                        occupied.set(number);
+                    }
+                }
+            }
         }
+        return occupied;
     }
 
     @Override
     public SensorParameters readParameters() throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_READ_SYS_PARAM});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET && reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+        command(FINGERPRINT_READ_SYS_PARAM);
+        send();
+        requireOk();
+        SensorParameters parameters = parseParameters(codec.payload());
+        if (parameters == null) {
+            throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+        }
+        librarySize = parameters.getLibrarySize();
+        packetSize = parameters.getPacketSize();
+        return parameters;
+    }
+
+    /**
+     * @param reply payload of reply to READ_SYS_PARAM command
+     * @return parsed parameters or null if the reply is too short
+     */
+    static SensorParameters parseParameters(ByteBuffer reply) {
+        if (reply.limit() < 17) {
+            return null;
         }
         SensorParameters parameters = new SensorParameters();
-        parameters.setLibrarySize((reply[6] & 0xFF) << 8 | reply[7] & 0xFF);
-        parameters.setSecurityLevel(reply[9]);
+        parameters.setStatusRegister(reply.getShort(1) & 0xFFFF);
+        parameters.setSystemId(reply.getShort(3) & 0xFFFF);
+        parameters.setLibrarySize(reply.getShort(5) & 0xFFFF);
+        parameters.setSecurityLevel(reply.get(8));
+        parameters.setDeviceAddress(reply.getInt(9));
+        parameters.setPacketSize(32 << (reply.get(14) & 0x03));
+        parameters.setBaudRate((reply.getShort(15) & 0xFFFF) * 9600);
         return parameters;
     }
 
+    /**
+     * Returns size of sensor's library, read from the sensor on first call.
+     *
+     * @return number of positions in sensor's internal memory
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int getLibrarySize() throws FingerprintException {
+        if (librarySize == 0) {
+            readParameters();
+        }
+        return librarySize;
+    }
+
     @Override
     public void setSecurityLevel(int securityLevel) throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_SET_SYS_PARAM, 0x05, (byte) securityLevel});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET && reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
+        setSystemParameter(5, securityLevel);
     }
 
-    private boolean getImage() throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_GETIMAGE});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
-        return reply[1] == FINGERPRINT_OK;
+    boolean getImage() throws FingerprintException {
+        return getImageStatus() == FINGERPRINT_OK;
     }
 
-    private boolean image2tz(byte slot) throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_IMAGE2TZ, slot});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
-        return reply[1] == FINGERPRINT_OK;
+    boolean image2tz(byte slot) throws FingerprintException {
+        return image2tzStatus(slot) == FINGERPRINT_OK;
+    }
+
+    /**
+     * Capture image of finger.
+     *
+     * @return confirmation code (e.g. OK, NOFINGER, IMAGEFAIL)
+     */
+    int getImageStatus() throws FingerprintException {
+        command(FINGERPRINT_GETIMAGE);
+        send();
+        return getAck();
+    }
+
+    /**
+     * Extract features from the captured image into character buffer.
+     *
+     * @return confirmation code (e.g. OK, IMAGEMESS, FEATUREFAIL)
+     */
+    int image2tzStatus(byte slot) throws FingerprintException {
+        command(FINGERPRINT_IMAGE2TZ).put(slot);
+        send();
+        return getAck();
     }
 
     private byte[] upload() throws FingerprintException {
-        // Get model
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_UPLOAD, 0x01});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET || reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-        }
-        // Read model
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        while (reply[0] != FINGERPRINT_ENDDATAPACKET) {
-            reply = getReply();
-            if (reply[0] != FINGERPRINT_DATAPACKET && reply[0] != FINGERPRINT_ENDDATAPACKET) {
-                throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
-            }
-            outputStream.write(reply, 1, reply.length - 1);
-        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        uploadModel(1, Channels.newChannel(outputStream));
         return outputStream.toByteArray();
     }
 
-    private void regModel() throws FingerprintException {
-        writePacket(FINGERPRINT_COMMANDPACKET, new byte[]{FINGERPRINT_REGMODEL});
-        byte[] reply = getReply();
-        if (reply[0] != FINGERPRINT_ACKPACKET) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+    /**
+     * Upload fingerprint model from sensor's character buffer, each received
+     * data packet is written to the channel right away.
+     *
+     * @param buffer number of character buffer (1 or 2)
+     * @param sink channel to which the model is written
+     * @return size of the model in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the model can't be written to the channel
+     */
+    public int uploadModel(int buffer, WritableByteChannel sink) throws FingerprintException {
+        command(FINGERPRINT_UPLOAD).put((byte) buffer);
+        send();
+        requireOk();
+        return receiveData(sink, null);
+    }
+
+    /**
+     * Upload fingerprint model from sensor's character buffer into the
+     * buffer, starting at its position. Position of the buffer is advanced by
+     * size of the model.
+     *
+     * @param buffer number of character buffer (1 or 2)
+     * @param target buffer to which the model is written
+     * @return size of the model in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the model doesn't fit into the buffer
+     */
+    public int uploadModel(int buffer, ByteBuffer target) throws FingerprintException {
+        command(FINGERPRINT_UPLOAD).put((byte) buffer);
+        send();
+        requireOk();
+        return receiveData(null, target);
+    }
+
+    /**
+     * Upload image captured by the last call of
+     * {@link #hasFingerprint() hasFingerprint} (or other image capture), each
+     * received data packet is written to the channel right away. The image
+     * has 4 bits per pixel, see {@link AdafruitImage}.
+     * <p>
+     * Transfer of the image takes several seconds at lower baud rates, when
+     * sharing the sensor through {@link AdafruitScheduler}, it should be
+     * submitted as a separate {@link AdafruitScheduler.Priority#LOW low}
+     * priority task.
+     *
+     * @param sink channel to which the image is written
+     * @return size of the image in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the image can't be written to the channel
+     */
+    public int uploadImage(WritableByteChannel sink) throws FingerprintException {
+        command(FINGERPRINT_UPIMAGE);
+        send();
+        requireOk();
+        return receiveData(sink, null);
+    }
+
+    /**
+     * Upload image captured by the last call of
+     * {@link #hasFingerprint() hasFingerprint} (or other image capture) into
+     * the buffer, starting at its position. Position of the buffer is advanced
+     * by size of the image.
+     *
+     * @param target buffer to which the image is written, should have at
+     * least {@link AdafruitImage#SIZE} bytes remaining
+     * @return size of the image in bytes
+     * @throws FingerprintException if there is problem with communication to
+     * sensor or the image doesn't fit into the buffer
+     */
+    public int uploadImage(ByteBuffer target) throws FingerprintException {
+        command(FINGERPRINT_UPIMAGE);
+        send();
+        requireOk();
+        return receiveData(null, target);
+    }
+
+    /**
+     * Receive data packets until the end packet, writing payloads to either
+     * channel or buffer. If writing fails, the rest of the packets is still
+     * received, so that the communication stays in sync.
+     */
+    private int receiveData(WritableByteChannel sink, ByteBuffer target) throws FingerprintException {
+        int size = 0;
+        String error = null;
+        do {
+            ByteBuffer reply = getReply();
+            if (codec.getPacketType() != FINGERPRINT_DATAPACKET && codec.getPacketType() != FINGERPRINT_ENDDATAPACKET) {
+                throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+            }
+            size += reply.remaining();
+            if (error != null) {
+                continue;
+            }
+            if (target != null) {
+                if (target.remaining() < reply.remaining()) {
+                    error = "Buffer is too small for received data";
+                } else {
+                    target.put(reply);
+                }
+            } else {
+                try {
+                    while (reply.hasRemaining()) {
+                        sink.write(reply);
+                    }
+                } catch (IOException ex) {
+                    error = "Can't write received data: " + ex.getMessage();
+                }
+            }
+        } while (codec.getPacketType() != FINGERPRINT_ENDDATAPACKET);
+        if (error != null) {
+            throw new FingerprintException(error, "sensor.cant.write");
         }
-        if (reply[1] == FINGERPRINT_ENROLLMISMATCH) {
+        return size;
+    }
+
+    void regModel() throws FingerprintException {
+        command(FINGERPRINT_REGMODEL);
+        send();
+        int code = getAck();
+        if (code == FINGERPRINT_ENROLLMISMATCH) {
             throw new FingerprintException("Fingerprints doesn't match", "sensor.fingerprints.doesnt.match");
         }
-        if (reply[1] != FINGERPRINT_OK) {
-            throw new FingerprintException("Got wrong data from fingerprint sensor: " + bytesToHex(reply), "sensor.bad.data");
+        if (code != FINGERPRINT_OK) {
+            throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
         }
     }
 
-    private void writePacket(byte packetType, byte[] packet) throws FingerprintException {
-        int length = packet.length + 2;
-        byte[] data = new byte[packet.length + 11];
+    /**
+     * Start new command packet, parameters of the command should be written to
+     * the returned buffer and then {@link #send() send} should be called.
+     */
+    private ByteBuffer command(int command) {
+        lastCommand = command;
+        return codec.begin(FINGERPRINT_COMMANDPACKET).put((byte) command);
+    }
 
-        data[0] = (byte) (FINGERPRINT_STARTCODE >> 8);
-        data[1] = (byte) FINGERPRINT_STARTCODE;
-        data[2] = 0xFFFFFFFF >> 24;
-        data[3] = 0xFFFFFFFF >> 16;
-        data[4] = 0xFFFFFFFF >> 8;
-        data[5] = 0xFFFFFFFF;
-        data[6] = packetType;
-        data[7] = (byte) (length >> 8);
-        data[8] = (byte) length;
+    private void send() throws FingerprintException {
+        ByteBuffer frame = codec.finish();
+        boolean isCommand = frame.get(6) == FINGERPRINT_COMMANDPACKET;
+        if (isCommand && IDEMPOTENT[lastCommand & 0xFF] && !recovering) {
+            ((Buffer) retryFrame).clear();
+            retryFrame.put(frame.array(), 0, frame.limit());
+            ((Buffer) retryFrame).flip();
+        }
+        try {
+            write(frame, isCommand);
+        } catch (FingerprintException ex) {
+            if (!recover(ex) || !isCommand || !IDEMPOTENT[lastCommand & 0xFF]) {
+                throw ex;
+            }
+            write(retryFrame, true);
+        }
+    }
 
-        int sum = (length >> 8) + (length & 0xFF) + packetType;
-        for (int i = 0; i < packet.length; i++) {
-            data[9 + i] = packet[i];
-            sum += ((int) packet[i]) & 0xFF;
+    private void write(ByteBuffer frame, boolean isCommand) throws FingerprintException {
+        ((Buffer) frame).rewind();
+        if (isCommand) {
+            discardStale();
+        }
+        metrics.recordSent(lastCommand, frame.limit());
+        if (isCommand) {
+            commandStart = System.nanoTime();
+            awaitingAck = true;
         }
+        transport.write(frame);
+    }
 
-        data[9 + packet.length] = (byte) (sum >> 8);
-        data[10 + packet.length] = (byte) (sum & 0xFF);
-        try {
-            output.write(data);
-            output.flush();
-        } catch (IOException ex) {
-            throw new FingerprintException("Can't write data to sensor", "sensor.cant.write", ex);
+    /**
+     * Discard all received bytes which weren't processed (e.g. late reply to
+     * previous command), so they can't be mistaken for reply to next command.
+     * If sends of previous command timed out, their late replies are awaited
+     * until they can arrive.
+     */
+    private void discardStale() throws FingerprintException {
+        int expected = lateReplies;
+        long deadline = lateRepliesDeadline;
+        lateReplies = 0;
+        int discarded = received.remaining();
+        codec.reset();
+        int packets = countPackets();
+        int count;
+        do {
+            boolean waiting = packets < expected && System.nanoTime() - deadline < 0;
+            ((Buffer) received).clear();
+            try {
+                count = transport.read(received, waiting ? deadline : System.nanoTime());
+            } finally {
+                ((Buffer) received).flip();
+            }
+            discarded += count;
+            packets += countPackets();
+        } while (count > 0);
+        codec.reset();
+        ((Buffer) received).limit(0);
+        if (discarded > 0) {
+            logger.debug("Discarded " + discarded + " stale bytes (" + packets + " packets)");
         }
     }
 
-    private byte[] getReply() throws FingerprintException {
-        List<Byte> reply = new ArrayList<>(10);
-        int index = 0;
-        int length = 0;
+    private int countPackets() {
+        int packets = 0;
+        while (true) {
+            try {
+                if (!codec.decode(received)) {
+                    return packets;
+                }
+                packets++;
+            } catch (FingerprintException ex) {
+                // Corrupted stale packet
+            }
+        }
+    }
+
+    /**
+     * Reopen lost connection, with exponential backoff.
+     *
+     * @param ex error which occurred
+     * @return true if the connection was lost and it's reopened
+     */
+    private boolean recover(FingerprintException ex) {
+        if (recovering || reconnectAttempts <= 0 || !isConnectionError(ex)) {
+            return false;
+        }
+        recovering = true;
+        int command = lastCommand;
         try {
-            while (true) {
-                waitForInputAvailable(index);
-                byte data = (byte) input.read();
-                if ((index == 0) && (data != (byte) (FINGERPRINT_STARTCODE >> 8))) {
-                    continue;
+            long delay = RECONNECT_DELAY;
+            for (int attempt = 1; attempt <= reconnectAttempts; attempt++) {
+                logger.warn("Connection to fingerprint sensor lost, reconnecting (attempt " + attempt + "): " + ex.getMessage());
+                transport.close();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                try {
+                    open();
+                    handshake();
+                    metrics.recordReconnect();
+                    logger.info("Reconnected to fingerprint sensor");
+                    return true;
+                } catch (FingerprintException reconnectEx) {
+                    ex = reconnectEx;
                 }
-                reply.add(data);
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+            return false;
+        } finally {
+            recovering = false;
+            lastCommand = command;
+        }
+    }
 
-                if (index == 8) {
-                    if ((reply.get(0) != (byte) (FINGERPRINT_STARTCODE >> 8)) || (reply.get(1) != (byte) FINGERPRINT_STARTCODE)) {
-                        throw new FingerprintException("Bad packet", "sensor.bad.data");
-                    }
-                    length = ((reply.get(7) & 0xFF) << 8) | reply.get(8) & 0xFF;
+    /**
+     * @param command code of the command from {@link AdafruitConstants}
+     * @return true if the command can be safely sent again when its reply is
+     * lost
+     */
+    static boolean isIdempotent(int command) {
+        return IDEMPOTENT[command & 0xFF];
+    }
+
+    private static boolean isConnectionError(FingerprintException ex) {
+        return "sensor.cant.read".equals(ex.getKey()) || "sensor.cant.write".equals(ex.getKey())
+                || "sensor.cant.connect".equals(ex.getKey());
+    }
+
+    /**
+     * Read acknowledge packet.
+     *
+     * @return confirmation code of the acknowledge packet
+     */
+    private int getAck() throws FingerprintException {
+        ByteBuffer reply = getReply();
+        if (codec.getPacketType() != FINGERPRINT_ACKPACKET || !reply.hasRemaining()) {
+            throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+        }
+        return reply.get(0) & 0xFF;
+    }
+
+    private void requireOk() throws FingerprintException {
+        if (getAck() != FINGERPRINT_OK) {
+            throw new FingerprintException("Got wrong data from fingerprint sensor: " + codec.toHex(), "sensor.bad.data");
+        }
+    }
+
+    /**
+     * Read next packet. If reply to idempotent command is lost or corrupted,
+     * the command is sent again.
+     *
+     * @return payload of the packet, valid until next packet is read
+     */
+    private ByteBuffer getReply() throws FingerprintException {
+        boolean ack = awaitingAck;
+        int attempt = 0;
+        int timedOut = 0;
+        while (true) {
+            try {
+                // After a retry, the reply can be slower than usual, so the configured timeout is used
+                long timeout = !ack ? timeouts[lastCommand & 0xFF] : attempt == 0 ? replyTimeout(lastCommand & 0xFF)
+                        : timeouts[lastCommand & 0xFF];
+                ByteBuffer reply = readReply(timeout);
+                if (timedOut > 0) {
+                    // Sensor processes timed out sends one after another, each one takes at most as long as this one
+                    long now = System.nanoTime();
+                    lateReplies = timedOut;
+                    lateRepliesDeadline = now + timedOut * (now - commandStart) + ADAPTIVE_MARGIN;
                 }
-                if (index >= (length + 8)) {
-                    byte[] result = new byte[length - 1];
-                    result[0] = reply.get(6);
-                    for (int i = 0; i < (length - 2); i++) {
-                        result[1 + i] = reply.get(9 + i);
-                    }
-                    return result;
+                return reply;
+            } catch (FingerprintException ex) {
+                boolean lost = isConnectionError(ex) && recover(ex);
+                boolean timeout = "sensor.not.responding".equals(ex.getKey());
+                if (!ack || recovering || attempt >= retries || !IDEMPOTENT[lastCommand & 0xFF]
+                        || (!lost && !timeout && !"sensor.bad.data".equals(ex.getKey()))) {
+                    throw ex;
                 }
-                index++;
+                attempt++;
+                if (timeout) {
+                    timedOut++;
+                }
+                metrics.recordRetry();
+                logger.debug("Sending command " + lastCommand + " again: " + ex.getMessage());
+                resend();
             }
-        } catch (IOException ex) {
-            throw new FingerprintException("Can't read data from sensor", "sensor.cant.read", ex);
         }
     }
 
-    public void waitForInputAvailable(int index) throws IOException, FingerprintException {
-        int timer = 0;
-        while (input.available() == 0) {
+    /**
+     * Send the last command again, its latency is still measured from the
+     * first send.
+     */
+    private void resend() throws FingerprintException {
+        long start = commandStart;
+        write(retryFrame, true);
+        commandStart = start;
+    }
+
+    /**
+     * Read next packet. Whole available input is read at once and bytes after
+     * the packet are kept for the next call. Invalid packets are skipped, but
+     * if no valid packet follows shortly, the error is thrown.
+     */
+    private ByteBuffer readReply(long timeout) throws FingerprintException {
+        long deadline = System.nanoTime() + timeout;
+        FingerprintException badPacket = null;
+        while (true) {
             try {
-                Thread.sleep(5);
-            } catch (InterruptedException ignore) {
+                if (decode()) {
+                    break;
+                }
+            } catch (FingerprintException ex) {
+                badPacket = ex;
+                deadline = Math.min(deadline, System.nanoTime() + RESYNC_TIMEOUT);
+                continue;
             }
-            timer++;
-            if (timer >= 150) {
-                throw new FingerprintException("Timeout at index " + index, "sensor.not.responding");
+            int count;
+            ((Buffer) received).clear();
+            try {
+                count = transport.read(received, deadline);
+            } finally {
+                ((Buffer) received).flip();
+            }
+            if (count == 0) {
+                codec.reset();
+                awaitingAck = false;
+                if (badPacket != null) {
+                    throw badPacket;
+                }
+                metrics.recordTimeout(lastCommand);
+                throw new FingerprintException("Timeout while waiting for reply to command " + lastCommand, "sensor.not.responding");
+            }
+            metrics.recordReceived(lastCommand, count);
+        }
+        if (awaitingAck) {
+            awaitingAck = false;
+            long latency = System.nanoTime() - commandStart;
+            metrics.recordCommand(lastCommand, latency);
+            if (lastCommand == FINGERPRINT_HISPEEDSEARCH) {
+                searchLatencies[searchBucket] = Math.max(searchLatencies[searchBucket], latency);
+                searchSamples[searchBucket]++;
             }
         }
+        return codec.payload();
     }
 
-    private static final char[] hexArray = "0123456789ABCDEF".toCharArray();
+    /**
+     * @return time in nanoseconds to wait for acknowledge of the command
+     */
+    private long replyTimeout(int command) {
+        long configured = timeouts[command];
+        if (!adaptiveTimeout || !IDEMPOTENT[command] || command == FINGERPRINT_GETIMAGE) {
+            // Capture takes much longer with finger than without it, so idle polling can't predict it
+            return configured;
+        }
+        if (command == FINGERPRINT_HISPEEDSEARCH) {
+            if (searchSamples[searchBucket] < ADAPTIVE_MIN_SAMPLES) {
+                return configured;
+            }
+            return Math.min(configured, Math.max(ADAPTIVE_MIN_TIMEOUT, searchLatencies[searchBucket] * 2 + ADAPTIVE_MARGIN));
+        }
+        long calls = metrics.getCalls(command);
+        if (calls < ADAPTIVE_MIN_SAMPLES) {
+            return configured;
+        }
+        if (calls - adaptiveUpdated[command] >= ADAPTIVE_UPDATE_INTERVAL || calls < adaptiveUpdated[command]
+                || adaptiveTimeouts[command] == 0) {
+            long latency = TimeUnit.MICROSECONDS.toNanos(metrics.getLatencyPercentile(command, 0.99));
+            adaptiveTimeouts[command] = Math.max(ADAPTIVE_MIN_TIMEOUT, latency * 2 + ADAPTIVE_MARGIN);
+            adaptiveUpdated[command] = calls;
+        }
+        return Math.min(configured, adaptiveTimeouts[command]);
+    }
 
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 3];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 3] = hexArray[v >>> 4];
-            hexChars[j * 3 + 1] = hexArray[v & 0x0F];
-            hexChars[j * 3 + 2] = ' ';
+    private boolean decode() throws FingerprintException {
+        try {
+            return codec.decode(received);
+        } catch (FingerprintException ex) {
+            metrics.recordBadPacket();
+            throw ex;
         }
-        return new String(hexChars);
     }
 }
@@ -0,0 +1,82 @@
+package sk.mimac.fingerprint.adafruit;
+
+import gnu.io.NRSerialPort;
+import gnu.io.SerialPortEvent;
+import java.util.TooManyListenersException;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Transport over serial port. Reading waits for the port's data-available
+ * notification; if the port doesn't support notifications, it's polled.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitSerialTransport extends AdafruitStreamTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitSerialTransport.class);
+
+    private final NRSerialPort serial;
+
+    /**
+     * @param serialPort where the fingerprint sensor is connected
+     * @param baudRate of the sensor's serial interface
+     */
+    public AdafruitSerialTransport(String serialPort, int baudRate) {
+        super(null, null);
+        this.serial = new NRSerialPort(serialPort, baudRate);
+    }
+
+    @Override
+    public void open() throws FingerprintException {
+        if (!serial.connect()) {
+            throw new FingerprintException("Can't connect to fingerprint sensor", "sensor.cant.connect");
+        }
+        input = serial.getInputStream();
+        output = serial.getOutputStream();
+        try {
+            serial.addEventListener(this::serialEvent);
+            serial.notifyOnDataAvailable(true);
+            notifying = true;
+        } catch (TooManyListenersException ex) {
+            logger.warn("Can't listen for serial events, falling back to polling: " + ex);
+        }
+    }
+
+    @Override
+    public int getBaudRate() {
+        return serial.getBaud();
+    }
+
+    @Override
+    public boolean supportsBaudRate() {
+        return true;
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) {
+        serial.setBaud(baudRate);
+    }
+
+    @Override
+    public void close() {
+        if (!serial.isConnected()) {
+            return;
+        }
+        try {
+            if (notifying) {
+                notifying = false;
+                serial.removeEventListener();
+            }
+            serial.disconnect();
+        } catch (Exception ex) {
+            logger.warn("Error while disconnecting from fingerprint sensor: " + ex);
+        }
+    }
+
+    private void serialEvent(SerialPortEvent event) {
+        if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+            notifyDataAvailable();
+        }
+    }
+}
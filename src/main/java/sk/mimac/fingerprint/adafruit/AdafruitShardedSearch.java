@@ -0,0 +1,219 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+
+/**
+ * Search of user library partitioned across several sensors (shards), so that
+ * the library can be larger than internal memory of one sensor. Finger is
+ * captured on one of the sensors (reader), its model is uploaded from the
+ * character buffer and downloaded into the character buffer of all other
+ * sensors, then all shards are searched in parallel and the best match is
+ * returned.
+ * <p>
+ * Each sensor is accessed through its own {@link AdafruitScheduler}, which
+ * provides the parallelism and lets the sensors be shared with other tasks.
+ * Users are identified by global ID: positions of the first shard, followed
+ * by positions of the second shard, etc. (see {@link #toGlobalId(int, int)
+ * toGlobalId}).
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitShardedSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitShardedSearch.class);
+
+    /**
+     * Maximal size of uploaded model in bytes.
+     */
+    private static final int MAX_MODEL_SIZE = 2048;
+
+    private final List<AdafruitScheduler> shards;
+    private final int[] offsets;
+
+    /**
+     * @param shards started schedulers of connected sensors, in order of
+     * global IDs
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public AdafruitShardedSearch(List<AdafruitScheduler> shards) throws FingerprintException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = new ArrayList<>(shards);
+        this.offsets = new int[shards.size() + 1];
+        for (int i = 0; i < shards.size(); i++) {
+            offsets[i + 1] = offsets[i] + shards.get(i).execute(AdafruitScheduler.Priority.NORMAL, AdafruitSensor::getLibrarySize);
+        }
+    }
+
+    /**
+     * Search all shards for match with finger on which
+     * {@link AdafruitSensor#hasFingerprint() hasFingerprint} was called on the
+     * reader. The whole operation on the reader (upload of the model and
+     * search of its own library) is one task, so capturing by other tasks
+     * can't overwrite the character buffer in the meantime.
+     * <p>
+     * If some shards fail, results of the others are still used; the error is
+     * thrown only if no shard found a match.
+     *
+     * @param reader index of shard on which the finger was captured
+     * @return the best match (with the highest confidence) or null if
+     * fingerprint doesn't match any stored fingerprint
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public ShardResult search(int reader) throws FingerprintException {
+        List<CompletableFuture<SearchResult>> remotes = new ArrayList<>(shards.size());
+        CompletableFuture<SearchResult> local = shards.get(reader).submit(AdafruitScheduler.Priority.HIGH, sensor -> {
+            ByteBuffer model = ByteBuffer.allocate(MAX_MODEL_SIZE);
+            sensor.uploadModel(1, model);
+            ((Buffer) model).flip();
+            for (int i = 0; i < shards.size(); i++) {
+                ByteBuffer copy = model.asReadOnlyBuffer();
+                remotes.add(i == reader ? null : shards.get(i).submit(AdafruitScheduler.Priority.HIGH, shard -> {
+                    shard.downloadModel(copy, 1);
+                    return shard.search();
+                }));
+            }
+            return sensor.search();
+        });
+        ShardResult best = null;
+        FingerprintException error = null;
+        for (int i = 0; i < shards.size(); i++) {
+            try {
+                // Results of other shards are submitted by the local task
+                SearchResult result = await(i == reader ? local : awaitRemote(local, remotes, i));
+                if (result != null && (best == null || result.getConfidence() > best.getConfidence())) {
+                    best = new ShardResult(i, result.getId(), toGlobalId(i, result.getId()), result.getConfidence());
+                }
+            } catch (FingerprintException ex) {
+                logger.warn("Search of shard " + i + " failed: " + ex.getMessage());
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+        if (best == null && error != null) {
+            throw error;
+        }
+        if (best != null && logger.isDebugEnabled()) {
+            logger.debug("Found fingerprint in shard " + best.getShard() + " with number " + best.getId());
+        }
+        return best;
+    }
+
+    private static CompletableFuture<SearchResult> awaitRemote(CompletableFuture<SearchResult> local,
+            List<CompletableFuture<SearchResult>> remotes, int shard) throws FingerprintException {
+        try {
+            await(local);
+        } catch (FingerprintException ex) {
+            if (remotes.size() <= shard) {
+                throw new FingerprintException("Model wasn't uploaded from the reader", ex.getKey(), ex);
+            }
+        }
+        return remotes.get(shard);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws FingerprintException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof FingerprintException) {
+                throw (FingerprintException) ex.getCause();
+            }
+            throw new IllegalStateException("Sensor task failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintException("Interrupted while waiting for sensor task", "sensor.not.responding", ex);
+        } catch (CancellationException ex) {
+            throw new FingerprintException("Scheduler was stopped", "sensor.not.responding", ex);
+        }
+    }
+
+    /**
+     * @param shard index of shard
+     * @param slot position in the shard's internal memory
+     * @return global ID of the user
+     */
+    public int toGlobalId(int shard, int slot) {
+        return offsets[shard] + slot;
+    }
+
+    /**
+     * @param globalId of the user
+     * @return index of shard which stores the user's model
+     */
+    public int toShard(int globalId) {
+        if (globalId < 0 || globalId >= getLibrarySize()) {
+            throw new IllegalArgumentException("ID " + globalId + " is out of library size " + getLibrarySize());
+        }
+        int shard = 0;
+        while (offsets[shard + 1] <= globalId) {
+            shard++;
+        }
+        return shard;
+    }
+
+    /**
+     * @param globalId of the user
+     * @return position of the user's model in internal memory of its shard
+     */
+    public int toSlot(int globalId) {
+        return globalId - offsets[toShard(globalId)];
+    }
+
+    /**
+     * @return total size of library of all shards
+     */
+    public int getLibrarySize() {
+        return offsets[shards.size()];
+    }
+
+    public List<AdafruitScheduler> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Result of successful search in one of the shards.
+     */
+    public static class ShardResult extends SearchResult {
+
+        private final int shard;
+        private final int globalId;
+
+        public ShardResult(int shard, int id, int globalId, int confidence) {
+            super(id, confidence);
+            this.shard = shard;
+            this.globalId = globalId;
+        }
+
+        /**
+         * @return index of shard in which the fingerprint was matched
+         */
+        public int getShard() {
+            return shard;
+        }
+
+        /**
+         * @return global ID of matched user
+         */
+        public int getGlobalId() {
+            return globalId;
+        }
+
+        @Override
+        public String toString() {
+            return "ShardResult{shard=" + shard + ", id=" + getId() + ", globalId=" + globalId + ", confidence=" + getConfidence() + '}';
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.Priority;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.SensorTask;
+
+/**
+ * Keeps track of occupied positions (slots) in sensor's internal memory,
+ * allocates free slots for new models and deletes many slots at once. The
+ * map of occupied slots is read from the sensor by {@link #refresh() refresh}
+ * and then kept in sync with stores and deletes done through this class;
+ * stores done directly through the sensor should be reported by
+ * {@link #markOccupied(int) markOccupied}.
+ * <p>
+ * Deleted slots are coalesced into as few DELETE commands as possible: a
+ * range may span free slots, only occupied slots which are kept split it.
+ * Slots in a range which is being deleted are reserved, so they aren't
+ * allocated before the DELETE command is sent.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitSlotAllocator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitSlotAllocator.class);
+
+    private final AdafruitSensor sensor;
+    private final AdafruitScheduler scheduler;
+    private final BitSet occupied = new BitSet();
+    private final BitSet reserved = new BitSet();
+    private int librarySize;
+
+    /**
+     * @param sensor connected sensor
+     */
+    public AdafruitSlotAllocator(AdafruitSensor sensor) {
+        this.sensor = sensor;
+        this.scheduler = null;
+    }
+
+    /**
+     * Allocator communicating with the sensor through the scheduler. Reading
+     * of occupied slots and each DELETE command are submitted as separate
+     * {@link Priority#LOW low} priority tasks, so that identification isn't
+     * delayed by deleting many slots; saving of a model is
+     * {@link Priority#NORMAL normal} priority task. When called from a task,
+     * the commands are sent right away.
+     *
+     * @param scheduler running scheduler of connected sensor
+     */
+    public AdafruitSlotAllocator(AdafruitScheduler scheduler) {
+        this.sensor = null;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Read library size and occupied slots from the sensor. If the library
+     * is empty, index table isn't read at all. Reservations are kept.
+     *
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public void refresh() throws FingerprintException {
+        int size = execute(Priority.LOW, AdafruitSensor::getLibrarySize);
+        int count = execute(Priority.LOW, AdafruitSensor::getTemplateCount);
+        BitSet table = count > 0 ? execute(Priority.LOW, sensor -> sensor.readIndexTable(size)) : new BitSet();
+        if (table.cardinality() != count) {
+            logger.warn("Sensor reports " + count + " models, but index table has " + table.cardinality());
+        }
+        synchronized (this) {
+            librarySize = size;
+            occupied.clear();
+            occupied.or(table);
+        }
+        logger.debug("Library has " + table.cardinality() + " of " + size + " slots occupied");
+    }
+
+    private void requireRefreshed() throws FingerprintException {
+        if (getLibrarySize() == 0) {
+            refresh();
+        }
+    }
+
+    /**
+     * Run task on the sensor, through the scheduler if there is one. Lock of
+     * this allocator must not be held, tasks of the scheduler may use it.
+     */
+    private <T> T execute(Priority priority, SensorTask<T> task) throws FingerprintException {
+        return scheduler != null ? scheduler.execute(priority, task) : task.run(sensor);
+    }
+
+    /**
+     * Reserve the lowest free slot. The slot should be used for storing a
+     * model and then {@link #markOccupied(int) marked as occupied}, or
+     * {@link #release(int) released}.
+     *
+     * @return reserved slot or -1 if the library is full
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int allocate() throws FingerprintException {
+        requireRefreshed();
+        synchronized (this) {
+            int slot = nextFree(0);
+            if (slot >= 0) {
+                reserved.set(slot);
+            }
+            return slot;
+        }
+    }
+
+    private int nextFree(int from) {
+        int slot = from;
+        while (true) {
+            slot = occupied.nextClearBit(slot);
+            if (slot >= librarySize) {
+                return -1;
+            }
+            if (!reserved.get(slot)) {
+                return slot;
+            }
+            slot++;
+        }
+    }
+
+    /**
+     * Cancel reservation of a slot, which wasn't used.
+     *
+     * @param slot reserved slot
+     */
+    public synchronized void release(int slot) {
+        reserved.clear(slot);
+    }
+
+    /**
+     * Mark slot as occupied, after model was stored to it directly through
+     * the sensor.
+     *
+     * @param slot position in sensor's internal memory
+     */
+    public synchronized void markOccupied(int slot) {
+        reserved.clear(slot);
+        occupied.set(slot);
+    }
+
+    /**
+     * Save model to the lowest free slot.
+     *
+     * @param model of fingerprint
+     * @return slot to which the model was saved or -1 if the library is full
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int save(byte[] model) throws FingerprintException {
+        int slot = allocate();
+        if (slot < 0) {
+            return -1;
+        }
+        try {
+            execute(Priority.NORMAL, sensor -> {
+                sensor.saveModel(model, slot);
+                return null;
+            });
+        } catch (FingerprintException | RuntimeException ex) {
+            release(slot);
+            throw ex;
+        }
+        markOccupied(slot);
+        return slot;
+    }
+
+    /**
+     * Store model from sensor's character buffer to the lowest free slot.
+     *
+     * @param buffer number of character buffer (1 or 2)
+     * @return slot to which the model was stored or -1 if the library is full
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int store(int buffer) throws FingerprintException {
+        int slot = allocate();
+        if (slot < 0) {
+            return -1;
+        }
+        try {
+            execute(Priority.NORMAL, sensor -> {
+                sensor.storeModel(buffer, slot);
+                return null;
+            });
+        } catch (FingerprintException | RuntimeException ex) {
+            release(slot);
+            throw ex;
+        }
+        markOccupied(slot);
+        return slot;
+    }
+
+    /**
+     * Delete models from given slots, with as few DELETE commands as
+     * possible.
+     *
+     * @param slots positions to delete
+     * @return number of sent DELETE commands
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int delete(Collection<Integer> slots) throws FingerprintException {
+        BitSet toDelete = new BitSet();
+        for (Integer slot : slots) {
+            toDelete.set(slot);
+        }
+        return delete(toDelete);
+    }
+
+    /**
+     * Delete models from given slots, with as few DELETE commands as
+     * possible.
+     *
+     * @param slots positions to delete
+     * @return number of sent DELETE commands
+     * @throws FingerprintException if there is problem with communication to
+     * sensor
+     */
+    public int delete(BitSet slots) throws FingerprintException {
+        requireRefreshed();
+        BitSet toDelete = (BitSet) slots.clone();
+        List<int[]> ranges;
+        synchronized (this) {
+            if (slots.length() > librarySize) {
+                throw new IllegalArgumentException("Slot " + (slots.length() - 1) + " is out of library size " + librarySize);
+            }
+            toDelete.and(occupied);
+            BitSet kept = (BitSet) occupied.clone();
+            kept.andNot(toDelete);
+            kept.or(reserved);
+            ranges = coalesce(toDelete, kept);
+            for (int[] range : ranges) {
+                reserved.set(range[0], range[0] + range[1]);
+            }
+        }
+        int done = 0;
+        try {
+            for (int[] range : ranges) {
+                execute(Priority.LOW, sensor -> {
+                    sensor.deleteModels(range[0], range[1]);
+                    return null;
+                });
+                synchronized (this) {
+                    occupied.clear(range[0], range[0] + range[1]);
+                    reserved.clear(range[0], range[0] + range[1]);
+                }
+                done++;
+            }
+        } finally {
+            synchronized (this) {
+                for (int[] range : ranges.subList(done, ranges.size())) {
+                    reserved.clear(range[0], range[0] + range[1]);
+                }
+            }
+        }
+        logger.debug("Deleted " + toDelete.cardinality() + " models with " + ranges.size() + " commands");
+        return ranges.size();
+    }
+
+    /**
+     * Merge positions to delete into ranges, so that no range contains a
+     * position to keep.
+     *
+     * @param toDelete positions to delete
+     * @param kept positions which must not be deleted
+     * @return list of ranges as [first position, count]
+     */
+    static List<int[]> coalesce(BitSet toDelete, BitSet kept) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = toDelete.nextSetBit(0);
+        while (start >= 0) {
+            int end = toDelete.nextClearBit(start);
+            int next = toDelete.nextSetBit(end);
+            while (next >= 0) {
+                int keep = kept.nextSetBit(end);
+                if (keep >= 0 && keep < next) {
+                    break;
+                }
+                end = toDelete.nextClearBit(next);
+                next = toDelete.nextSetBit(end);
+            }
+            ranges.add(new int[]{start, end - start});
+            start = next;
+        }
+        return ranges;
+    }
+
+    /**
+     * @param slot position in sensor's internal memory
+     * @return true if the slot is occupied
+     */
+    public synchronized boolean isOccupied(int slot) {
+        return occupied.get(slot);
+    }
+
+    /**
+     * @return copy of set of occupied slots
+     */
+    public synchronized BitSet getOccupied() {
+        return (BitSet) occupied.clone();
+    }
+
+    /**
+     * @return number of occupied slots
+     */
+    public synchronized int getTemplateCount() {
+        return occupied.cardinality();
+    }
+
+    /**
+     * @return number of slots which are neither occupied nor reserved
+     */
+    public synchronized int getFreeCount() {
+        BitSet used = (BitSet) occupied.clone();
+        used.or(reserved);
+        return Math.max(0, librarySize - used.cardinality());
+    }
+
+    public synchronized int getLibrarySize() {
+        return librarySize;
+    }
+}
@@ -0,0 +1,242 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Single thread which performs network I/O of many
+ * {@link AdafruitSocketTransport socket transports} with one
+ * {@link Selector}. Incoming data are buffered in each transport until the
+ * sensor using it reads them, so no thread per sensor is needed for
+ * reading.
+ * <p>
+ * Commands of {@link AdafruitSensor} are synchronous: each call blocks its
+ * calling thread until the reply arrives, so sensors which are used at the
+ * same time through it need a thread each (e.g. from
+ * {@link AdafruitScheduler}). {@link AdafruitAsyncSensor} runs the protocol
+ * itself on the selector thread, so any number of sensors can be used at the
+ * same time without other threads.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitSocketSelector implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitSocketSelector.class);
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Accessed only on the selector thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Object lock = new Object();
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Start the selector thread. Does nothing if already started.
+     *
+     * @throws FingerprintException if the selector can't be opened
+     */
+    public void start() throws FingerprintException {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            try {
+                selector = Selector.open();
+            } catch (IOException ex) {
+                throw new FingerprintException("Can't open selector", "sensor.cant.connect", ex);
+            }
+            running = true;
+            thread = new Thread(this::run, "fingerprint-selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the selector thread, connections of all transports are closed.
+     */
+    public void stop() {
+        Thread toJoin;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            toJoin = thread;
+            thread = null;
+            selector.wakeup();
+        }
+        if (toJoin != Thread.currentThread()) {
+            try {
+                toJoin.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Run the task on the selector thread.
+     *
+     * @throws FingerprintException if the selector isn't running
+     */
+    void execute(Runnable task) throws FingerprintException {
+        synchronized (lock) {
+            if (!running) {
+                throw new FingerprintException("Socket selector is not running", "sensor.cant.connect");
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run the task on the selector thread after the delay, should be called
+     * only on the selector thread.
+     *
+     * @param task to run
+     * @param delay in nanoseconds
+     * @return timer which can be cancelled
+     */
+    Timer schedule(Runnable task, long delay) {
+        Timer timer = new Timer(System.nanoTime() + delay, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * @return true if called on the selector thread
+     */
+    boolean inSelectorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return selector, should be used only on the selector thread
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long wait = nextTimer();
+                if (wait < 0) {
+                    selector.select();
+                } else if (wait == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait);
+                }
+            } catch (IOException ex) {
+                logger.warn("Socket selector failed", ex);
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.warn("Socket selector task failed", ex);
+                }
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isValid()) {
+                    ((AdafruitSocketTransport) key.attachment()).handle(key);
+                }
+            }
+            runTimers();
+        }
+        running = false;
+        tasks.clear();
+        timers.clear();
+        for (SelectionKey key : selector.keys()) {
+            ((AdafruitSocketTransport) key.attachment()).fail(key, "Socket selector was stopped");
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.warn("Can't close socket selector: " + ex);
+        }
+    }
+
+    /**
+     * @return milliseconds until next timer, 0 if it's due, -1 if there is
+     * none
+     */
+    private long nextTimer() {
+        while (!timers.isEmpty() && timers.peek().cancelled) {
+            timers.poll();
+        }
+        if (timers.isEmpty()) {
+            return -1;
+        }
+        long remaining = timers.peek().deadline - System.nanoTime();
+        return remaining <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            Timer timer = timers.poll();
+            if (!timer.cancelled) {
+                try {
+                    timer.task.run();
+                } catch (RuntimeException ex) {
+                    logger.warn("Socket selector timer failed", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Task scheduled on the selector thread.
+     */
+    static class Timer implements Comparable<Timer> {
+
+        private final long deadline;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Cancel the timer, should be called only on the selector thread.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
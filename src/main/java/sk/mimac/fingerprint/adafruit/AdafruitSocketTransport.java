@@ -0,0 +1,352 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.*;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Transport over TCP connection, e.g. to sensor behind serial-to-TCP bridge
+ * (ser2net or similar) in raw mode. The connection is non-blocking and all its
+ * I/O is done by shared {@link AdafruitSocketSelector}, so one thread serves
+ * socket I/O of any number of sensors. Reads and writes of the transport still
+ * block the thread which uses the sensor, until data arrive or are buffered
+ * (unless it's used by {@link AdafruitAsyncSensor}, which reads only data
+ * which already arrived).
+ * <p>
+ * Baud rate of the sensor's serial line is configured on the bridge, so the
+ * transport can't change it.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitSocketTransport implements AdafruitTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitSocketTransport.class);
+
+    /**
+     * Default time in milliseconds to wait for connection.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final SocketAddress address;
+    private final AdafruitSocketSelector selector;
+    private final Object lock = new Object();
+    // Both buffers are in write mode, guarded by the lock
+    private final ByteBuffer inbound = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer outbound = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected;
+    private boolean readPaused;
+    private String error;
+    private Runnable receiver;
+
+    /**
+     * @param host of the bridge
+     * @param port of the bridge
+     * @param selector running selector which performs I/O of the connection
+     */
+    public AdafruitSocketTransport(String host, int port, AdafruitSocketSelector selector) {
+        this(new InetSocketAddress(host, port), selector);
+    }
+
+    /**
+     * @param address of the bridge
+     * @param selector running selector which performs I/O of the connection
+     */
+    public AdafruitSocketTransport(SocketAddress address, AdafruitSocketSelector selector) {
+        this.address = address;
+        this.selector = selector;
+    }
+
+    AdafruitSocketSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Set task which is run on the selector thread (without holding the
+     * transport's lock) after data arrive or the connection fails.
+     *
+     * @param receiver task to run, null to only buffer the data
+     */
+    void setReceiver(Runnable receiver) {
+        synchronized (lock) {
+            this.receiver = receiver;
+        }
+    }
+
+    /**
+     * @param millis time to wait for connection in milliseconds
+     */
+    public void setConnectTimeout(long millis) {
+        this.connectTimeout = millis;
+    }
+
+    @Override
+    public void open() throws FingerprintException {
+        close();
+        SocketChannel newChannel;
+        boolean finished;
+        try {
+            newChannel = SocketChannel.open();
+            newChannel.configureBlocking(false);
+            newChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            finished = newChannel.connect(address);
+        } catch (IOException ex) {
+            throw new FingerprintException("Can't connect to fingerprint sensor at " + address, "sensor.cant.connect", ex);
+        }
+        synchronized (lock) {
+            channel = newChannel;
+            connected = false;
+            readPaused = false;
+            error = null;
+            ((Buffer) inbound).clear();
+            ((Buffer) outbound).clear();
+        }
+        try {
+            selector.execute(() -> register(newChannel, finished));
+        } catch (FingerprintException ex) {
+            close();
+            throw ex;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        synchronized (lock) {
+            while (!connected && error == null) {
+                if (!await(deadline)) {
+                    error = "Timeout while connecting";
+                }
+            }
+            if (error != null) {
+                String message = error;
+                close();
+                throw new FingerprintException("Can't connect to fingerprint sensor at " + address + ": " + message, "sensor.cant.connect");
+            }
+        }
+        logger.debug("Connected to fingerprint sensor at " + address);
+    }
+
+    @Override
+    public int read(ByteBuffer target, long deadline) throws FingerprintException {
+        synchronized (lock) {
+            while (inbound.position() == 0) {
+                checkOpen("sensor.cant.read");
+                if (!await(deadline)) {
+                    return 0;
+                }
+            }
+            ((Buffer) inbound).flip();
+            int count = Math.min(inbound.remaining(), target.remaining());
+            int limit = inbound.limit();
+            ((Buffer) inbound).limit(count);
+            target.put(inbound);
+            ((Buffer) inbound).limit(limit);
+            inbound.compact();
+            if (readPaused) {
+                readPaused = false;
+                SelectionKey current = key;
+                selector.execute(() -> setInterest(current, SelectionKey.OP_READ, true));
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws FingerprintException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        synchronized (lock) {
+            checkOpen("sensor.cant.write");
+            try {
+                if (outbound.position() == 0) {
+                    // Try to write directly, usually the whole packet fits into socket buffer
+                    channel.write(data);
+                }
+            } catch (IOException ex) {
+                throw new FingerprintException("Can't write data to sensor", "sensor.cant.write", ex);
+            }
+            while (data.hasRemaining()) {
+                if (!outbound.hasRemaining() && selector.inSelectorThread()) {
+                    // Buffer is written out only by the selector thread itself
+                    throw new FingerprintException("Send buffer to sensor is full", "sensor.cant.write");
+                }
+                if (!outbound.hasRemaining() && !await(deadline)) {
+                    throw new FingerprintException("Timeout while writing data to sensor", "sensor.cant.write");
+                }
+                checkOpen("sensor.cant.write");
+                boolean wasEmpty = outbound.position() == 0;
+                int count = Math.min(outbound.remaining(), data.remaining());
+                int limit = data.limit();
+                ((Buffer) data).limit(data.position() + count);
+                outbound.put(data);
+                ((Buffer) data).limit(limit);
+                if (wasEmpty && count > 0) {
+                    SelectionKey current = key;
+                    selector.execute(() -> setInterest(current, SelectionKey.OP_WRITE, true));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        SocketChannel toClose;
+        synchronized (lock) {
+            toClose = channel;
+            channel = null;
+            key = null;
+            connected = false;
+            if (error == null) {
+                error = "Transport is closed";
+            }
+            lock.notifyAll();
+        }
+        if (toClose != null) {
+            try {
+                toClose.close();
+            } catch (IOException ex) {
+                logger.warn("Error while disconnecting from fingerprint sensor: " + ex);
+            }
+        }
+    }
+
+    private void checkOpen(String errorKey) throws FingerprintException {
+        if (error != null) {
+            throw new FingerprintException("Connection to fingerprint sensor at " + address + " failed: " + error, errorKey);
+        }
+        if (!connected) {
+            throw new FingerprintException("Transport is not opened", errorKey);
+        }
+    }
+
+    /**
+     * Wait on the lock until notified or deadline passes.
+     *
+     * @return false if the deadline passed
+     */
+    private boolean await(long deadline) throws FingerprintException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintException("Interrupted while waiting for sensor", "sensor.not.responding", ex);
+        }
+    }
+
+    /**
+     * Register the channel to the selector, runs on the selector thread.
+     */
+    private void register(SocketChannel newChannel, boolean finished) {
+        try {
+            SelectionKey newKey = newChannel.register(selector.getSelector(), finished ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            synchronized (lock) {
+                if (channel != newChannel) {
+                    newKey.cancel(); // Closed in the meantime
+                    return;
+                }
+                key = newKey;
+                connected = finished;
+                lock.notifyAll();
+            }
+        } catch (ClosedChannelException ex) {
+            synchronized (lock) {
+                if (channel == newChannel && error == null) {
+                    error = "Channel was closed";
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void setInterest(SelectionKey current, int operation, boolean enabled) {
+        if (current != null && current.isValid()) {
+            current.interestOps(enabled ? current.interestOps() | operation : current.interestOps() & ~operation);
+        }
+    }
+
+    /**
+     * Process ready operations of the channel, runs on the selector thread.
+     */
+    void handle(SelectionKey readyKey) {
+        SocketChannel readyChannel = (SocketChannel) readyKey.channel();
+        String failure = null;
+        Runnable toNotify;
+        synchronized (lock) {
+            if (readyChannel != channel) {
+                readyKey.cancel();
+                return;
+            }
+            toNotify = receiver;
+            try {
+                if (readyKey.isConnectable()) {
+                    readyChannel.finishConnect();
+                    readyKey.interestOps(SelectionKey.OP_READ | (outbound.position() > 0 ? SelectionKey.OP_WRITE : 0));
+                    connected = true;
+                    lock.notifyAll();
+                }
+                if (readyKey.isValid() && readyKey.isReadable()) {
+                    if (readyChannel.read(inbound) < 0) {
+                        failure = "Connection closed by the other side";
+                    }
+                    if (failure == null && !inbound.hasRemaining()) {
+                        // Continue reading when the sensor consumes buffered data
+                        readPaused = true;
+                        setInterest(readyKey, SelectionKey.OP_READ, false);
+                    }
+                    lock.notifyAll();
+                }
+                if (failure == null && readyKey.isValid() && readyKey.isWritable()) {
+                    ((Buffer) outbound).flip();
+                    readyChannel.write(outbound);
+                    outbound.compact();
+                    if (outbound.position() == 0) {
+                        setInterest(readyKey, SelectionKey.OP_WRITE, false);
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException ex) {
+                failure = ex.toString();
+            }
+        }
+        if (failure != null) {
+            fail(readyKey, failure);
+        } else if (toNotify != null) {
+            toNotify.run();
+        }
+    }
+
+    /**
+     * Mark the connection as failed, waiting reads and writes throw
+     * exception.
+     */
+    void fail(SelectionKey failedKey, String message) {
+        Runnable toNotify = null;
+        synchronized (lock) {
+            failedKey.cancel();
+            if (failedKey.channel() == channel && error == null) {
+                logger.debug("Connection to fingerprint sensor at " + address + " failed: " + message);
+                error = message;
+                toNotify = receiver;
+                lock.notifyAll();
+            }
+        }
+        if (toNotify != null) {
+            toNotify.run();
+        }
+    }
+}
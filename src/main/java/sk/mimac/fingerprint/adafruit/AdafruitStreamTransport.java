@@ -0,0 +1,117 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Transport over already opened streams (e.g. in-process
+ * {@code AdafruitEmulator} from test classes). The input stream is polled for available data,
+ * unless a subclass {@link #notifyDataAvailable() notifies} about it.
+ * Streams are not closed by the transport.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitStreamTransport implements AdafruitTransport {
+
+    /**
+     * Polling interval in milliseconds for input streams which don't notify
+     * about available data.
+     */
+    private static final long POLL_INTERVAL = 1;
+
+    private final Object inputLock = new Object();
+
+    protected InputStream input;
+    protected OutputStream output;
+    protected volatile boolean notifying;
+
+    /**
+     * @param input stream with data sent by the sensor
+     * @param output stream with data sent to the sensor
+     */
+    public AdafruitStreamTransport(InputStream input, OutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    @Override
+    public void open() throws FingerprintException {
+        // Streams are already opened
+    }
+
+    @Override
+    public int read(ByteBuffer target, long deadline) throws FingerprintException {
+        try {
+            int available = waitForInput(deadline);
+            if (available == 0) {
+                return 0;
+            }
+            int count = input.read(target.array(), target.arrayOffset() + target.position(), Math.min(available, target.remaining()));
+            if (count < 0) {
+                throw new FingerprintException("End of input stream", "sensor.cant.read");
+            }
+            ((Buffer) target).position(target.position() + count);
+            return count;
+        } catch (IOException ex) {
+            throw new FingerprintException("Can't read data from sensor", "sensor.cant.read", ex);
+        }
+    }
+
+    /**
+     * Wait until there are data to read or deadline passes. When the
+     * subclass notifies about incoming data, the wait is woken up right away,
+     * otherwise the input is polled.
+     *
+     * @return number of bytes available, 0 if deadline passed
+     */
+    private int waitForInput(long deadline) throws IOException, FingerprintException {
+        synchronized (inputLock) {
+            int available;
+            while ((available = input.available()) == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return 0;
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(remaining) + 1;
+                try {
+                    inputLock.wait(notifying ? millis : Math.min(millis, POLL_INTERVAL));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new FingerprintException("Interrupted while waiting for reply", "sensor.not.responding", ex);
+                }
+            }
+            return available;
+        }
+    }
+
+    /**
+     * Wake up thread waiting for input, should be called by subclasses which
+     * set {@link #notifying} when new data arrives.
+     */
+    protected void notifyDataAvailable() {
+        synchronized (inputLock) {
+            inputLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws FingerprintException {
+        try {
+            output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            output.flush();
+            ((Buffer) data).position(data.limit());
+        } catch (IOException ex) {
+            throw new FingerprintException("Can't write data to sensor", "sensor.cant.write", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Streams are owned by the caller
+    }
+}
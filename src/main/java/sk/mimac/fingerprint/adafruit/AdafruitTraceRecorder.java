@@ -0,0 +1,351 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.*;
+
+/**
+ * Records all bytes exchanged with the sensor into binary trace files, for
+ * later analysis or replay by {@link AdafruitReplayTransport}. Connect it
+ * through {@link AdafruitRecordingTransport}.
+ * <p>
+ * Each file starts with header: magic "FPTR" (4 bytes), version (2 bytes),
+ * reserved (2 bytes) and wall clock time in milliseconds at which the
+ * recording started (8 bytes). Then events follow: type (1 byte, see
+ * {@code EVENT_*} constants), nanoseconds since the recording started
+ * (8 bytes), length of data (2 bytes) and the data.
+ * <p>
+ * Events are collected in memory buffers, which are written by a background
+ * thread when they are full, on {@link #flush() flush} or
+ * {@link #close() close}, so disk latency doesn't delay communication with
+ * the sensor. When a file reaches the maximal size, next file is started
+ * (named {@code <name>-<number>.fptr}) and the oldest files over the limit
+ * are deleted.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitTraceRecorder implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdafruitTraceRecorder.class);
+
+    static final int MAGIC = 0x46505452; // "FPTR"
+    static final short VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    static final int EVENT_HEADER_SIZE = 11;
+
+    /**
+     * Bytes written to the sensor.
+     */
+    public static final byte EVENT_WRITE = 1;
+    /**
+     * Bytes read from the sensor.
+     */
+    public static final byte EVENT_READ = 2;
+    /**
+     * Transport was opened, data contain baud rate (4 bytes, 0 if unknown).
+     */
+    public static final byte EVENT_OPEN = 3;
+    /**
+     * Transport was closed.
+     */
+    public static final byte EVENT_CLOSE = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 4;
+    private static final int MAX_EVENT_DATA = BUFFER_SIZE - EVENT_HEADER_SIZE;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Path directory;
+    private final String name;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> full = new LinkedBlockingQueue<>();
+    private final Deque<Path> files = new ArrayDeque<>();
+    private final Object writtenLock = new Object();
+    private final Thread writer;
+
+    // Guarded by this
+    private ByteBuffer buffer;
+    private boolean closed;
+    private long submitted;
+    private long dropped;
+
+    // Guarded by writtenLock
+    private long written;
+    private IOException error;
+
+    // Used only by the writer thread (and constructor)
+    private FileChannel channel;
+    private long fileSize;
+    private int fileNumber;
+
+    /**
+     * @param directory where trace files are created
+     * @param name prefix of file names
+     * @param maxFileSize size of file in bytes after which next file is
+     * started
+     * @param maxFiles maximal number of kept files
+     * @throws IOException if the first file can't be created
+     */
+    public AdafruitTraceRecorder(Path directory, String name, long maxFileSize, int maxFiles) throws IOException {
+        if (maxFileSize < FILE_HEADER_SIZE + EVENT_HEADER_SIZE || maxFiles < 1) {
+            throw new IllegalArgumentException("Invalid limits: " + maxFileSize + " bytes, " + maxFiles + " files");
+        }
+        this.directory = directory;
+        this.name = name;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        Files.createDirectories(directory);
+        startFile();
+        for (int i = 1; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        writer = new Thread(this::run, "fingerprint-trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record an event. Recording never affects communication with the
+     * sensor: events after {@link #close() close} are ignored, and when the
+     * writer can't keep up with the disk, events are dropped and
+     * {@link #getDroppedEvents() counted}.
+     *
+     * @param type of the event
+     * @param data between position and limit of the buffer (position isn't
+     * changed), can be null for events without data
+     */
+    public synchronized void record(byte type, ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        int position = data != null ? data.position() : 0;
+        int end = data != null ? data.limit() : 0;
+        try {
+            do {
+                int length = Math.min(end - position, MAX_EVENT_DATA);
+                if (buffer != null && buffer.remaining() < EVENT_HEADER_SIZE + length) {
+                    submit();
+                }
+                if (buffer == null && (buffer = free.poll()) == null) {
+                    if (dropped++ == 0) {
+                        logger.warn("Trace writer can't keep up, dropping events");
+                    }
+                    return;
+                }
+                buffer.put(type).putLong(nanos).putShort((short) length);
+                for (int i = position; i < position + length; i++) {
+                    buffer.put(data.get(i));
+                }
+                position += length;
+            } while (position < end);
+        } catch (RuntimeException ex) {
+            logger.warn("Can't record trace event: " + ex);
+        }
+    }
+
+    /**
+     * Hand current buffer to the writer thread.
+     */
+    private void submit() {
+        if (buffer != null && buffer.position() > 0) {
+            ((Buffer) buffer).flip();
+            full.add(buffer);
+            submitted++;
+            buffer = free.poll();
+        }
+    }
+
+    /**
+     * Write recorded events to the file and wait until they are written.
+     *
+     * @throws IOException if the file couldn't be written since last flush
+     */
+    public void flush() throws IOException {
+        long target;
+        synchronized (this) {
+            submit();
+            target = submitted;
+        }
+        awaitWritten(target);
+    }
+
+    private void awaitWritten(long target) throws IOException {
+        synchronized (writtenLock) {
+            while (written < target && writer.isAlive()) {
+                try {
+                    writtenLock.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing trace");
+                }
+            }
+            IOException lastError = error;
+            error = null;
+            if (lastError != null) {
+                throw lastError;
+            }
+        }
+    }
+
+    /**
+     * @return number of events which were dropped because the writer
+     * couldn't keep up
+     */
+    public synchronized long getDroppedEvents() {
+        return dropped;
+    }
+
+    /**
+     * @return existing trace files, from the oldest
+     */
+    public List<Path> getFiles() {
+        synchronized (files) {
+            return new ArrayList<>(files);
+        }
+    }
+
+    /**
+     * Write remaining events and close the file, following events are
+     * ignored.
+     *
+     * @throws IOException if the file couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            submit();
+            full.add(END);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing trace");
+        }
+        awaitWritten(0);
+    }
+
+    private void run() {
+        while (true) {
+            ByteBuffer events;
+            try {
+                events = full.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            if (events == END) {
+                break;
+            }
+            try {
+                writeEvents(events);
+            } catch (IOException ex) {
+                logger.warn("Can't write trace: " + ex);
+                setError(ex);
+            } catch (RuntimeException ex) {
+                logger.warn("Can't write trace", ex);
+            }
+            ((Buffer) events).clear();
+            free.add(events);
+            synchronized (writtenLock) {
+                written++;
+                writtenLock.notifyAll();
+            }
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException ex) {
+            setError(ex);
+        }
+    }
+
+    private void setError(IOException ex) {
+        synchronized (writtenLock) {
+            error = ex;
+        }
+    }
+
+    /**
+     * Write events to files, rotating them between events.
+     */
+    private void writeEvents(ByteBuffer events) throws IOException {
+        if (channel == null) {
+            startFile();
+        }
+        int start = events.position();
+        int end = start;
+        while (end < events.limit()) {
+            int size = EVENT_HEADER_SIZE + (events.getShort(end + EVENT_HEADER_SIZE - 2) & 0xFFFF);
+            long pending = fileSize + end - start;
+            if (pending + size > maxFileSize && pending > FILE_HEADER_SIZE) {
+                write(events, start, end);
+                rotate();
+                start = end;
+            }
+            end += size;
+        }
+        write(events, start, end);
+    }
+
+    private void write(ByteBuffer events, int start, int end) throws IOException {
+        ByteBuffer range = events.duplicate();
+        ((Buffer) range).limit(end);
+        ((Buffer) range).position(start);
+        while (range.hasRemaining()) {
+            fileSize += channel.write(range);
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        channel = null;
+        startFile();
+        synchronized (files) {
+            while (files.size() > maxFiles) {
+                Files.deleteIfExists(files.removeFirst());
+            }
+        }
+    }
+
+    private void startFile() throws IOException {
+        Path file = directory.resolve(String.format("%s-%06d.fptr", name, fileNumber++));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        synchronized (files) {
+            files.addLast(file);
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(startMillis);
+        ((Buffer) header).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        fileSize = FILE_HEADER_SIZE;
+        logger.debug("Recording trace to " + file);
+    }
+}
@@ -0,0 +1,78 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import sk.mimac.fingerprint.FingerprintException;
+
+/**
+ * Byte channel between {@link AdafruitSensor} and the sensor hardware (serial
+ * port, streams, network bridge). The sensor uses the transport from one
+ * thread at a time.
+ *
+ * @author Milan Fabian
+ * @see AdafruitSerialTransport
+ * @see AdafruitStreamTransport
+ * @see AdafruitSocketTransport
+ */
+public interface AdafruitTransport extends Closeable {
+
+    /**
+     * Open the channel, called on every (re)connect of the sensor.
+     *
+     * @throws FingerprintException if the channel can't be opened
+     */
+    void open() throws FingerprintException;
+
+    /**
+     * Read available bytes, waiting until at least one byte is available or
+     * the deadline passes.
+     *
+     * @param target buffer to which bytes are read, starting at its position
+     * @param deadline value of {@link System#nanoTime()} until which to wait
+     * @return number of read bytes, 0 if the deadline passed
+     * @throws FingerprintException if the channel is closed or can't be read
+     */
+    int read(ByteBuffer target, long deadline) throws FingerprintException;
+
+    /**
+     * Write all remaining bytes of the buffer.
+     *
+     * @param data bytes to write
+     * @throws FingerprintException if the channel is closed or can't be
+     * written
+     */
+    void write(ByteBuffer data) throws FingerprintException;
+
+    /**
+     * @return baud rate of the serial line, or 0 if it's unknown or can't be
+     * changed by the transport
+     */
+    default int getBaudRate() {
+        return 0;
+    }
+
+    /**
+     * @return true if baud rate can be changed by
+     * {@link #setBaudRate(int) setBaudRate}
+     */
+    default boolean supportsBaudRate() {
+        return false;
+    }
+
+    /**
+     * Change baud rate of the serial line, takes effect on next
+     * {@link #open() open}. Ignored if the transport doesn't
+     * {@link #supportsBaudRate() support} it.
+     *
+     * @param baudRate new baud rate
+     */
+    default void setBaudRate(int baudRate) {
+        // Baud rate is fixed
+    }
+
+    /**
+     * Close the channel, it can be opened again.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,90 @@
+package sk.mimac.fingerprint.adafruit;
+
+/**
+ * Snapshot of statistics of one command, see {@link AdafruitMetrics}. All
+ * latencies are in microseconds.
+ *
+ * @author Milan Fabian
+ */
+public class CommandStatistics {
+
+    private final int command;
+    private final long calls;
+    private final long timeouts;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long meanLatency;
+    private final long medianLatency;
+    private final long p99Latency;
+    private final long maxLatency;
+
+    public CommandStatistics(int command, long calls, long timeouts, long bytesSent, long bytesReceived,
+            long meanLatency, long medianLatency, long p99Latency, long maxLatency) {
+        this.command = command;
+        this.calls = calls;
+        this.timeouts = timeouts;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.meanLatency = meanLatency;
+        this.medianLatency = medianLatency;
+        this.p99Latency = p99Latency;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * @return code of the command from {@link AdafruitConstants}
+     */
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * @return number of commands which were acknowledged
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return number of commands without reply in time
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return bytes sent to the sensor (including data packets)
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return bytes received from the sensor (including data packets)
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getMeanLatency() {
+        return meanLatency;
+    }
+
+    public long getMedianLatency() {
+        return medianLatency;
+    }
+
+    public long getP99Latency() {
+        return p99Latency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandStatistics{command=0x" + Integer.toHexString(command) + ", calls=" + calls + ", timeouts=" + timeouts
+                + ", p50=" + medianLatency + "us, p99=" + p99Latency + "us, max=" + maxLatency + "us}";
+    }
+}
@@ -0,0 +1,61 @@
+package sk.mimac.fingerprint.store;
+
+/**
+ * Metadata of fingerprint model saved in {@link TemplateStore}.
+ *
+ * @author Milan Fabian
+ */
+public class TemplateRecord {
+
+    private final int userId;
+    private final int sensorId;
+    private final int slot;
+    private final long generation;
+    private final long digest;
+
+    public TemplateRecord(int userId, int sensorId, int slot, long generation, long digest) {
+        this.userId = userId;
+        this.sensorId = sensorId;
+        this.slot = slot;
+        this.generation = generation;
+        this.digest = digest;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return identifier of the sensor to which the model belongs
+     */
+    public int getSensorId() {
+        return sensorId;
+    }
+
+    /**
+     * @return position of the model in sensor's internal memory
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return value of store's generation counter when the model was written
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return digest of the model (see {@link TemplateStore#digest(byte[])})
+     */
+    public long getDigest() {
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateRecord{userId=" + userId + ", sensorId=" + sensorId + ", slot=" + slot
+                + ", generation=" + generation + '}';
+    }
+}
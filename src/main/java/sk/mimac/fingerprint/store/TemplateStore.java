@@ -0,0 +1,422 @@
+package sk.mimac.fingerprint.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.slf4j.*;
+
+/**
+ * Persistent host-side store of fingerprint models, kept in memory-mapped
+ * file. Each user has one model of fixed size ({@link #TEMPLATE_SIZE}) which
+ * is assigned to a position (slot) in memory of one sensor. Only metadata of
+ * the models are kept on heap, models are read directly from the mapped file.
+ * <p>
+ * Models are never overwritten in place: new version is written to a free
+ * record with higher generation and checksum, and only then the old record is
+ * freed. When the store is opened, records with invalid checksum are ignored
+ * and if there are two records of the same user, the newer one is used, so
+ * the store stays consistent after crash in the middle of a write.
+ * <p>
+ * The class is thread-safe.
+ *
+ * @author Milan Fabian
+ */
+public class TemplateStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TemplateStore.class);
+
+    public static final int TEMPLATE_SIZE = 512;
+
+    private static final int MAGIC = 0x46505453; // "FPTS"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 576;
+    private static final int HEADER_SIZE = RECORD_SIZE;
+    private static final int SEGMENT_RECORDS = 16384;
+    private static final long SEGMENT_SIZE = (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_VALID = 0x56414C44; // "VALD"
+
+    private static final int OFFSET_STATE = 0;
+    private static final int OFFSET_USER = 4;
+    private static final int OFFSET_SENSOR = 8;
+    private static final int OFFSET_SLOT = 12;
+    private static final int OFFSET_GENERATION = 16;
+    private static final int OFFSET_DIGEST = 24;
+    private static final int OFFSET_CHECKSUM = 32;
+    private static final int OFFSET_TEMPLATE = 64;
+
+    private final FileChannel channel;
+    private final boolean durable;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Map<Integer, Integer> users = new HashMap<>();
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final BitSet used = new BitSet();
+    private final CRC32 crc = new CRC32();
+    private long generation;
+
+    /**
+     * Open the store, creating the file if it doesn't exist.
+     *
+     * @param file path to the store file
+     * @param durable if true, each write is forced to the storage device
+     * before it is considered done (survives also power failure, not only
+     * application crash)
+     * @throws IOException if the file can't be opened or isn't a valid store
+     */
+    public TemplateStore(Path file, boolean durable) throws IOException {
+        this.durable = durable;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            open();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void open() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        if (channel.size() == 0) {
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(TEMPLATE_SIZE);
+            ((Buffer) header).flip();
+            channel.write(header, 0);
+        } else {
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Not a template store or unsupported version");
+            }
+        }
+        long segmentCount = (channel.size() - HEADER_SIZE + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        for (int i = 0; i < segmentCount; i++) {
+            mapSegment();
+        }
+        List<long[]> valid = new ArrayList<>();
+        for (int record = 0; record < segments.size() * SEGMENT_RECORDS; record++) {
+            ByteBuffer segment = segment(record);
+            int offset = offset(record);
+            if (segment.getInt(offset + OFFSET_STATE) != STATE_VALID) {
+                continue;
+            }
+            if (checksum(segment, offset) != segment.getInt(offset + OFFSET_CHECKSUM)) {
+                logger.warn("Ignoring damaged record " + record + " in template store");
+                segment.putInt(offset + OFFSET_STATE, STATE_FREE);
+                continue;
+            }
+            valid.add(new long[]{segment.getLong(offset + OFFSET_GENERATION), record});
+        }
+        // Replay records in order in which they were written, so that records
+        // left over after crash in the middle of a write are replaced by newer ones
+        valid.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (long[] entry : valid) {
+            generation = entry[0];
+            replace((int) entry[1]);
+        }
+    }
+
+    private void mapSegment() throws IOException {
+        long position = HEADER_SIZE + segments.size() * SEGMENT_SIZE;
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+    }
+
+    private MappedByteBuffer segment(int record) {
+        return segments.get(record / SEGMENT_RECORDS);
+    }
+
+    private static int offset(int record) {
+        return (record % SEGMENT_RECORDS) * RECORD_SIZE;
+    }
+
+    private static long slotKey(int sensorId, int slot) {
+        return ((long) sensorId << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Index the record, freeing previous record of the same user and record
+     * on the same slot.
+     *
+     * @return true if any record was freed
+     */
+    private boolean replace(int record) {
+        ByteBuffer segment = segment(record);
+        int offset = offset(record);
+        Integer previous = users.get(segment.getInt(offset + OFFSET_USER));
+        if (previous != null) {
+            free(previous);
+        }
+        Integer other = slots.get(slotKey(segment.getInt(offset + OFFSET_SENSOR), segment.getInt(offset + OFFSET_SLOT)));
+        if (other != null) {
+            users.remove(segment(other).getInt(offset(other) + OFFSET_USER));
+            free(other);
+        }
+        index(record);
+        return previous != null || other != null;
+    }
+
+    private void index(int record) {
+        ByteBuffer segment = segment(record);
+        int offset = offset(record);
+        users.put(segment.getInt(offset + OFFSET_USER), record);
+        slots.put(slotKey(segment.getInt(offset + OFFSET_SENSOR), segment.getInt(offset + OFFSET_SLOT)), record);
+        used.set(record);
+    }
+
+    private void free(int record) {
+        ByteBuffer segment = segment(record);
+        int offset = offset(record);
+        long key = slotKey(segment.getInt(offset + OFFSET_SENSOR), segment.getInt(offset + OFFSET_SLOT));
+        Integer current = slots.get(key);
+        if (current != null && current == record) {
+            slots.remove(key);
+        }
+        segment.putInt(offset + OFFSET_STATE, STATE_FREE);
+        used.clear(record);
+    }
+
+    private int checksum(ByteBuffer segment, int offset) {
+        ByteBuffer view = segment.duplicate();
+        crc.reset();
+        ((Buffer) view).limit(offset + OFFSET_CHECKSUM).position(offset + OFFSET_USER);
+        crc.update(view);
+        ((Buffer) view).limit(offset + OFFSET_TEMPLATE + TEMPLATE_SIZE).position(offset + OFFSET_TEMPLATE);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Save model of user, replacing previous model of the user. If another
+     * user has model on the same slot of the same sensor, the slot is
+     * reassigned to this user.
+     *
+     * @param userId identifier of the user
+     * @param sensorId identifier of the sensor
+     * @param slot position in sensor's internal memory
+     * @param template model of fingerprint ({@link #TEMPLATE_SIZE} bytes)
+     * @return metadata of saved model
+     * @throws IOException if the store file can't be extended
+     */
+    public synchronized TemplateRecord put(int userId, int sensorId, int slot, byte[] template) throws IOException {
+        if (template.length != TEMPLATE_SIZE) {
+            throw new IllegalArgumentException("Template must have " + TEMPLATE_SIZE + " bytes, has " + template.length);
+        }
+        int record = used.nextClearBit(0);
+        while (record >= segments.size() * SEGMENT_RECORDS) {
+            mapSegment();
+        }
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        long digest = digest(template);
+        generation++;
+        segment.putInt(offset + OFFSET_USER, userId);
+        segment.putInt(offset + OFFSET_SENSOR, sensorId);
+        segment.putInt(offset + OFFSET_SLOT, slot);
+        segment.putLong(offset + OFFSET_GENERATION, generation);
+        segment.putLong(offset + OFFSET_DIGEST, digest);
+        ByteBuffer view = segment.duplicate();
+        ((Buffer) view).position(offset + OFFSET_TEMPLATE);
+        view.put(template);
+        segment.putInt(offset + OFFSET_CHECKSUM, checksum(segment, offset));
+        segment.putInt(offset + OFFSET_STATE, STATE_VALID);
+        if (durable) {
+            segment.force();
+        }
+
+        if (replace(record) && durable) {
+            force();
+        }
+        return new TemplateRecord(userId, sensorId, slot, generation, digest);
+    }
+
+    /**
+     * Remove model of user.
+     *
+     * @param userId identifier of the user
+     * @return true if the user had a model
+     */
+    public synchronized boolean remove(int userId) {
+        Integer record = users.remove(userId);
+        if (record == null) {
+            return false;
+        }
+        free(record);
+        if (durable) {
+            segment(record).force();
+        }
+        return true;
+    }
+
+    /**
+     * @param userId identifier of the user
+     * @return metadata of user's model or null if user has no model
+     */
+    public synchronized TemplateRecord get(int userId) {
+        Integer record = users.get(userId);
+        return record != null ? toRecord(record) : null;
+    }
+
+    /**
+     * @param sensorId identifier of the sensor
+     * @param slot position in sensor's internal memory
+     * @return metadata of model on the slot or null if the slot is free
+     */
+    public synchronized TemplateRecord get(int sensorId, int slot) {
+        Integer record = slots.get(slotKey(sensorId, slot));
+        return record != null ? toRecord(record) : null;
+    }
+
+    /**
+     * Read model of user into given buffer.
+     *
+     * @param userId identifier of the user
+     * @param target buffer with at least {@link #TEMPLATE_SIZE} bytes
+     * remaining
+     * @return true if user has a model, false otherwise
+     */
+    public synchronized boolean readTemplate(int userId, ByteBuffer target) {
+        Integer record = users.get(userId);
+        if (record == null) {
+            return false;
+        }
+        target.put(templateView(record));
+        return true;
+    }
+
+    /**
+     * @param userId identifier of the user
+     * @return copy of user's model or null if user has no model
+     */
+    public synchronized byte[] getTemplate(int userId) {
+        byte[] template = new byte[TEMPLATE_SIZE];
+        return readTemplate(userId, ByteBuffer.wrap(template)) ? template : null;
+    }
+
+    /**
+     * @param sensorId identifier of the sensor
+     * @param slot position in sensor's internal memory
+     * @return copy of model on the slot or null if the slot is free
+     */
+    public synchronized byte[] getTemplate(int sensorId, int slot) {
+        Integer record = slots.get(slotKey(sensorId, slot));
+        if (record == null) {
+            return null;
+        }
+        byte[] template = new byte[TEMPLATE_SIZE];
+        templateView(record).get(template);
+        return template;
+    }
+
+    /**
+     * Digests of models assigned to a sensor, which can be used for
+     * synchronization of the sensor without reading the models.
+     *
+     * @param sensorId identifier of the sensor
+     * @return digests by slot
+     */
+    public synchronized Map<Integer, Long> getDigests(int sensorId) {
+        Map<Integer, Long> result = new HashMap<>();
+        for (Integer record : slots.values()) {
+            ByteBuffer segment = segment(record);
+            int offset = offset(record);
+            if (segment.getInt(offset + OFFSET_SENSOR) == sensorId) {
+                result.put(segment.getInt(offset + OFFSET_SLOT), segment.getLong(offset + OFFSET_DIGEST));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visit all models in the store, in order of records in the file. Models
+     * are passed to the visitor as views of the mapped file, without copying.
+     *
+     * @param visitor receives models
+     */
+    public synchronized void scan(Visitor visitor) {
+        for (int record = used.nextSetBit(0); record >= 0; record = used.nextSetBit(record + 1)) {
+            visitor.visit(toRecord(record), templateView(record));
+        }
+    }
+
+    /**
+     * @return number of models in the store
+     */
+    public synchronized int size() {
+        return users.size();
+    }
+
+    /**
+     * @return current value of generation counter, which is increased with
+     * each write
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Force all changes to the storage device.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        segments.clear();
+        channel.close();
+    }
+
+    private TemplateRecord toRecord(int record) {
+        ByteBuffer segment = segment(record);
+        int offset = offset(record);
+        return new TemplateRecord(segment.getInt(offset + OFFSET_USER), segment.getInt(offset + OFFSET_SENSOR),
+                segment.getInt(offset + OFFSET_SLOT), segment.getLong(offset + OFFSET_GENERATION),
+                segment.getLong(offset + OFFSET_DIGEST));
+    }
+
+    private ByteBuffer templateView(int record) {
+        ByteBuffer view = segment(record).duplicate();
+        int offset = offset(record) + OFFSET_TEMPLATE;
+        ((Buffer) view).limit(offset + TEMPLATE_SIZE).position(offset);
+        return view;
+    }
+
+    /**
+     * Compute 64-bit FNV-1a digest of fingerprint model.
+     *
+     * @param template model of fingerprint
+     * @return digest
+     */
+    public static long digest(byte[] template) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : template) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Receives models from {@link TemplateStore#scan(Visitor) scan}.
+     */
+    public interface Visitor {
+
+        /**
+         * @param record metadata of the model
+         * @param template view of the model, valid only during this call
+         */
+        void visit(TemplateRecord record, ByteBuffer template);
+    }
+}
@@ -0,0 +1,145 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import sk.mimac.fingerprint.adafruit.AdafruitSocketTransportTest.Bridge;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitAsyncSensorTest {
+
+    private final List<Bridge> bridges = new ArrayList<>();
+    private final List<AdafruitAsyncSensor> sensors = new ArrayList<>();
+    private AdafruitSocketSelector selector;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        selector = new AdafruitSocketSelector();
+        selector.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (AdafruitAsyncSensor sensor : sensors) {
+            sensor.close();
+        }
+        selector.stop();
+        for (Bridge bridge : bridges) {
+            bridge.close();
+        }
+    }
+
+    @Test
+    public void testManySensorsOnSelectorThread() throws Exception {
+        List<AdafruitAsyncSensor> connected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            AdafruitEmulator emulator = new AdafruitEmulator(100);
+            emulator.setModel(i, createModel(i));
+            emulator.placeFinger(createModel(i));
+            connected.add(connect(emulator));
+        }
+        List<String> threads = new ArrayList<>();
+        List<CompletableFuture<SearchResult>> results = new ArrayList<>();
+        // All operations are started before any of them is sent
+        CountDownLatch blocker = new CountDownLatch(1);
+        selector.execute(() -> await(blocker));
+        for (AdafruitAsyncSensor sensor : connected) {
+            results.add(sensor.hasFingerprint().thenCompose(found -> {
+                threads.add(Thread.currentThread().getName());
+                assertTrue(found);
+                return sensor.search();
+            }));
+        }
+        blocker.countDown();
+        for (int i = 0; i < results.size(); i++) {
+            SearchResult result = results.get(i).get(5, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(i, result.getId());
+        }
+        assertEquals(20, threads.size());
+        for (String thread : threads) {
+            assertEquals("fingerprint-selector", thread);
+        }
+    }
+
+    @Test
+    public void testRetryAfterDroppedReply() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        emulator.setModel(1, createModel(1));
+        emulator.setModel(2, createModel(2));
+        AdafruitAsyncSensor sensor = connect(emulator);
+        emulator.dropReplies(FINGERPRINT_TEMPLATECOUNT, 1);
+        assertEquals(2, (int) sensor.getTemplateCount().get(5, TimeUnit.SECONDS));
+        assertEquals(100, sensor.readParameters().get(5, TimeUnit.SECONDS).getLibrarySize());
+    }
+
+    @Test
+    public void testLateReplyNotMistakenForNextCommand() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        emulator.setModel(7, createModel(7));
+        emulator.placeFinger(createModel(7));
+        AdafruitAsyncSensor sensor = connect(emulator);
+        sensor.setRetries(0);
+        assertTrue(sensor.hasFingerprint().get(5, TimeUnit.SECONDS));
+        emulator.setCommandDelay(FINGERPRINT_HISPEEDSEARCH, 150000);
+        CompletableFuture<SearchResult> search = sensor.search();
+        CompletableFuture<Integer> count = sensor.getTemplateCount();
+        try {
+            search.get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException ex) {
+            assertEquals("sensor.not.responding", ((FingerprintException) ex.getCause()).getKey());
+        }
+        assertEquals(1, (int) count.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testConnectionLost() throws Exception {
+        AdafruitAsyncSensor sensor = connect(new AdafruitEmulator(100));
+        bridges.get(0).close();
+        try {
+            sensor.getTemplateCount().get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof FingerprintException);
+        }
+        try {
+            sensor.getTemplateCount().get(5, TimeUnit.SECONDS);
+            fail("Expected exception");
+        } catch (ExecutionException ex) {
+            assertEquals("sensor.cant.connect", ((FingerprintException) ex.getCause()).getKey());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private AdafruitAsyncSensor connect(AdafruitEmulator emulator) throws Exception {
+        Bridge bridge = new Bridge(emulator);
+        bridges.add(bridge);
+        AdafruitAsyncSensor sensor = new AdafruitAsyncSensor(new AdafruitSocketTransport(bridge.getAddress(), selector));
+        sensor.setTimeout(100);
+        sensors.add(sensor);
+        assertEquals(100, sensor.connect().get(5, TimeUnit.SECONDS).getLibrarySize());
+        return sensor;
+    }
+}
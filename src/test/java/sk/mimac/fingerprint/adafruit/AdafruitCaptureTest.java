@@ -0,0 +1,144 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import sk.mimac.fingerprint.adafruit.AdafruitCapture.CaptureResult;
+import sk.mimac.fingerprint.adafruit.AdafruitCapture.Outcome;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitCaptureTest {
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+    private AdafruitCapture capture;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        emulator.setModel(42, createModel(42));
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.connect();
+        capture = new AdafruitCapture(sensor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testNoFinger() throws FingerprintException {
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.NO_FINGER, result.getOutcome());
+        assertEquals(1, result.getAttempts());
+    }
+
+    @Test
+    public void testSmudgedFingerCapturedAgain() throws FingerprintException {
+        emulator.placeFinger(createModel(42));
+        emulator.injectStatus(FINGERPRINT_IMAGE2TZ, FINGERPRINT_IMAGEMESS, FINGERPRINT_FEATUREFAIL);
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.MATCHED, result.getOutcome());
+        assertEquals(3, result.getAttempts());
+        assertEquals(42, result.getSearchResult().getId());
+    }
+
+    @Test
+    public void testUnreadableWithinBudget() throws FingerprintException {
+        emulator.placeFinger(createModel(42));
+        emulator.setCommandDelay(FINGERPRINT_IMAGE2TZ, 20000);
+        int[] codes = new int[100];
+        Arrays.fill(codes, FINGERPRINT_IMAGEMESS);
+        emulator.injectStatus(FINGERPRINT_IMAGE2TZ, codes);
+        capture.setTimeBudget(100);
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.UNREADABLE, result.getOutcome());
+        assertEquals(FINGERPRINT_IMAGEMESS, result.getStatus());
+        assertTrue(result.getAttempts() > 1);
+        assertTrue(result.getAttempts() < 100);
+    }
+
+    @Test
+    public void testFingerRemovedDuringRetries() throws FingerprintException {
+        emulator.placeFinger(createModel(42));
+        emulator.injectStatus(FINGERPRINT_IMAGE2TZ, FINGERPRINT_IMAGEMESS);
+        emulator.injectStatus(FINGERPRINT_GETIMAGE, -1, FINGERPRINT_NOFINGER);
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.UNREADABLE, result.getOutcome());
+        assertEquals(2, result.getAttempts());
+    }
+
+    @Test
+    public void testNotRetryableFailure() throws FingerprintException {
+        emulator.placeFinger(createModel(42));
+        emulator.injectStatus(FINGERPRINT_IMAGE2TZ, 0x18);
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.FAILED, result.getOutcome());
+        assertEquals(1, result.getAttempts());
+    }
+
+    @Test
+    public void testFallbackOnlyWhenRequested() throws FingerprintException {
+        emulator.setMatcher((first, second) -> first[0] == second[0] ? 40 : 0);
+        emulator.setMatchThreshold(60);
+        byte[] partial = createModel(42);
+        partial[1] ^= 1;
+        emulator.placeFinger(partial);
+        capture.setFallbackSecurityLevel(1);
+
+        CaptureResult result = capture.identify();
+        assertEquals(Outcome.NOT_FOUND, result.getOutcome());
+        assertFalse(result.isFallback());
+
+        result = capture.identify(true);
+        assertEquals(Outcome.MATCHED, result.getOutcome());
+        assertTrue(result.isFallback());
+        assertFalse(result.isRestoreFailed());
+        assertEquals(3, sensor.readParameters().getSecurityLevel());
+    }
+
+    @Test
+    public void testFailedRestoreFlaggedAndRepeated() throws FingerprintException {
+        emulator.setMatcher((first, second) -> first[0] == second[0] ? 40 : 0);
+        emulator.setMatchThreshold(60);
+        emulator.placeFinger(createModel(42));
+        capture.setFallbackSecurityLevel(1);
+        emulator.injectStatus(FINGERPRINT_SET_SYS_PARAM, -1, 0x18);
+
+        CaptureResult result = capture.identify(true);
+        assertEquals(Outcome.MATCHED, result.getOutcome());
+        assertTrue(result.isRestoreFailed());
+        assertEquals(1, sensor.readParameters().getSecurityLevel());
+
+        result = capture.identify();
+        assertEquals(Outcome.NOT_FOUND, result.getOutcome());
+        assertEquals(3, sensor.readParameters().getSecurityLevel());
+    }
+
+    @Test
+    public void testScannerCapturesAgain() throws Exception {
+        emulator.injectStatus(FINGERPRINT_IMAGE2TZ, FINGERPRINT_IMAGEMESS, FINGERPRINT_FEATUREFAIL);
+        AdafruitScanner scanner = new AdafruitScanner(sensor, 1, 5);
+        try {
+            scanner.start();
+            CompletableFuture<SearchResult> next = scanner.awaitNextScan();
+            emulator.placeFinger(createModel(42));
+            SearchResult result = next.get(2, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(42, result.getId());
+        } finally {
+            scanner.stop();
+        }
+    }
+}
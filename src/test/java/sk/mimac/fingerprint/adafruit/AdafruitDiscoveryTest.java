@@ -0,0 +1,78 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import sk.mimac.fingerprint.adafruit.AdafruitDiscovery.DiscoveredSensor;
+import static org.junit.Assert.*;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitDiscoveryTest {
+
+    private final Map<String, AdafruitEmulator> emulators = new HashMap<>();
+
+    @Test
+    public void testDiscover() throws Exception {
+        emulators.put("ttyUSB0", new AdafruitEmulator(100));
+        emulators.put("ttyUSB2", new AdafruitEmulator(200));
+        List<DiscoveredSensor> found = createDiscovery("ttyUSB2", "ttyUSB1", "ttyUSB0").discover();
+        try {
+            assertEquals(2, found.size());
+            assertEquals("ttyUSB0", found.get(0).getPort());
+            assertEquals(100, found.get(0).getParameters().getLibrarySize());
+            assertEquals("ttyUSB2", found.get(1).getPort());
+            assertEquals(200, found.get(1).getParameters().getLibrarySize());
+            assertEquals(AdafruitPacketCodec.DEFAULT_ADDRESS, found.get(1).getDeviceAddress());
+            emulators.get("ttyUSB2").setModel(3, AdafruitEmulator.createModel(3));
+            assertEquals(1, found.get(1).getSensor().getTemplateCount());
+        } finally {
+            close(found);
+        }
+    }
+
+    @Test
+    public void testConfiguredDeviceAddress() throws Exception {
+        emulators.put("ttyUSB0", new AdafruitEmulator(100, 0x12345678));
+        AdafruitDiscovery discovery = createDiscovery("ttyUSB0");
+        assertNull(discovery.probe("ttyUSB0"));
+        discovery.setDeviceAddress(0x12345678);
+        DiscoveredSensor found = discovery.probe("ttyUSB0");
+        assertNotNull(found);
+        try {
+            assertEquals(0x12345678, found.getDeviceAddress());
+            assertEquals(0x12345678, found.getParameters().getDeviceAddress());
+            assertEquals(0, found.getSensor().getTemplateCount());
+        } finally {
+            found.getSensor().close();
+        }
+    }
+
+    private AdafruitDiscovery createDiscovery(String... ports) {
+        AdafruitDiscovery discovery = new AdafruitDiscovery(Arrays.asList(ports)) {
+            @Override
+            protected AdafruitTransport createTransport(String port, int baudRate) {
+                AdafruitEmulator emulator = emulators.get(port);
+                if (emulator == null) {
+                    // Nothing is connected to the port
+                    return new AdafruitStreamTransport(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+                }
+                return new AdafruitStreamTransport(emulator.getInputStream(), emulator.getOutputStream());
+            }
+        };
+        discovery.setProbeTimeout(50);
+        return discovery;
+    }
+
+    private static void close(List<DiscoveredSensor> found) throws IOException {
+        for (DiscoveredSensor sensor : found) {
+            sensor.getSensor().close();
+        }
+    }
+}
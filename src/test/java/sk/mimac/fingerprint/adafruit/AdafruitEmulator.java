@@ -0,0 +1,723 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import sk.mimac.fingerprint.FingerprintException;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * Software emulator of the sensor's serial protocol, for testing and
+ * benchmarking without hardware. Connect it to {@link AdafruitSensor} through
+ * {@link AdafruitSensor#AdafruitSensor(InputStream, OutputStream)} with
+ * streams from {@link #getInputStream()} and {@link #getOutputStream()}.
+ * <p>
+ * Commands are processed synchronously in the thread which writes them, and
+ * replies are made available to the input stream after simulated transfer
+ * time (given by baud rate) and processing time (given by command delays).
+ * By default there are no delays, so only the host-side overhead is measured.
+ * <p>
+ * Fingerprint images aren't emulated: a finger is represented by its model,
+ * which is "placed" on the sensor by {@link #placeFinger(byte[]) placeFinger}
+ * and compared with stored models by {@link Matcher}. Uploaded image only
+ * repeats bytes of the model.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitEmulator {
+
+    public static final int TEMPLATE_SIZE = 512;
+
+    /**
+     * Computes match score of two models.
+     */
+    public interface Matcher {
+
+        /**
+         * @param first model
+         * @param second model
+         * @return match score, models match if score is at least the match
+         * threshold
+         */
+        int score(byte[] first, byte[] second);
+    }
+
+    private final AdafruitPacketCodec codec;
+    private final AdafruitPacketCodec replyCodec;
+    private final byte[][] library;
+    private final byte[][] buffers = new byte[2][];
+    private final long[] delays = new long[256];
+    private final byte[] imageData = new byte[AdafruitImage.SIZE];
+    private final ArrayDeque<int[]> injected = new ArrayDeque<>();
+    private final int[] dropped = new int[256];
+    private final Object lock = new Object();
+    private final Input input = new Input();
+    private final Output output = new Output();
+
+    private Matcher matcher = (first, second) -> Arrays.equals(first, second) ? 200 : 0;
+    private int matchThreshold = 50;
+    private volatile byte[] finger;
+    private byte[] image;
+    private int securityLevel = 3;
+    private int packetSize = 128;
+    private int baudRate;
+    private int storedBaudRate;
+    private boolean delayedBaudRate;
+    private long byteNanos;
+
+    private boolean dropping;
+    private byte[] download;
+    private int downloadBuffer;
+    private int downloadLength;
+
+    /**
+     * @param librarySize number of positions in emulated sensor's memory
+     */
+    public AdafruitEmulator(int librarySize) {
+        this(librarySize, AdafruitPacketCodec.DEFAULT_ADDRESS);
+    }
+
+    /**
+     * @param librarySize number of positions in emulated sensor's memory
+     * @param address device address of emulated sensor
+     */
+    public AdafruitEmulator(int librarySize, int address) {
+        this.library = new byte[librarySize][];
+        this.codec = new AdafruitPacketCodec(address);
+        this.replyCodec = new AdafruitPacketCodec(address);
+    }
+
+    /**
+     * Create distinct model for tests.
+     *
+     * @param seed differentiating models
+     * @return model of {@link #TEMPLATE_SIZE} bytes
+     */
+    public static byte[] createModel(int seed) {
+        byte[] model = new byte[TEMPLATE_SIZE];
+        for (int i = 0; i < model.length; i++) {
+            model[i] = (byte) (seed * 31 + i);
+        }
+        return model;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Save model to emulated sensor's memory.
+     *
+     * @param number position in memory
+     * @param model of fingerprint, null to delete
+     */
+    public void setModel(int number, byte[] model) {
+        synchronized (lock) {
+            library[number] = model != null ? model.clone() : null;
+        }
+    }
+
+    /**
+     * @param number position in memory
+     * @return copy of model on the position or null if it's empty
+     */
+    public byte[] getModel(int number) {
+        synchronized (lock) {
+            return library[number] != null ? library[number].clone() : null;
+        }
+    }
+
+    /**
+     * Place finger with given model on the sensor.
+     *
+     * @param model of the finger
+     */
+    public void placeFinger(byte[] model) {
+        synchronized (lock) {
+            finger = model.clone();
+        }
+    }
+
+    public void removeFinger() {
+        synchronized (lock) {
+            finger = null;
+        }
+    }
+
+    public void setMatcher(Matcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * @param matchThreshold minimal score of matching models at security
+     * level 3, it's scaled proportionally for other levels
+     */
+    public void setMatchThreshold(int matchThreshold) {
+        this.matchThreshold = matchThreshold;
+    }
+
+    private int threshold() {
+        return matchThreshold * securityLevel / 3;
+    }
+
+    /**
+     * Make next replies to the command fail with given confirmation codes,
+     * without processing the command (e.g. IMAGEMESS for capture of smudged
+     * finger).
+     *
+     * @param command code of the command from {@link AdafruitConstants}
+     * @param codes confirmation codes of next replies, in order
+     */
+    public void injectStatus(int command, int... codes) {
+        synchronized (lock) {
+            for (int code : codes) {
+                injected.add(new int[]{command & 0xFF, code});
+            }
+        }
+    }
+
+    private int pollInjected(int command) {
+        synchronized (lock) {
+            for (Iterator<int[]> iterator = injected.iterator(); iterator.hasNext();) {
+                int[] entry = iterator.next();
+                if (entry[0] == command) {
+                    iterator.remove();
+                    return entry[1];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Make next commands be processed, but their replies lost (e.g. because
+     * of noise on the line).
+     *
+     * @param command code of the command from {@link AdafruitConstants}
+     * @param count number of lost replies
+     */
+    public void dropReplies(int command, int count) {
+        synchronized (lock) {
+            dropped[command & 0xFF] += count;
+        }
+    }
+
+    private boolean pollDropped(int command) {
+        synchronized (lock) {
+            if (dropped[command] > 0) {
+                dropped[command]--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Simulate transfer time of replies over serial line.
+     *
+     * @param baudRate of the line, 0 for no delay
+     */
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+        this.storedBaudRate = baudRate;
+        // 8 data bits, start and stop bit
+        this.byteNanos = baudRate > 0 ? TimeUnit.SECONDS.toNanos(10) / baudRate : 0;
+    }
+
+    /**
+     * @return baud rate at which the emulated sensor communicates, 0 if
+     * transfer time isn't simulated
+     */
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * @return baud rate saved in emulated sensor's flash, 0 if it wasn't set
+     */
+    public int getStoredBaudRate() {
+        return storedBaudRate;
+    }
+
+    /**
+     * Simulate modules which apply baud rate change only after power cycle.
+     *
+     * @param delayedBaudRate true to only store new baud rate
+     */
+    public void setDelayedBaudRate(boolean delayedBaudRate) {
+        this.delayedBaudRate = delayedBaudRate;
+    }
+
+    /**
+     * @param packetSize size of data packets (32, 64, 128 or 256), longer
+     * downloaded packets are rejected
+     */
+    public void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * Simulate processing time of a command.
+     *
+     * @param command code of the command from {@link AdafruitConstants}
+     * @param micros processing time in microseconds
+     */
+    public void setCommandDelay(int command, long micros) {
+        delays[command & 0xFF] = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    private void receive(byte data) throws IOException {
+        try {
+            if (codec.decode(data)) {
+                process(codec.getPacketType(), codec.payload());
+            }
+        } catch (FingerprintException ex) {
+            dropping = false;
+            reply(FINGERPRINT_PACKETRECIEVEERR);
+        }
+    }
+
+    private void process(byte type, ByteBuffer packet) throws IOException {
+        dropping = false;
+        if (type == FINGERPRINT_DATAPACKET || type == FINGERPRINT_ENDDATAPACKET) {
+            if (download != null && packet.remaining() > packetSize) {
+                download = null;
+            }
+            if (download != null) {
+                int length = Math.min(packet.remaining(), download.length - downloadLength);
+                packet.get(download, downloadLength, length);
+                downloadLength += length;
+                if (type == FINGERPRINT_ENDDATAPACKET) {
+                    buffers[downloadBuffer] = Arrays.copyOf(download, downloadLength);
+                    download = null;
+                }
+            }
+            return;
+        }
+        if (type != FINGERPRINT_COMMANDPACKET || !packet.hasRemaining()) {
+            reply(FINGERPRINT_PACKETRECIEVEERR);
+            return;
+        }
+        int command = packet.get(0) & 0xFF;
+        dropping = pollDropped(command);
+        delay(delays[command]);
+        int injectedCode = pollInjected(command);
+        if (injectedCode >= 0) {
+            reply(injectedCode);
+            return;
+        }
+        switch (command) {
+            case FINGERPRINT_VERIFYPASSWORD:
+                reply(FINGERPRINT_OK);
+                break;
+            case FINGERPRINT_GETIMAGE:
+                image = finger;
+                reply(image != null ? FINGERPRINT_OK : FINGERPRINT_NOFINGER);
+                break;
+            case FINGERPRINT_IMAGE2TZ:
+                if (image == null) {
+                    reply(FINGERPRINT_INVALIDIMAGE);
+                } else {
+                    buffers[buffer(packet)] = image;
+                    reply(FINGERPRINT_OK);
+                }
+                break;
+            case FINGERPRINT_REGMODEL:
+                if (buffers[0] == null || buffers[1] == null || matcher.score(buffers[0], buffers[1]) < threshold()) {
+                    reply(FINGERPRINT_ENROLLMISMATCH);
+                } else {
+                    buffers[1] = buffers[0];
+                    reply(FINGERPRINT_OK);
+                }
+                break;
+            case FINGERPRINT_MATCH:
+                processMatch();
+                break;
+            case FINGERPRINT_STORE:
+                processStore(packet);
+                break;
+            case FINGERPRINT_LOAD:
+                processLoad(packet);
+                break;
+            case FINGERPRINT_UPLOAD:
+                processUpload(packet);
+                break;
+            case FINGERPRINT_UPIMAGE:
+                processUploadImage();
+                break;
+            case FINGERPRINT_DOWNLOAD:
+                downloadBuffer = buffer(packet);
+                download = new byte[TEMPLATE_SIZE];
+                downloadLength = 0;
+                reply(FINGERPRINT_OK);
+                break;
+            case FINGERPRINT_DELETE:
+                processDelete(packet);
+                break;
+            case FINGERPRINT_EMPTY:
+                synchronized (lock) {
+                    Arrays.fill(library, null);
+                }
+                reply(FINGERPRINT_OK);
+                break;
+            case FINGERPRINT_SET_SYS_PARAM:
+                processSetParameter(packet);
+                break;
+            case FINGERPRINT_READ_SYS_PARAM:
+                processReadParameters();
+                break;
+            case FINGERPRINT_TEMPLATECOUNT:
+                processTemplateCount();
+                break;
+            case FINGERPRINT_READ_INDEX_TABLE:
+                processIndexTable(packet);
+                break;
+            case FINGERPRINT_HISPEEDSEARCH:
+                processSearch(packet);
+                break;
+            default:
+                reply(FINGERPRINT_PACKETRECIEVEERR);
+        }
+    }
+
+    private static int buffer(ByteBuffer packet) {
+        return packet.limit() > 1 && packet.get(1) == 2 ? 1 : 0;
+    }
+
+    private void processMatch() throws IOException {
+        int score = buffers[0] != null && buffers[1] != null ? matcher.score(buffers[0], buffers[1]) : 0;
+        replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) (score >= threshold() ? FINGERPRINT_OK : FINGERPRINT_NOMATCH)).putShort((short) score);
+        send(replyCodec.finish());
+    }
+
+    private void processStore(ByteBuffer packet) throws IOException {
+        int number = packet.getShort(2) & 0xFFFF;
+        byte[] model = buffers[buffer(packet)];
+        if (number >= library.length) {
+            reply(FINGERPRINT_BADLOCATION);
+        } else if (model == null) {
+            reply(FINGERPRINT_FLASHERR);
+        } else {
+            synchronized (lock) {
+                library[number] = model;
+            }
+            reply(FINGERPRINT_OK);
+        }
+    }
+
+    private void processLoad(ByteBuffer packet) throws IOException {
+        int number = packet.getShort(2) & 0xFFFF;
+        byte[] model;
+        synchronized (lock) {
+            model = number < library.length ? library[number] : null;
+        }
+        if (model == null) {
+            reply(FINGERPRINT_DBRANGEFAIL);
+        } else {
+            buffers[buffer(packet)] = model;
+            reply(FINGERPRINT_OK);
+        }
+    }
+
+    private void processUpload(ByteBuffer packet) throws IOException {
+        byte[] model = buffers[buffer(packet)];
+        if (model == null) {
+            reply(FINGERPRINT_UPLOADFEATUREFAIL);
+            return;
+        }
+        reply(FINGERPRINT_OK);
+        sendData(model);
+    }
+
+    private void processUploadImage() throws IOException {
+        if (image == null) {
+            reply(FINGERPRINT_UPLOADFAIL);
+            return;
+        }
+        for (int i = 0; i < imageData.length; i++) {
+            imageData[i] = image[i % image.length];
+        }
+        reply(FINGERPRINT_OK);
+        sendData(imageData);
+    }
+
+    private void sendData(byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += packetSize) {
+            int length = Math.min(packetSize, data.length - offset);
+            byte type = offset + length < data.length ? FINGERPRINT_DATAPACKET : FINGERPRINT_ENDDATAPACKET;
+            replyCodec.begin(type).put(data, offset, length);
+            send(replyCodec.finish());
+        }
+    }
+
+    private void processDelete(ByteBuffer packet) throws IOException {
+        int number = packet.getShort(1) & 0xFFFF;
+        int count = packet.getShort(3) & 0xFFFF;
+        if (number + count > library.length) {
+            reply(FINGERPRINT_DELETEFAIL);
+            return;
+        }
+        synchronized (lock) {
+            Arrays.fill(library, number, number + count, null);
+        }
+        reply(FINGERPRINT_OK);
+    }
+
+    private void processSetParameter(ByteBuffer packet) throws IOException {
+        int parameter = packet.get(1);
+        int value = packet.get(2);
+        switch (parameter) {
+            case 4:
+                if (value < 1 || value > 12) {
+                    reply(FINGERPRINT_INVALIDREG);
+                    return;
+                }
+                storedBaudRate = value * 9600;
+                if (baudRate > 0 && !delayedBaudRate) {
+                    // Reply is still sent with the old baud rate
+                    reply(FINGERPRINT_OK);
+                    setBaudRate(value * 9600);
+                    return;
+                }
+                break;
+            case 5:
+                if (value < 1 || value > 5) {
+                    reply(FINGERPRINT_INVALIDREG);
+                    return;
+                }
+                securityLevel = value;
+                break;
+            case 6:
+                if (value < 0 || value > 3) {
+                    reply(FINGERPRINT_INVALIDREG);
+                    return;
+                }
+                packetSize = 32 << value;
+                break;
+            default:
+                reply(FINGERPRINT_INVALIDREG);
+                return;
+        }
+        reply(FINGERPRINT_OK);
+    }
+
+    private void processReadParameters() throws IOException {
+        ByteBuffer reply = replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) FINGERPRINT_OK);
+        reply.putShort((short) 0); // status register
+        reply.putShort((short) 0x0009); // system identifier code
+        reply.putShort((short) library.length);
+        reply.putShort((short) securityLevel);
+        reply.putInt(codec.getAddress());
+        reply.putShort((short) Integer.numberOfTrailingZeros(packetSize >> 5));
+        reply.putShort((short) (storedBaudRate > 0 ? storedBaudRate / 9600 : 6));
+        send(replyCodec.finish());
+    }
+
+    private void processTemplateCount() throws IOException {
+        int count = 0;
+        synchronized (lock) {
+            for (byte[] model : library) {
+                if (model != null) {
+                    count++;
+                }
+            }
+        }
+        replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) FINGERPRINT_OK).putShort((short) count);
+        send(replyCodec.finish());
+    }
+
+    private void processIndexTable(ByteBuffer packet) throws IOException {
+        int page = packet.get(1) & 0xFF;
+        ByteBuffer reply = replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) FINGERPRINT_OK);
+        synchronized (lock) {
+            for (int i = 0; i < 32; i++) {
+                int bits = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    int number = page * 256 + i * 8 + bit;
+                    if (number < library.length && library[number] != null) {
+                        bits |= 1 << bit;
+                    }
+                }
+                reply.put((byte) bits);
+            }
+        }
+        send(replyCodec.finish());
+    }
+
+    private void processSearch(ByteBuffer packet) throws IOException {
+        byte[] model = buffers[buffer(packet)];
+        int start = packet.getShort(2) & 0xFFFF;
+        int count = packet.getShort(4) & 0xFFFF;
+        int bestNumber = -1;
+        int bestScore = -1;
+        if (model != null) {
+            synchronized (lock) {
+                for (int number = start; number < Math.min(library.length, start + count); number++) {
+                    if (library[number] != null) {
+                        int score = matcher.score(model, library[number]);
+                        if (score >= threshold() && score > bestScore) {
+                            bestNumber = number;
+                            bestScore = score;
+                        }
+                    }
+                }
+            }
+        }
+        if (bestNumber < 0) {
+            reply(FINGERPRINT_NOTFOUND);
+        } else {
+            replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) FINGERPRINT_OK).putShort((short) bestNumber).putShort((short) bestScore);
+            send(replyCodec.finish());
+        }
+    }
+
+    private void reply(int code) throws IOException {
+        replyCodec.begin(FINGERPRINT_ACKPACKET).put((byte) code);
+        send(replyCodec.finish());
+    }
+
+    private void send(ByteBuffer frame) {
+        if (dropping) {
+            return;
+        }
+        input.append(frame.array(), frame.limit());
+    }
+
+    private void delay(long nanos) throws IOException {
+        input.delay(nanos);
+    }
+
+    /**
+     * Bytes sent by the emulated sensor, each chunk becomes readable at its
+     * simulated arrival time.
+     */
+    private class Input extends InputStream {
+
+        private final ArrayDeque<long[]> chunks = new ArrayDeque<>();
+        private byte[] data = new byte[4096];
+        private int start;
+        private int end;
+        private int arrivedEnd;
+        private long lastArrival;
+        private long pendingDelay;
+
+        private synchronized void delay(long nanos) {
+            pendingDelay += nanos;
+        }
+
+        private synchronized void append(byte[] bytes, int length) {
+            if (end + length > data.length) {
+                System.arraycopy(data, start, data, 0, end - start);
+                for (long[] chunk : chunks) {
+                    chunk[1] -= start;
+                }
+                arrivedEnd = Math.max(0, arrivedEnd - start);
+                end -= start;
+                start = 0;
+                if (end + length > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, end + length));
+                }
+            }
+            System.arraycopy(bytes, 0, data, end, length);
+            end += length;
+            long arrival = Math.max(System.nanoTime(), lastArrival) + pendingDelay + length * byteNanos;
+            pendingDelay = 0;
+            lastArrival = arrival;
+            chunks.add(new long[]{arrival, end});
+            notifyAll();
+        }
+
+        /**
+         * @return index after the last byte which already arrived
+         */
+        private int arrived() {
+            long now = System.nanoTime();
+            while (!chunks.isEmpty() && chunks.peekFirst()[0] <= now) {
+                arrivedEnd = (int) chunks.pollFirst()[1];
+            }
+            if (chunks.isEmpty()) {
+                return end;
+            }
+            if (byteNanos == 0) {
+                return arrivedEnd;
+            }
+            // Part of the chunk which is being transferred
+            long[] chunk = chunks.peekFirst();
+            long missing = (chunk[0] - now + byteNanos - 1) / byteNanos;
+            return (int) Math.max(arrivedEnd, chunk[1] - missing);
+        }
+
+        @Override
+        public synchronized int available() {
+            return Math.max(0, arrived() - start);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int available;
+            while ((available = arrived() - start) <= 0) {
+                try {
+                    if (!chunks.isEmpty()) {
+                        long wait = chunks.peekFirst()[0] - System.nanoTime();
+                        TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, 1));
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            int count = Math.min(available, length);
+            System.arraycopy(data, start, target, offset, count);
+            start += count;
+            if (start == end && chunks.isEmpty()) {
+                start = 0;
+                end = 0;
+                arrivedEnd = 0;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Bytes sent to the emulated sensor, processed right away.
+     */
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int data) throws IOException {
+            synchronized (AdafruitEmulator.this) {
+                receive((byte) data);
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            synchronized (AdafruitEmulator.this) {
+                for (int i = offset; i < offset + length; i++) {
+                    receive(data[i]);
+                }
+            }
+        }
+    }
+}
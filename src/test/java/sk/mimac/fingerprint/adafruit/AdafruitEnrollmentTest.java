@@ -0,0 +1,126 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitEnrollment.Stage;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitEnrollmentTest {
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+    private AdafruitEnrollment enrollment;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+        enrollment = new AdafruitEnrollment(sensor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testEnrollAndStore() throws FingerprintException {
+        assertFalse(enrollment.captureFirst());
+        assertEquals(Stage.STARTED, enrollment.getStage());
+        emulator.placeFinger(createModel(1));
+        assertTrue(enrollment.captureFirst());
+        assertEquals(Stage.FIRST_CAPTURED, enrollment.getStage());
+        emulator.removeFinger();
+        assertFalse(enrollment.captureSecond());
+        assertEquals(Stage.FIRST_CAPTURED, enrollment.getStage());
+        emulator.placeFinger(createModel(1));
+        assertTrue(enrollment.captureSecond());
+        assertEquals(Stage.SECOND_CAPTURED, enrollment.getStage());
+        enrollment.merge();
+        assertEquals(Stage.MERGED, enrollment.getStage());
+        enrollment.store(12);
+        assertArrayEquals(createModel(1), emulator.getModel(12));
+        assertArrayEquals(createModel(1), enrollment.upload());
+    }
+
+    @Test
+    public void testUploadIntoBuffer() throws FingerprintException {
+        emulator.placeFinger(createModel(2));
+        assertTrue(enrollment.captureFirst());
+        assertTrue(enrollment.captureSecond());
+        enrollment.merge();
+        ByteBuffer target = ByteBuffer.allocate(AdafruitEmulator.TEMPLATE_SIZE + 4);
+        target.putInt(0xCAFE);
+        assertEquals(AdafruitEmulator.TEMPLATE_SIZE, enrollment.upload(target));
+        assertEquals(AdafruitEmulator.TEMPLATE_SIZE + 4, target.position());
+        byte[] model = new byte[AdafruitEmulator.TEMPLATE_SIZE];
+        ((Buffer) target).position(4);
+        target.get(model);
+        assertArrayEquals(createModel(2), model);
+        assertNull(emulator.getModel(0));
+    }
+
+    @Test
+    public void testMismatchRepeatsSecondCapture() throws FingerprintException {
+        emulator.placeFinger(createModel(1));
+        assertTrue(enrollment.captureFirst());
+        emulator.placeFinger(createModel(2));
+        assertTrue(enrollment.captureSecond());
+        try {
+            enrollment.merge();
+            fail("Captures of different fingers were merged");
+        } catch (FingerprintException ex) {
+            assertEquals("sensor.fingerprints.doesnt.match", ex.getKey());
+        }
+        assertEquals(Stage.FIRST_CAPTURED, enrollment.getStage());
+        emulator.placeFinger(createModel(1));
+        assertTrue(enrollment.captureSecond());
+        enrollment.merge();
+        enrollment.store(3);
+        assertArrayEquals(createModel(1), emulator.getModel(3));
+    }
+
+    @Test
+    public void testStagesEnforced() throws FingerprintException {
+        emulator.placeFinger(createModel(1));
+        assertIllegalStage(() -> enrollment.captureSecond());
+        assertIllegalStage(() -> enrollment.merge());
+        assertTrue(enrollment.captureFirst());
+        assertIllegalStage(() -> enrollment.store(1));
+        assertTrue(enrollment.captureSecond());
+        assertIllegalStage(() -> enrollment.upload());
+        // Repeated first capture discards the second one
+        assertTrue(enrollment.captureFirst());
+        assertEquals(Stage.FIRST_CAPTURED, enrollment.getStage());
+        assertIllegalStage(() -> enrollment.merge());
+        enrollment.restart();
+        assertEquals(Stage.STARTED, enrollment.getStage());
+        assertIllegalStage(() -> enrollment.captureSecond());
+        assertNull(emulator.getModel(1));
+    }
+
+    private static void assertIllegalStage(Step step) throws FingerprintException {
+        try {
+            step.run();
+            fail("Step was allowed in wrong stage");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    private interface Step {
+
+        void run() throws FingerprintException;
+    }
+}
@@ -0,0 +1,109 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitImageTest {
+
+    @Test
+    public void testUnpacking() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0x0F, (byte) 0x12, (byte) 0xA5,
+            (byte) 0xF0, (byte) 0x00, (byte) 0x7E, (byte) 0x31});
+        // Image starts at position of the buffer
+        ((Buffer) data).position(2);
+        AdafruitImage image = new AdafruitImage(data, 4);
+        assertEquals(4, image.getWidth());
+        assertEquals(3, image.getHeight());
+        assertEquals(0x11, image.getPixel(0, 0));
+        assertEquals(0x22, image.getPixel(1, 0));
+        assertEquals(0xAA, image.getPixel(2, 0));
+        assertEquals(0x55, image.getPixel(3, 0));
+        assertEquals(0xFF, image.getPixel(0, 1));
+        assertEquals(0x00, image.getPixel(1, 1));
+        assertEquals(0x33, image.getPixel(2, 2));
+        assertEquals(0x11, image.getPixel(3, 2));
+
+        byte[] raster = new byte[2 + 12];
+        image.toGrayscale(raster, 2);
+        assertArrayEquals(new byte[]{0, 0, 0x11, 0x22, (byte) 0xAA, 0x55, (byte) 0xFF, 0, 0, 0,
+            0x77, (byte) 0xEE, 0x33, 0x11}, raster);
+        assertArrayEquals(new byte[]{0x11, 0x22, (byte) 0xAA, 0x55, (byte) 0xFF, 0, 0, 0,
+            0x77, (byte) 0xEE, 0x33, 0x11}, image.toGrayscale());
+        assertEquals(6, image.getData().remaining());
+        assertTrue(image.getData().isReadOnly());
+    }
+
+    @Test
+    public void testBounds() {
+        AdafruitImage image = new AdafruitImage(ByteBuffer.allocate(8), 4);
+        for (int[] pixel : new int[][]{{-1, 0}, {4, 0}, {0, -1}, {0, 4}}) {
+            try {
+                image.getPixel(pixel[0], pixel[1]);
+                fail("Pixel [" + pixel[0] + ", " + pixel[1] + "] was read");
+            } catch (IndexOutOfBoundsException ex) {
+                // Expected
+            }
+        }
+        try {
+            image.toGrayscale(new byte[16], 1);
+            fail("Raster was too small");
+        } catch (IndexOutOfBoundsException ex) {
+            // Expected
+        }
+        try {
+            new AdafruitImage(ByteBuffer.allocate(8), 3);
+            fail("Odd width was accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUploadedImage() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        try (AdafruitSensor sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream())) {
+            sensor.setTimeout(100);
+            sensor.setAdaptiveTimeout(false);
+            sensor.connect();
+            byte[] model = createModel(3);
+            emulator.placeFinger(model);
+            assertTrue(sensor.hasFingerprint());
+            ByteBuffer buffer = ByteBuffer.allocate(AdafruitImage.SIZE);
+            assertEquals(AdafruitImage.SIZE, sensor.uploadImage(buffer));
+            ((Buffer) buffer).flip();
+
+            AdafruitImage image = new AdafruitImage(buffer);
+            assertEquals(AdafruitImage.WIDTH, image.getWidth());
+            assertEquals(AdafruitImage.HEIGHT, image.getHeight());
+            byte[] raster = image.toGrayscale();
+            assertEquals(AdafruitImage.WIDTH * AdafruitImage.HEIGHT, raster.length);
+            // Emulated image repeats the finger's model
+            for (int y = 0; y < AdafruitImage.HEIGHT; y += 37) {
+                for (int x = 0; x < AdafruitImage.WIDTH; x++) {
+                    int packed = model[((y * AdafruitImage.WIDTH + x) / 2) % model.length];
+                    int expected = ((x & 1) == 0 ? (packed >> 4) & 0x0F : packed & 0x0F) * 0x11;
+                    assertEquals(expected, image.getPixel(x, y));
+                    assertEquals(expected, raster[y * AdafruitImage.WIDTH + x] & 0xFF);
+                }
+            }
+        }
+    }
+
+    @Test(expected = FingerprintException.class)
+    public void testUploadWithoutImage() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        try (AdafruitSensor sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream())) {
+            sensor.setTimeout(100);
+            sensor.setAdaptiveTimeout(false);
+            sensor.connect();
+            sensor.uploadImage(ByteBuffer.allocate(AdafruitImage.SIZE));
+        }
+    }
+}
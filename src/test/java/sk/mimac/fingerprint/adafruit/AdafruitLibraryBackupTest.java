@@ -0,0 +1,94 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sk.mimac.fingerprint.FingerprintException;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitLibraryBackupTest {
+
+    private static final int[] SLOTS = {0, 3, 4, 57, 99};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExportAndRestore() throws IOException, FingerprintException {
+        AdafruitEmulator original = new AdafruitEmulator(100);
+        for (int slot : SLOTS) {
+            original.setModel(slot, createModel(slot));
+        }
+        Path file = folder.getRoot().toPath().resolve("sensor.fpbk");
+        List<Integer> progress = new ArrayList<>();
+        try (Connection connection = new Connection(original)) {
+            assertEquals(SLOTS.length, new AdafruitLibraryBackup(connection.sensor).exportToFile(file, (done, total) -> progress.add(done)));
+        }
+        assertTrue(Files.size(file) > SLOTS.length * AdafruitEmulator.TEMPLATE_SIZE);
+        assertEquals(SLOTS.length, progress.size());
+
+        AdafruitEmulator replacement = new AdafruitEmulator(100);
+        replacement.setModel(50, createModel(50));
+        try (Connection connection = new Connection(replacement)) {
+            assertEquals(SLOTS.length, new AdafruitLibraryBackup(connection.sensor).restoreFromFile(file, null));
+            assertEquals(SLOTS.length + 1, connection.sensor.getTemplateCount());
+        }
+        for (int slot : SLOTS) {
+            assertArrayEquals(createModel(slot), replacement.getModel(slot));
+        }
+        // Other positions are not changed
+        assertArrayEquals(createModel(50), replacement.getModel(50));
+        assertNull(replacement.getModel(1));
+    }
+
+    @Test
+    public void testExportEmpty() throws IOException, FingerprintException {
+        Path file = folder.getRoot().toPath().resolve("empty.fpbk");
+        try (Connection connection = new Connection(new AdafruitEmulator(100))) {
+            assertEquals(0, new AdafruitLibraryBackup(connection.sensor).exportToFile(file, null));
+        }
+        try (Connection connection = new Connection(new AdafruitEmulator(100))) {
+            assertEquals(0, new AdafruitLibraryBackup(connection.sensor).restoreFromFile(file, null));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedFile() throws IOException, FingerprintException {
+        AdafruitEmulator original = new AdafruitEmulator(100);
+        original.setModel(3, createModel(3));
+        Path file = folder.getRoot().toPath().resolve("corrupted.fpbk");
+        try (Connection connection = new Connection(original)) {
+            new AdafruitLibraryBackup(connection.sensor).exportToFile(file, null);
+        }
+        byte[] data = Files.readAllBytes(file);
+        data[data.length / 2] ^= 0x55;
+        Files.write(file, data);
+        try (Connection connection = new Connection(new AdafruitEmulator(100))) {
+            new AdafruitLibraryBackup(connection.sensor).restoreFromFile(file, null);
+        }
+    }
+
+    private static class Connection implements AutoCloseable {
+
+        private final AdafruitSensor sensor;
+
+        Connection(AdafruitEmulator emulator) throws FingerprintException {
+            sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+            sensor.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sensor.close();
+        }
+    }
+}
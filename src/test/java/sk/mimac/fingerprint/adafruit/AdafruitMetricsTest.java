@@ -0,0 +1,74 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitMetricsTest {
+
+    @Test
+    public void testBucketLimits() {
+        int last = 8 * 28 - 1;
+        for (int bucket = 0; bucket < last; bucket++) {
+            assertEquals(bucket, AdafruitMetrics.bucket(AdafruitMetrics.bucketLimit(bucket)));
+            assertEquals(bucket + 1, AdafruitMetrics.bucket(AdafruitMetrics.bucketLimit(bucket) + 1));
+        }
+        // Latencies above the histogram range fall into the last bucket
+        assertEquals(last, AdafruitMetrics.bucket(AdafruitMetrics.bucketLimit(last) + 1));
+        assertEquals(last, AdafruitMetrics.bucket(Long.MAX_VALUE));
+        assertEquals(0, AdafruitMetrics.bucket(-1));
+    }
+
+    @Test
+    public void testBucketPrecision() {
+        for (long micros = 0; micros < 1L << 30; micros = micros * 3 / 2 + 1) {
+            long limit = AdafruitMetrics.bucketLimit(AdafruitMetrics.bucket(micros));
+            assertTrue(micros + " -> " + limit, limit >= micros);
+            assertTrue(micros + " -> " + limit, limit - micros <= micros / 8);
+        }
+    }
+
+    @Test
+    public void testLatencyPercentile() {
+        AdafruitMetrics metrics = new AdafruitMetrics();
+        assertEquals(0, metrics.getLatencyPercentile(FINGERPRINT_HISPEEDSEARCH, 0.5));
+        for (int i = 0; i < 99; i++) {
+            metrics.recordCommand(FINGERPRINT_HISPEEDSEARCH, TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        metrics.recordCommand(FINGERPRINT_HISPEEDSEARCH, TimeUnit.MICROSECONDS.toNanos(10000));
+        metrics.recordCommand(FINGERPRINT_GETIMAGE, TimeUnit.MICROSECONDS.toNanos(5));
+
+        assertEquals(100, metrics.getCalls(FINGERPRINT_HISPEEDSEARCH));
+        assertEquals(103, metrics.getLatencyPercentile(FINGERPRINT_HISPEEDSEARCH, 0.5));
+        // Limit of the last bucket is clamped to the maximum latency
+        assertEquals(10000, metrics.getLatencyPercentile(FINGERPRINT_HISPEEDSEARCH, 1));
+        assertEquals(5, metrics.getLatencyPercentile(FINGERPRINT_GETIMAGE, 0.99));
+
+        CommandStatistics statistics = metrics.getCommand(FINGERPRINT_HISPEEDSEARCH);
+        assertEquals(100, statistics.getCalls());
+        assertEquals(199, statistics.getMeanLatency());
+        assertEquals(103, statistics.getMedianLatency());
+        assertEquals(10000, statistics.getMaxLatency());
+    }
+
+    @Test
+    public void testReset() {
+        AdafruitMetrics metrics = new AdafruitMetrics();
+        metrics.recordCommand(FINGERPRINT_HISPEEDSEARCH, TimeUnit.MILLISECONDS.toNanos(1));
+        metrics.recordTimeout(FINGERPRINT_HISPEEDSEARCH);
+        metrics.recordRetry();
+        metrics.recordConfidence(55);
+        assertEquals(1, metrics.getConfidenceHistogram()[5]);
+        metrics.reset();
+        assertEquals(0, metrics.getCalls(FINGERPRINT_HISPEEDSEARCH));
+        assertEquals(0, metrics.getTimeouts());
+        assertEquals(0, metrics.getRetries());
+        assertEquals(0, metrics.getLatencyPercentile(FINGERPRINT_HISPEEDSEARCH, 0.5));
+        assertEquals(0, metrics.getConfidenceHistogram()[5]);
+        assertNull(metrics.getCommand(FINGERPRINT_HISPEEDSEARCH));
+    }
+}
@@ -0,0 +1,114 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SensorParameters;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitNegotiationTest {
+
+    private AdafruitEmulator emulator;
+    private SerialLine line;
+    private AdafruitSensor sensor;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        emulator.setBaudRate(57600);
+        line = new SerialLine(emulator);
+        line.setBaudRate(57600);
+        sensor = new AdafruitSensor(line);
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testBaudRateUpgraded() throws FingerprintException {
+        SensorParameters parameters = sensor.negotiate(115200, 0);
+        assertEquals(115200, parameters.getBaudRate());
+        assertEquals(115200, line.getBaudRate());
+        assertEquals(115200, emulator.getBaudRate());
+    }
+
+    @Test
+    public void testBaudRateRestoredAfterFallback() throws FingerprintException {
+        emulator.setDelayedBaudRate(true);
+        SensorParameters parameters = sensor.negotiate(115200, 0);
+        assertEquals(57600, line.getBaudRate());
+        assertEquals(57600, parameters.getBaudRate());
+        assertEquals(57600, emulator.getStoredBaudRate());
+    }
+
+    @Test
+    public void testPacketSizeUpgraded() throws FingerprintException {
+        emulator.setPacketSize(32);
+        SensorParameters parameters = sensor.negotiate(0, 256);
+        assertEquals(256, parameters.getPacketSize());
+        sensor.downloadModel(createModel(1), 1);
+        sensor.storeModel(1, 5);
+        assertArrayEquals(createModel(1), emulator.getModel(5));
+    }
+
+    @Test
+    public void testPacketSizeReadBeforeDownload() throws Exception {
+        emulator.setPacketSize(32);
+        sensor.close();
+        sensor.connect();
+        sensor.downloadModel(createModel(1), 1);
+        sensor.storeModel(1, 5);
+        assertArrayEquals(createModel(1), emulator.getModel(5));
+    }
+
+    /**
+     * Serial line which passes data to the emulated sensor only when its baud
+     * rate matches.
+     */
+    private static class SerialLine extends AdafruitStreamTransport {
+
+        private final AdafruitEmulator emulator;
+        private int baudRate;
+
+        SerialLine(AdafruitEmulator emulator) {
+            super(emulator.getInputStream(), emulator.getOutputStream());
+            this.emulator = emulator;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws FingerprintException {
+            if (baudRate != emulator.getBaudRate()) {
+                ((Buffer) data).position(data.limit());
+                return;
+            }
+            super.write(data);
+        }
+
+        @Override
+        public int getBaudRate() {
+            return baudRate;
+        }
+
+        @Override
+        public boolean supportsBaudRate() {
+            return true;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) {
+            this.baudRate = baudRate;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitPacketCodecTest {
+
+    private static final byte[] FIRST = {0x1D, 0x01, 0x02};
+    private static final byte[] SECOND = {0x0F, (byte) 0xEF, 0x01, 0x7F};
+
+    @Test
+    public void testRoundTrip() throws FingerprintException {
+        List<byte[]> packets = new ArrayList<>();
+        assertEquals(0, decodeAll(join(encode(FIRST), encode(SECOND)), packets));
+        assertEquals(2, packets.size());
+        assertArrayEquals(FIRST, packets.get(0));
+        assertArrayEquals(SECOND, packets.get(1));
+    }
+
+    @Test
+    public void testResyncAfterGarbage() throws FingerprintException {
+        // Noise with a false start code and impossible length
+        byte[] garbage = {0x00, 0x13, (byte) 0xEF, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0x7F, 0x7F};
+        List<byte[]> packets = new ArrayList<>();
+        int errors = decodeAll(join(garbage, encode(FIRST)), packets);
+        assertTrue(errors > 0);
+        assertEquals(1, packets.size());
+        assertArrayEquals(FIRST, packets.get(0));
+    }
+
+    @Test
+    public void testResyncAfterTruncatedPacket() throws FingerprintException {
+        // Bytes of the second packet are first decoded as payload of the truncated one
+        byte[] truncated = Arrays.copyOf(encode(SECOND), 10);
+        List<byte[]> packets = new ArrayList<>();
+        int errors = decodeAll(join(truncated, encode(FIRST), encode(SECOND)), packets);
+        assertTrue(errors > 0);
+        assertEquals(2, packets.size());
+        assertArrayEquals(FIRST, packets.get(0));
+        assertArrayEquals(SECOND, packets.get(1));
+    }
+
+    @Test
+    public void testResyncAfterBadChecksum() throws FingerprintException {
+        byte[] corrupted = encode(SECOND);
+        corrupted[corrupted.length - 1] ^= 0x55;
+        List<byte[]> packets = new ArrayList<>();
+        // Payload of the corrupted packet contains false start code
+        assertEquals(2, decodeAll(join(corrupted, encode(FIRST)), packets));
+        assertEquals(1, packets.size());
+        assertArrayEquals(FIRST, packets.get(0));
+    }
+
+    @Test
+    public void testResyncByteByByte() throws FingerprintException {
+        byte[] input = join(new byte[]{(byte) 0xEF, 0x01, 0x00}, Arrays.copyOf(encode(SECOND), 12), encode(FIRST));
+        AdafruitPacketCodec codec = new AdafruitPacketCodec();
+        List<byte[]> packets = new ArrayList<>();
+        for (byte data : input) {
+            try {
+                if (codec.decode(data)) {
+                    packets.add(payload(codec));
+                }
+            } catch (FingerprintException ex) {
+                assertEquals("sensor.bad.data", ex.getKey());
+            }
+        }
+        // Bytes replayed after the last error
+        while (codec.decode(ByteBuffer.allocate(0))) {
+            packets.add(payload(codec));
+        }
+        assertEquals(1, packets.size());
+        assertArrayEquals(FIRST, packets.get(0));
+    }
+
+    private static byte[] encode(byte[] payload) {
+        ByteBuffer frame = new AdafruitPacketCodec().encode(FINGERPRINT_ACKPACKET, payload, 0, payload.length);
+        return Arrays.copyOf(frame.array(), frame.limit());
+    }
+
+    private static byte[] join(byte[]... parts) {
+        ByteBuffer result = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+    private static byte[] payload(AdafruitPacketCodec codec) {
+        assertEquals(FINGERPRINT_ACKPACKET, codec.getPacketType());
+        ByteBuffer payload = codec.payload();
+        byte[] result = new byte[payload.remaining()];
+        payload.get(result);
+        return result;
+    }
+
+    /**
+     * @return number of invalid packets
+     */
+    private static int decodeAll(byte[] input, List<byte[]> packets) {
+        AdafruitPacketCodec codec = new AdafruitPacketCodec();
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+        int errors = 0;
+        while (true) {
+            try {
+                if (!codec.decode(buffer)) {
+                    return errors;
+                }
+                packets.add(payload(codec));
+            } catch (FingerprintException ex) {
+                assertEquals("sensor.bad.data", ex.getKey());
+                errors++;
+            }
+        }
+    }
+}
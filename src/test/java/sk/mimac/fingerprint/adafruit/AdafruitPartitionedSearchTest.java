@@ -0,0 +1,199 @@
+package sk.mimac.fingerprint.adafruit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitPartitionedSearchTest {
+
+    private static final int LIBRARY_SIZE = 20;
+    private static final int HOT_SIZE = 3;
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(LIBRARY_SIZE);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testSearchAndHits() throws FingerprintException {
+        store(1, 12);
+        AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+        emulator.placeFinger(createModel(12));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(sensor.hasFingerprint());
+            SearchResult result = search.search();
+            assertEquals(12, result.getId());
+        }
+        emulator.placeFinger(createModel(13));
+        assertTrue(sensor.hasFingerprint());
+        assertNull(search.search());
+        assertEquals(3, search.getHits()[12]);
+        assertEquals(0, search.getHits()[1]);
+    }
+
+    @Test
+    public void testRearrangeIntoFreeSlots() throws FingerprintException {
+        store(5, 7, 9, 12);
+        AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+        search.setHits(hits(12, 10, 9, 5, 5, 1));
+        assertEquals(3, search.rearrange(10));
+        assertTrue(search.toSlot(12) < HOT_SIZE);
+        assertTrue(search.toSlot(9) < HOT_SIZE);
+        assertTrue(search.toSlot(5) < HOT_SIZE);
+        assertEquals(7, search.toSlot(7));
+        verifyMapping(search, 5, 7, 9, 12);
+        assertEquals(4, sensor.getTemplateCount());
+
+        // Hot user is found in the hot range, by its ID
+        emulator.placeFinger(createModel(12));
+        assertTrue(sensor.hasFingerprint());
+        assertEquals(12, search.search().getId());
+        // Already arranged
+        assertEquals(0, search.rearrange(10));
+    }
+
+    @Test
+    public void testRearrangeExchangesWithColdUser() throws FingerprintException {
+        store(0, 1, 2, 15);
+        AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+        search.setHits(hits(15, 10, 0, 2, 1, 2));
+        assertEquals(1, search.rearrange(10));
+        // The least frequent user is exchanged
+        assertEquals(2, search.toSlot(15));
+        assertEquals(15, search.toSlot(2));
+        verifyMapping(search, 0, 1, 2, 15);
+        assertEquals(4, sensor.getTemplateCount());
+    }
+
+    @Test
+    public void testNoFreeSlotForExchange() throws FingerprintException {
+        int[] all = new int[LIBRARY_SIZE];
+        for (int i = 0; i < LIBRARY_SIZE; i++) {
+            all[i] = i;
+        }
+        store(all);
+        AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+        search.setHits(hits(15, 10));
+        assertEquals(0, search.rearrange(10));
+        verifyMapping(search, all);
+    }
+
+    @Test
+    public void testFailureWhileMovingToFreeSlot() throws FingerprintException {
+        for (int command : new int[]{FINGERPRINT_LOAD, FINGERPRINT_STORE, FINGERPRINT_DELETE}) {
+            setUp();
+            store(5, 12);
+            AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+            search.setHits(hits(12, 10));
+            emulator.injectStatus(command, 0x18);
+            try {
+                search.rearrange(10);
+                fail("Expected exception");
+            } catch (FingerprintException ex) {
+                // Expected
+            }
+            verifyMapping(search, 5, 12);
+            verifyNoStaleCopies(search);
+        }
+    }
+
+    @Test
+    public void testStaleCopyDeletedByNextRearrange() throws FingerprintException {
+        store(5, 12);
+        AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+        search.setHits(hits(12, 10));
+        emulator.injectStatus(FINGERPRINT_DELETE, 0x18, 0x18);
+        try {
+            search.rearrange(10);
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            // Expected
+        }
+        verifyMapping(search, 5, 12);
+        assertEquals(0, search.rearrange(10));
+        verifyNoStaleCopies(search);
+        assertEquals(2, sensor.getTemplateCount());
+    }
+
+    @Test
+    public void testFailureWhileExchanging() throws FingerprintException {
+        int[][] failures = {{FINGERPRINT_STORE}, {FINGERPRINT_STORE, -1}, {FINGERPRINT_STORE, -1, -1},
+            {FINGERPRINT_LOAD, -1}, {FINGERPRINT_DELETE}};
+        for (int[] failure : failures) {
+            setUp();
+            store(0, 1, 2, 15);
+            AdafruitPartitionedSearch search = new AdafruitPartitionedSearch(sensor, HOT_SIZE);
+            search.setHits(hits(15, 10));
+            int[] codes = new int[failure.length];
+            for (int i = 0; i < codes.length - 1; i++) {
+                codes[i] = failure[i + 1];
+            }
+            codes[codes.length - 1] = 0x18;
+            emulator.injectStatus(failure[0], codes);
+            try {
+                search.rearrange(10);
+                fail("Expected exception");
+            } catch (FingerprintException ex) {
+                // Expected
+            }
+            verifyMapping(search, 0, 1, 2, 15);
+            verifyNoStaleCopies(search);
+        }
+    }
+
+    /**
+     * No position holds model of other user than the one mapped to it.
+     */
+    private void verifyNoStaleCopies(AdafruitPartitionedSearch search) {
+        for (int slot = 0; slot < LIBRARY_SIZE; slot++) {
+            byte[] model = emulator.getModel(slot);
+            if (model != null) {
+                assertArrayEquals("Model at position " + slot, createModel(search.toId(slot)), model);
+            }
+        }
+    }
+
+    private void store(int... ids) {
+        for (int id : ids) {
+            emulator.setModel(id, createModel(id));
+        }
+    }
+
+    private static int[] hits(int... pairs) {
+        int[] hits = new int[LIBRARY_SIZE];
+        for (int i = 0; i < pairs.length; i += 2) {
+            hits[pairs[i]] = pairs[i + 1];
+        }
+        return hits;
+    }
+
+    /**
+     * Mapping is a permutation and each user's slot holds the user's model.
+     */
+    private void verifyMapping(AdafruitPartitionedSearch search, int... ids) {
+        for (int id = 0; id < LIBRARY_SIZE; id++) {
+            assertEquals(id, search.toId(search.toSlot(id)));
+        }
+        for (int id : ids) {
+            assertArrayEquals("Model of user " + id, createModel(id), emulator.getModel(search.toSlot(id)));
+        }
+    }
+}
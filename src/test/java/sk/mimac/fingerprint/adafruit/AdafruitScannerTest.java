@@ -0,0 +1,108 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.FingerprintListener;
+import sk.mimac.fingerprint.SearchResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitScannerTest {
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+    private AdafruitScanner scanner;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        emulator.setModel(5, createModel(5));
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+        scanner = new AdafruitScanner(sensor, 1, 5);
+        scanner.addListener(new FingerprintListener() {
+            @Override
+            public void onMatch(int id, int confidence) {
+                events.add("match " + id);
+            }
+
+            @Override
+            public void onUnknown() {
+                events.add("unknown");
+            }
+
+            @Override
+            public void onFingerRemoved() {
+                events.add("removed");
+            }
+
+            @Override
+            public void onError(FingerprintException ex) {
+                events.add("error");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scanner.stop();
+        sensor.close();
+    }
+
+    @Test
+    public void testEventOrder() throws Exception {
+        scanner.start();
+        assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+        emulator.placeFinger(createModel(5));
+        assertEquals("match 5", nextEvent());
+        // Finger staying on the sensor isn't reported again
+        assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+        emulator.removeFinger();
+        assertEquals("removed", nextEvent());
+        emulator.placeFinger(createModel(6));
+        assertEquals("unknown", nextEvent());
+        emulator.removeFinger();
+        assertEquals("removed", nextEvent());
+    }
+
+    @Test
+    public void testNoDuplicateMatchAfterError() throws Exception {
+        emulator.placeFinger(createModel(5));
+        scanner.start();
+        assertEquals("match 5", nextEvent());
+        // Replies of all retries are lost
+        emulator.dropReplies(FINGERPRINT_GETIMAGE, AdafruitSensor.DEFAULT_RETRIES + 1);
+        assertEquals("error", nextEvent());
+        emulator.removeFinger();
+        assertEquals("removed", nextEvent());
+    }
+
+    @Test
+    public void testAwaitNextScan() throws Exception {
+        scanner.start();
+        CompletableFuture<SearchResult> next = scanner.awaitNextScan();
+        emulator.placeFinger(createModel(5));
+        SearchResult result = next.get(2, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals(5, result.getId());
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(2, TimeUnit.SECONDS);
+        assertNotNull("No event from scanner", event);
+        return event;
+    }
+}
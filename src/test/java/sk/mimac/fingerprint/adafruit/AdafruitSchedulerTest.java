@@ -0,0 +1,186 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.Priority;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitSchedulerTest {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+    private AdafruitScheduler scheduler;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+        scheduler = new AdafruitScheduler(sensor);
+        scheduler.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+        sensor.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testPriorityOrder() throws Exception {
+        CountDownLatch blocker = block();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(scheduler.submit(Priority.LOW, event("low 1")));
+        futures.add(scheduler.submit(Priority.NORMAL, event("normal")));
+        futures.add(scheduler.submit(Priority.HIGH, event("high 1")));
+        futures.add(scheduler.submit(Priority.LOW, event("low 2")));
+        futures.add(scheduler.submit(Priority.HIGH, event("high 2")));
+        blocker.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        assertEquals(Arrays.asList("high 1", "high 2", "normal", "low 1", "low 2"), events);
+    }
+
+    @Test
+    public void testStoppedSchedulerCancelsTasks() throws Exception {
+        CountDownLatch blocker = block();
+        CompletableFuture<Void> waiting = scheduler.submit(Priority.LOW, event("low"));
+        new Thread(() -> {
+            sleep(50);
+            blocker.countDown();
+        }).start();
+        scheduler.stop();
+        assertTrue(waiting.isCancelled());
+        assertTrue(scheduler.submit(Priority.HIGH, event("high")).isCancelled());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testSyncStepsYieldToIdentification() throws Exception {
+        Map<Integer, byte[]> library = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            library.put(i, createModel(i));
+        }
+        AdafruitLibrarySync sync = new AdafruitLibrarySync(scheduler);
+        AdafruitLibrarySync.Result result = sync.syncLibrary(library, (done, total) -> {
+            events.add("step " + done);
+            if (done == 1) {
+                scheduler.submit(Priority.HIGH, event("high"));
+            }
+        });
+        assertEquals(4, result.getUploaded());
+        assertEquals(Arrays.asList("step 1", "high", "step 2", "step 3", "step 4"), events);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(createModel(i), emulator.getModel(i));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testBackupStepsYieldToIdentification() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            emulator.setModel(i * 10, createModel(i));
+        }
+        List<Integer> exported = Collections.synchronizedList(new ArrayList<>());
+        AdafruitLibraryBackup backup = new AdafruitLibraryBackup(scheduler);
+        int count = backup.export((slot, model) -> exported.add(slot), (done, total) -> {
+            events.add("step " + done);
+            if (done == 1) {
+                scheduler.submit(Priority.HIGH, event("high"));
+            }
+        });
+        assertEquals(3, count);
+        assertEquals(Arrays.asList(0, 10, 20), exported);
+        assertEquals(Arrays.asList("step 1", "high", "step 2", "step 3"), events);
+    }
+
+    @Test(timeout = 5000)
+    public void testAllocatorDeleteKeepsRangeReserved() throws Exception {
+        for (int slot : new int[]{0, 1, 2, 3, 5}) {
+            emulator.setModel(slot, createModel(slot));
+        }
+        AdafruitSlotAllocator allocator = new AdafruitSlotAllocator(scheduler);
+        allocator.refresh();
+        assertEquals(95, allocator.getFreeCount());
+        BitSet slots = new BitSet();
+        slots.set(0);
+        slots.set(3);
+        slots.set(5);
+
+        CountDownLatch blocker = block();
+        CompletableFuture<Integer> delete = CompletableFuture.supplyAsync(() -> {
+            try {
+                return allocator.delete(slots);
+            } catch (FingerprintException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        // Range 3-5 spans free slot 4, which is reserved until it's deleted
+        while (allocator.getFreeCount() != 94) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<Integer> save = scheduler.submit(Priority.HIGH, sensor -> allocator.save(createModel(42)));
+        blocker.countDown();
+
+        assertEquals(2, (int) delete.get());
+        assertEquals(6, (int) save.get());
+        assertArrayEquals(createModel(42), emulator.getModel(6));
+        assertNull(emulator.getModel(0));
+        assertNotNull(emulator.getModel(1));
+        assertNotNull(emulator.getModel(2));
+        assertNull(emulator.getModel(3));
+        assertNull(emulator.getModel(5));
+        assertEquals(97, allocator.getFreeCount());
+    }
+
+    /**
+     * Occupy the scheduler's thread until the returned latch is released.
+     */
+    private CountDownLatch block() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        scheduler.submit(Priority.HIGH, sensor -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    private AdafruitScheduler.SensorTask<Void> event(String name) {
+        return sensor -> {
+            events.add(name);
+            return null;
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
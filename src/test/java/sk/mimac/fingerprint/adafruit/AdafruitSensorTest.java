@@ -0,0 +1,153 @@
+package sk.mimac.fingerprint.adafruit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitSensorTest {
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(100);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testSearch() throws FingerprintException {
+        emulator.setModel(7, createModel(7));
+        emulator.placeFinger(createModel(7));
+        assertTrue(sensor.hasFingerprint());
+        SearchResult result = sensor.search();
+        assertNotNull(result);
+        assertEquals(7, result.getId());
+        emulator.placeFinger(createModel(8));
+        assertTrue(sensor.hasFingerprint());
+        assertNull(sensor.search());
+    }
+
+    @Test
+    public void testRetryAfterDroppedReply() throws FingerprintException {
+        emulator.setModel(1, createModel(1));
+        emulator.setModel(2, createModel(2));
+        emulator.dropReplies(FINGERPRINT_TEMPLATECOUNT, 1);
+        assertEquals(2, sensor.getTemplateCount());
+        assertEquals(1, sensor.getMetrics().getRetries());
+        assertEquals(1, sensor.getMetrics().getCalls(FINGERPRINT_TEMPLATECOUNT));
+        // Communication continues normally
+        assertEquals(2, sensor.getTemplateCount());
+        assertEquals(1, sensor.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testRetriesExhausted() {
+        sensor.setRetries(1);
+        emulator.dropReplies(FINGERPRINT_TEMPLATECOUNT, 2);
+        try {
+            sensor.getTemplateCount();
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            assertEquals("sensor.not.responding", ex.getKey());
+        }
+        assertEquals(1, sensor.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testLateReplyNotMistakenForNextCommand() throws FingerprintException {
+        emulator.setModel(7, createModel(7));
+        emulator.placeFinger(createModel(7));
+        sensor.setTimeout(FINGERPRINT_HISPEEDSEARCH, 100);
+        emulator.setCommandDelay(FINGERPRINT_HISPEEDSEARCH, 150000);
+        assertTrue(sensor.hasFingerprint());
+        assertEquals(7, sensor.search().getId());
+        assertEquals(1, sensor.getMetrics().getRetries());
+        // Latency is measured from the first send
+        assertTrue(sensor.getMetrics().getCommand(FINGERPRINT_HISPEEDSEARCH).getMaxLatency() >= 140000);
+
+        // Reply to the repeated search is discarded, not taken as reply to capture
+        emulator.removeFinger();
+        assertFalse(sensor.hasFingerprint());
+        assertEquals(1, sensor.getTemplateCount());
+    }
+
+    @Test
+    public void testIdlePollingDoesntShortenCaptureTimeout() throws Exception {
+        sensor.close();
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.connect();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(sensor.hasFingerprint());
+        }
+        emulator.setModel(7, createModel(7));
+        emulator.placeFinger(createModel(7));
+        emulator.setCommandDelay(FINGERPRINT_GETIMAGE, 200000);
+        assertTrue(sensor.hasFingerprint());
+        assertEquals(0, sensor.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testNoRetryOfStore() throws FingerprintException {
+        emulator.placeFinger(createModel(3));
+        assertTrue(sensor.hasFingerprint());
+        emulator.dropReplies(FINGERPRINT_STORE, 1);
+        try {
+            sensor.saveStoredModel(3);
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            assertEquals("sensor.not.responding", ex.getKey());
+        }
+        assertEquals(0, sensor.getMetrics().getRetries());
+        // Model was stored, only the reply was lost
+        assertArrayEquals(createModel(3), emulator.getModel(3));
+    }
+
+    @Test
+    public void testVerifyStoredModel() throws FingerprintException {
+        for (int i = 0; i < 50; i++) {
+            emulator.setModel(i, createModel(i));
+        }
+        emulator.placeFinger(createModel(42));
+        assertTrue(sensor.hasFingerprint());
+        assertEquals(200, sensor.verify(42));
+        assertEquals(0, sensor.verify(41));
+        // Only the one model is compared, library isn't searched
+        assertEquals(2, sensor.getMetrics().getCalls(FINGERPRINT_MATCH));
+        assertEquals(0, sensor.getMetrics().getCalls(FINGERPRINT_HISPEEDSEARCH));
+        assertEquals(1, sensor.getMetrics().getConfidenceHistogram()[20]);
+        try {
+            sensor.verify(60);
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            // Empty position can't be loaded
+        }
+    }
+
+    @Test
+    public void testVerifyHostModel() throws FingerprintException {
+        emulator.placeFinger(createModel(5));
+        assertTrue(sensor.hasFingerprint());
+        assertEquals(200, sensor.verify(createModel(5)));
+        assertEquals(0, sensor.verify(createModel(6)));
+        // Finger in the first buffer is kept between verifications
+        assertEquals(200, sensor.verify(createModel(5)));
+        assertNull(emulator.getModel(5));
+    }
+}
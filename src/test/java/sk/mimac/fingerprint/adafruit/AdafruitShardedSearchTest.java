@@ -0,0 +1,145 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.adafruit.AdafruitScheduler.Priority;
+import sk.mimac.fingerprint.adafruit.AdafruitShardedSearch.ShardResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitShardedSearchTest {
+
+    private static final int[] LIBRARY_SIZES = {50, 30, 40};
+
+    private final List<AdafruitEmulator> emulators = new ArrayList<>();
+    private final List<AdafruitSensor> sensors = new ArrayList<>();
+    private final List<AdafruitScheduler> schedulers = new ArrayList<>();
+    private AdafruitShardedSearch search;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        for (int size : LIBRARY_SIZES) {
+            AdafruitEmulator emulator = new AdafruitEmulator(size);
+            AdafruitSensor sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+            sensor.setTimeout(100);
+            sensor.setAdaptiveTimeout(false);
+            sensor.connect();
+            AdafruitScheduler scheduler = new AdafruitScheduler(sensor);
+            scheduler.start();
+            emulators.add(emulator);
+            sensors.add(sensor);
+            schedulers.add(scheduler);
+        }
+        search = new AdafruitShardedSearch(schedulers);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < sensors.size(); i++) {
+            schedulers.get(i).close();
+            sensors.get(i).close();
+        }
+    }
+
+    @Test
+    public void testGlobalIds() {
+        assertEquals(120, search.getLibrarySize());
+        assertEquals(57, search.toGlobalId(1, 7));
+        assertEquals(1, search.toShard(57));
+        assertEquals(7, search.toSlot(57));
+        assertEquals(0, search.toShard(49));
+        assertEquals(2, search.toShard(80));
+        assertEquals(39, search.toSlot(119));
+        try {
+            search.toShard(120);
+            fail("Expected exception");
+        } catch (IllegalArgumentException ex) {
+            // Out of library
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testBestOfShards() throws FingerprintException {
+        byte[] finger = createModel(1);
+        byte[] similar = createModel(2);
+        emulators.get(1).setModel(7, finger);
+        emulators.get(2).setModel(3, similar);
+        // Third shard matches the finger with lower confidence
+        emulators.get(2).setMatcher((first, second) -> Arrays.equals(first, finger) && Arrays.equals(second, similar) ? 120 : 0);
+        placeFinger(0, finger);
+
+        ShardResult result = search.search(0);
+        assertNotNull(result);
+        assertEquals(1, result.getShard());
+        assertEquals(7, result.getId());
+        assertEquals(57, result.getGlobalId());
+        assertEquals(200, result.getConfidence());
+        // Model was downloaded, not captured, on other shards
+        assertEquals(0, sensors.get(1).getMetrics().getCalls(FINGERPRINT_GETIMAGE));
+        assertEquals(1, sensors.get(2).getMetrics().getCalls(FINGERPRINT_DOWNLOAD));
+
+        placeFinger(0, createModel(3));
+        assertNull(search.search(0));
+    }
+
+    @Test(timeout = 5000)
+    public void testReaderShardMatches() throws FingerprintException {
+        emulators.get(2).setModel(39, createModel(5));
+        placeFinger(2, createModel(5));
+        ShardResult result = search.search(2);
+        assertEquals(2, result.getShard());
+        assertEquals(119, result.getGlobalId());
+    }
+
+    @Test(timeout = 5000)
+    public void testFailedShardIgnored() throws FingerprintException {
+        emulators.get(0).setModel(10, createModel(4));
+        emulators.get(2).dropReplies(FINGERPRINT_HISPEEDSEARCH, 100);
+        placeFinger(1, createModel(4));
+        ShardResult result = search.search(1);
+        assertNotNull(result);
+        assertEquals(0, result.getShard());
+        assertEquals(10, result.getGlobalId());
+    }
+
+    @Test(timeout = 5000)
+    public void testErrorWithoutMatch() throws FingerprintException {
+        emulators.get(2).setModel(0, createModel(4));
+        emulators.get(2).dropReplies(FINGERPRINT_HISPEEDSEARCH, 100);
+        placeFinger(1, createModel(4));
+        try {
+            search.search(1);
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            assertEquals("sensor.not.responding", ex.getKey());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testReaderFailure() throws FingerprintException {
+        emulators.get(0).setModel(0, createModel(4));
+        placeFinger(1, createModel(4));
+        emulators.get(1).injectStatus(FINGERPRINT_UPLOAD, FINGERPRINT_UPLOADFEATUREFAIL);
+        try {
+            search.search(1);
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            // Model couldn't be uploaded, so no shard was searched
+        }
+        assertEquals(0, sensors.get(0).getMetrics().getCalls(FINGERPRINT_HISPEEDSEARCH));
+    }
+
+    private void placeFinger(int shard, byte[] model) throws FingerprintException {
+        emulators.get(shard).placeFinger(model);
+        assertTrue(schedulers.get(shard).execute(Priority.HIGH, AdafruitSensor::hasFingerprint));
+    }
+}
@@ -0,0 +1,133 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitConstants.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitSlotAllocatorTest {
+
+    private AdafruitEmulator emulator;
+    private AdafruitSensor sensor;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        emulator = new AdafruitEmulator(20);
+        sensor = new AdafruitSensor(emulator.getInputStream(), emulator.getOutputStream());
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.close();
+    }
+
+    @Test
+    public void testCoalesce() {
+        assertEquals(Arrays.asList(), ranges(bits(), bits(1, 2)));
+        // Free slots between deleted ones are spanned
+        assertEquals(Arrays.asList("0+6"), ranges(bits(0, 1, 3, 5), bits()));
+        // Kept slots split ranges
+        assertEquals(Arrays.asList("0+2", "3+1", "6+1", "8+1"), ranges(bits(0, 1, 3, 6, 8), bits(2, 4, 7)));
+        assertEquals(Arrays.asList("2+1", "4+1"), ranges(bits(2, 4), bits(3, 0, 9)));
+        // Kept slots outside of the deleted ones don't matter
+        assertEquals(Arrays.asList("5+6"), ranges(bits(5, 10), bits(0, 4, 11)));
+    }
+
+    @Test
+    public void testDeleteWithFewCommands() throws FingerprintException {
+        for (int slot : new int[]{0, 1, 2, 4, 6, 7, 8, 9, 12}) {
+            emulator.setModel(slot, createModel(slot));
+        }
+        AdafruitSlotAllocator allocator = new AdafruitSlotAllocator(sensor);
+        allocator.refresh();
+        assertEquals(9, allocator.getTemplateCount());
+        assertEquals(11, allocator.getFreeCount());
+
+        // Free slots 3, 5, 10 and 11 are spanned, kept slot 8 splits the
+        // range and slot 15 isn't occupied
+        assertEquals(2, allocator.delete(Arrays.asList(2, 4, 6, 7, 9, 12, 15)));
+        assertEquals(2, sensor.getMetrics().getCalls(FINGERPRINT_DELETE));
+        for (int slot = 0; slot < 20; slot++) {
+            boolean kept = slot < 2 || slot == 8;
+            assertEquals("Slot " + slot, kept, emulator.getModel(slot) != null);
+            assertEquals("Slot " + slot, kept, allocator.isOccupied(slot));
+        }
+        assertEquals(17, allocator.getFreeCount());
+        assertEquals(0, allocator.delete(Arrays.asList(5, 19)));
+    }
+
+    @Test
+    public void testDeleteKeepsOccupiedGap() throws FingerprintException {
+        for (int slot : new int[]{3, 4, 5}) {
+            emulator.setModel(slot, createModel(slot));
+        }
+        AdafruitSlotAllocator allocator = new AdafruitSlotAllocator(sensor);
+        BitSet slots = bits(3, 5);
+        assertEquals(2, allocator.delete(slots));
+        assertNull(emulator.getModel(3));
+        assertNotNull(emulator.getModel(4));
+        assertNull(emulator.getModel(5));
+        assertEquals(bits(4), allocator.getOccupied());
+    }
+
+    @Test
+    public void testAllocation() throws FingerprintException {
+        emulator.setModel(0, createModel(0));
+        emulator.setModel(2, createModel(2));
+        AdafruitSlotAllocator allocator = new AdafruitSlotAllocator(sensor);
+        assertEquals(1, allocator.allocate());
+        assertEquals(3, allocator.save(createModel(3)));
+        assertArrayEquals(createModel(3), emulator.getModel(3));
+        allocator.release(1);
+        assertEquals(1, allocator.save(createModel(1)));
+        assertEquals(16, allocator.getFreeCount());
+        for (int slot = 4; slot < 20; slot++) {
+            assertEquals(slot, allocator.save(createModel(slot)));
+        }
+        assertEquals(-1, allocator.allocate());
+        assertEquals(-1, allocator.save(createModel(99)));
+    }
+
+    @Test
+    public void testEmptyLibraryReadsNoIndexTable() throws FingerprintException {
+        AdafruitSlotAllocator allocator = new AdafruitSlotAllocator(sensor);
+        allocator.refresh();
+        assertEquals(20, allocator.getLibrarySize());
+        assertEquals(20, allocator.getFreeCount());
+        assertEquals(0, sensor.getMetrics().getCalls(FINGERPRINT_READ_INDEX_TABLE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeleteOutOfLibrary() throws FingerprintException {
+        new AdafruitSlotAllocator(sensor).delete(bits(20));
+    }
+
+    private static List<String> ranges(BitSet toDelete, BitSet kept) {
+        List<String> result = new ArrayList<>();
+        for (int[] range : AdafruitSlotAllocator.coalesce(toDelete, kept)) {
+            result.add(range[0] + "+" + range[1]);
+        }
+        return result;
+    }
+
+    private static BitSet bits(int... slots) {
+        BitSet result = new BitSet();
+        for (int slot : slots) {
+            result.set(slot);
+        }
+        return result;
+    }
+}
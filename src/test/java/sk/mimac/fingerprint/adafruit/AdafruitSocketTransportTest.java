@@ -0,0 +1,169 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * Sensors connected through emulated serial-to-TCP bridges on loopback.
+ *
+ * @author Milan Fabian
+ */
+public class AdafruitSocketTransportTest {
+
+    private final List<Bridge> bridges = new ArrayList<>();
+    private final List<AdafruitSensor> sensors = new ArrayList<>();
+    private AdafruitSocketSelector selector;
+
+    @Before
+    public void setUp() throws FingerprintException {
+        selector = new AdafruitSocketSelector();
+        selector.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (AdafruitSensor sensor : sensors) {
+            sensor.close();
+        }
+        selector.stop();
+        for (Bridge bridge : bridges) {
+            bridge.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        emulator.setModel(9, createModel(9));
+        emulator.placeFinger(createModel(9));
+        AdafruitSensor sensor = connect(emulator);
+
+        assertEquals(1, sensor.getTemplateCount());
+        assertTrue(sensor.hasFingerprint());
+        SearchResult result = sensor.search();
+        assertNotNull(result);
+        assertEquals(9, result.getId());
+
+        // Multi-packet transfers in both directions
+        sensor.loadModel(9, 1);
+        ByteBuffer uploaded = ByteBuffer.allocate(1024);
+        sensor.uploadModel(1, uploaded);
+        uploaded.flip();
+        byte[] model = new byte[uploaded.remaining()];
+        uploaded.get(model);
+        assertArrayEquals(createModel(9), model);
+        sensor.saveModel(createModel(10), 10);
+        assertArrayEquals(createModel(10), emulator.getModel(10));
+    }
+
+    @Test
+    public void testSharedSelector() throws Exception {
+        AdafruitEmulator first = new AdafruitEmulator(100);
+        first.setModel(1, createModel(1));
+        AdafruitEmulator second = new AdafruitEmulator(100);
+        second.setModel(1, createModel(1));
+        second.setModel(2, createModel(2));
+        AdafruitSensor firstSensor = connect(first);
+        AdafruitSensor secondSensor = connect(second);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, firstSensor.getTemplateCount());
+            assertEquals(2, secondSensor.getTemplateCount());
+        }
+    }
+
+    @Test
+    public void testBridgeClosed() throws Exception {
+        AdafruitSensor sensor = connect(new AdafruitEmulator(100));
+        sensor.setReconnectAttempts(0);
+        bridges.get(0).close();
+        try {
+            sensor.getTemplateCount();
+            fail("Expected exception");
+        } catch (FingerprintException ex) {
+            assertNotNull(ex.getKey());
+        }
+    }
+
+    private AdafruitSensor connect(AdafruitEmulator emulator) throws IOException, FingerprintException {
+        Bridge bridge = new Bridge(emulator);
+        bridges.add(bridge);
+        AdafruitSocketTransport transport = new AdafruitSocketTransport(bridge.getAddress(), selector);
+        AdafruitSensor sensor = new AdafruitSensor(transport);
+        sensor.setTimeout(500);
+        sensor.connect();
+        sensors.add(sensor);
+        return sensor;
+    }
+
+    /**
+     * Accepts one connection and pipes it to the emulator.
+     */
+    static class Bridge {
+
+        private final ServerSocket server;
+        private volatile Socket socket;
+
+        Bridge(AdafruitEmulator emulator) throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(() -> {
+                try {
+                    socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread reply = new Thread(() -> pipe(emulator.getInputStream(), socket), "bridge-reply");
+                    reply.setDaemon(true);
+                    reply.start();
+                    InputStream input = socket.getInputStream();
+                    OutputStream output = emulator.getOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int count;
+                    while ((count = input.read(buffer)) >= 0) {
+                        output.write(buffer, 0, count);
+                    }
+                } catch (IOException ex) {
+                    // Closed by the test
+                }
+            }, "bridge-command");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void pipe(InputStream input, Socket socket) {
+            try {
+                OutputStream output = socket.getOutputStream();
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, count);
+                }
+            } catch (IOException ex) {
+                // Closed by the test
+            }
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) server.getLocalSocketAddress();
+        }
+
+        void close() throws IOException {
+            server.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package sk.mimac.fingerprint.adafruit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sk.mimac.fingerprint.FingerprintException;
+import sk.mimac.fingerprint.SearchResult;
+import static org.junit.Assert.*;
+import static sk.mimac.fingerprint.adafruit.AdafruitEmulator.createModel;
+
+/**
+ * @author Milan Fabian
+ */
+public class AdafruitTraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void testRecordAndReplay() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        emulator.setModel(3, createModel(3));
+        emulator.setModel(8, createModel(8));
+        emulator.placeFinger(createModel(8));
+        List<Path> files;
+        try (AdafruitTraceRecorder recorder = new AdafruitTraceRecorder(folder.getRoot().toPath(), "trace", 256, 100)) {
+            AdafruitTransport transport = new AdafruitStreamTransport(emulator.getInputStream(), emulator.getOutputStream());
+            try (AdafruitSensor sensor = createSensor(new AdafruitRecordingTransport(transport, recorder))) {
+                assertSession(sensor);
+            }
+            recorder.flush();
+            assertEquals(0, recorder.getDroppedEvents());
+            files = recorder.getFiles();
+        }
+        // Uploaded model is split between several files
+        assertTrue(files.size() > 1);
+
+        // Finger and models are only in the trace now
+        emulator.removeFinger();
+        emulator.setModel(8, null);
+        AdafruitReplayTransport replay = new AdafruitReplayTransport(files);
+        replay.setSpeed(0);
+        for (int i = 0; i < 2; i++) {
+            try (AdafruitSensor sensor = createSensor(replay)) {
+                assertSession(sensor);
+            }
+            assertEquals(0, replay.getMismatches());
+            replay.rewind();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReplayCountsMismatches() throws Exception {
+        AdafruitEmulator emulator = new AdafruitEmulator(100);
+        emulator.setModel(5, createModel(5));
+        emulator.placeFinger(createModel(5));
+        List<Path> files;
+        try (AdafruitTraceRecorder recorder = new AdafruitTraceRecorder(folder.getRoot().toPath(), "trace", 1 << 20, 1)) {
+            AdafruitTransport transport = new AdafruitStreamTransport(emulator.getInputStream(), emulator.getOutputStream());
+            try (AdafruitSensor sensor = createSensor(new AdafruitRecordingTransport(transport, recorder))) {
+                assertTrue(sensor.hasFingerprint());
+                assertEquals(200, sensor.verify(5));
+            }
+            files = recorder.getFiles();
+        }
+        AdafruitReplayTransport replay = new AdafruitReplayTransport(files);
+        replay.setSpeed(0);
+        try (AdafruitSensor sensor = createSensor(replay)) {
+            assertTrue(sensor.hasFingerprint());
+            // Reply is taken from the trace, even though other slot was loaded
+            assertEquals(200, sensor.verify(6));
+            assertEquals(1, replay.getMismatches());
+            try {
+                sensor.verify(5);
+                fail("Expected exception");
+            } catch (FingerprintException ex) {
+                // Connection was closed in the trace
+            }
+        }
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        int eventSize = AdafruitTraceRecorder.EVENT_HEADER_SIZE + 20;
+        long maxFileSize = AdafruitTraceRecorder.FILE_HEADER_SIZE + 3 * eventSize;
+        List<Path> files;
+        try (AdafruitTraceRecorder recorder = new AdafruitTraceRecorder(directory, "rotated", maxFileSize, 3)) {
+            for (int i = 0; i < 100; i++) {
+                recorder.record(AdafruitTraceRecorder.EVENT_WRITE, ByteBuffer.allocate(20).putInt(0, i));
+            }
+            recorder.flush();
+            files = recorder.getFiles();
+        }
+        assertEquals(3, files.size());
+        assertEquals(directory.resolve("rotated-000031.fptr"), files.get(0));
+        assertEquals(directory.resolve("rotated-000033.fptr"), files.get(2));
+        try (Stream<Path> existing = Files.list(directory)) {
+            assertEquals(3, existing.count());
+        }
+        for (Path file : files) {
+            assertTrue(Files.size(file) <= maxFileSize);
+        }
+        ByteBuffer last = ByteBuffer.wrap(Files.readAllBytes(files.get(2)));
+        assertEquals(AdafruitTraceRecorder.MAGIC, last.getInt(0));
+        assertEquals(AdafruitTraceRecorder.VERSION, last.getShort(4));
+        // Event 99 is alone in the last file
+        assertEquals(AdafruitTraceRecorder.FILE_HEADER_SIZE + eventSize, last.limit());
+        assertEquals(AdafruitTraceRecorder.EVENT_WRITE, last.get(AdafruitTraceRecorder.FILE_HEADER_SIZE));
+        assertEquals(99, last.getInt(AdafruitTraceRecorder.FILE_HEADER_SIZE + AdafruitTraceRecorder.EVENT_HEADER_SIZE));
+    }
+
+    private static AdafruitSensor createSensor(AdafruitTransport transport) throws FingerprintException {
+        AdafruitSensor sensor = new AdafruitSensor(transport);
+        sensor.setTimeout(100);
+        sensor.setAdaptiveTimeout(false);
+        sensor.connect();
+        return sensor;
+    }
+
+    private static void assertSession(AdafruitSensor sensor) throws FingerprintException {
+        assertEquals(2, sensor.getTemplateCount());
+        assertTrue(sensor.hasFingerprint());
+        SearchResult result = sensor.search();
+        assertNotNull(result);
+        assertEquals(8, result.getId());
+        sensor.loadModel(3, 2);
+        ByteBuffer model = ByteBuffer.allocate(AdafruitEmulator.TEMPLATE_SIZE);
+        assertEquals(AdafruitEmulator.TEMPLATE_SIZE, sensor.uploadModel(2, model));
+        assertArrayEquals(createModel(3), model.array());
+    }
+}
@@ -0,0 +1,141 @@
+package sk.mimac.fingerprint.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * @author Milan Fabian
+ */
+public class TemplateStoreTest {
+
+    // Layout of the store file
+    private static final int RECORD_SIZE = 576;
+    private static final int STATE_VALID = 0x56414C44;
+    private static final int OFFSET_TEMPLATE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("templates.fpts");
+    }
+
+    @Test
+    public void testPutAndReopen() throws IOException {
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            store.put(1, 1, 0, template(1));
+            store.put(2, 1, 1, template(2));
+            store.put(3, 2, 0, template(3));
+            store.put(2, 1, 1, template(4));
+            assertTrue(store.remove(3));
+            assertEquals(2, store.size());
+        }
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            assertEquals(2, store.size());
+            assertEquals(4, store.getGeneration());
+            assertArrayEquals(template(1), store.getTemplate(1));
+            assertArrayEquals(template(4), store.getTemplate(1, 1));
+            assertNull(store.get(3));
+            assertNull(store.get(2, 0));
+            Map<Integer, Long> digests = new HashMap<>();
+            digests.put(0, TemplateStore.digest(template(1)));
+            digests.put(1, TemplateStore.digest(template(4)));
+            assertEquals(digests, store.getDigests(1));
+        }
+    }
+
+    @Test
+    public void testSlotReassigned() throws IOException {
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            store.put(1, 1, 5, template(1));
+            store.put(2, 1, 5, template(2));
+            assertNull(store.get(1));
+            assertEquals(2, store.get(1, 5).getUserId());
+        }
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            assertEquals(1, store.size());
+            assertEquals(2, store.get(1, 5).getUserId());
+        }
+    }
+
+    @Test
+    public void testCrashBeforeOldRecordFreed() throws IOException {
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            store.put(1, 1, 0, template(1)); // record 0
+            store.put(1, 1, 0, template(2)); // record 1, frees record 0
+            store.put(1, 1, 0, template(3)); // record 0, frees record 1
+        }
+        // Newer record is before the older one in the file
+        markValid(1);
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            assertEquals(1, store.size());
+            assertEquals(3, store.get(1).getGeneration());
+            assertArrayEquals(template(3), store.getTemplate(1));
+            // Left over record was freed and is reused
+            store.put(2, 1, 1, template(4));
+        }
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            assertArrayEquals(template(3), store.getTemplate(1));
+            assertArrayEquals(template(4), store.getTemplate(2));
+            assertEquals(4, store.getGeneration());
+        }
+    }
+
+    @Test
+    public void testTornWriteKeepsPreviousVersion() throws IOException {
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            store.put(1, 1, 0, template(1)); // record 0
+            store.put(1, 1, 0, template(2)); // record 1, frees record 0
+        }
+        // Crash while writing record 1, before record 0 was freed
+        markValid(0);
+        corrupt(1);
+        try (TemplateStore store = new TemplateStore(file, false)) {
+            assertEquals(1, store.size());
+            assertEquals(1, store.get(1).getGeneration());
+            assertArrayEquals(template(1), store.getTemplate(1));
+        }
+    }
+
+    private void markValid(int record) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer state = ByteBuffer.allocate(4).putInt(0, STATE_VALID);
+            channel.write(state, position(record));
+        }
+    }
+
+    private void corrupt(int record) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, position(record) + OFFSET_TEMPLATE);
+            data.put(0, (byte) (data.get(0) ^ 0xFF));
+            channel.write(ByteBuffer.wrap(new byte[]{data.get(0)}), position(record) + OFFSET_TEMPLATE);
+        }
+    }
+
+    private static long position(int record) {
+        // Header has size of one record
+        return RECORD_SIZE + (long) record * RECORD_SIZE;
+    }
+
+    private static byte[] template(int seed) {
+        byte[] template = new byte[TemplateStore.TEMPLATE_SIZE];
+        for (int i = 0; i < template.length; i++) {
+            template[i] = (byte) (seed * 31 + i);
+        }
+        return template;
+    }
+}